@@ -21,10 +21,12 @@ package edu.harvard.seas.pl.formulog;
  */
 
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -108,6 +110,8 @@ public final class Configuration {
 
 	public static final int smtTaskSize = getIntProp("smtTaskSize", 8);
 	public static final int smtCacheSize = getIntProp("smtCacheSize", 100);
+	public static final int smtSerialCacheSize = getIntProp("smtSerialCacheSize", 10000);
+	public static final boolean smtShareSubterms = propIsSet("smtShareSubterms", false);
 	public static final SmtStrategy smtStrategy = getSmtStrategy();
 	public static final String smtSolver;
 	static {
@@ -117,19 +121,53 @@ public final class Configuration {
 		case "cvc4":
 		case "yices":
 		case "boolector":
+		case "standin":
 			break;
 		default:
 			throw new IllegalArgumentException("Unrecognized solver: " + smtSolver);
 		}
 	}
+	public static final List<String> smtPortfolio = getListProp("smtPortfolio");
+	static {
+		for (String solver : smtPortfolio) {
+			switch (solver) {
+			case "z3":
+			case "cvc4":
+			case "yices":
+			case "boolector":
+			case "standin":
+				break;
+			default:
+				throw new IllegalArgumentException("Unrecognized solver in portfolio: " + solver);
+			}
+		}
+	}
 	public static final String smtLogic = getStringProp("smtLogic", "ALL");
 	public static final boolean smtDeclareAdts = propIsSet("smtDeclareAdts", true);
 	public static final boolean smtCacheHardResets = propIsSet("smtCacheHardResets", false);
+	public static final int smtCacheGenerations = getIntProp("smtCacheGenerations", 4);
+	public static final int smtDeadline = getIntProp("smtDeadline", 0);
+	public static final int smtMaxRetries = getIntProp("smtMaxRetries", 2);
+	public static final boolean smtElasticPool = propIsSet("smtElasticPool", false);
+	public static final boolean smtLazyDeclarations = propIsSet("smtLazyDeclarations", false);
+	public static final int smtBatchSize = getIntProp("smtBatchSize", 1);
+	public static final boolean smtLazyModels = propIsSet("smtLazyModels", false);
+	public static final boolean smtSchedule = propIsSet("smtSchedule", false);
+	public static final int smtExpensiveSolvers = getIntProp("smtExpensiveSolvers", 0);
+	public static final int smtExpensiveQueryMs = getIntProp("smtExpensiveQueryMs", 1000);
+	public static final boolean smtAdaptiveTimeouts = propIsSet("smtAdaptiveTimeouts", false);
+	public static final String smtTrace = System.getProperty("smtTrace");
+	public static final String smtReplay = System.getProperty("smtReplay");
+	public static final List<String> smtReplayStrategies = getListProp("smtReplayStrategies");
+	public static final int smtPoolSpares = getIntProp("smtPoolSpares", 1);
+	public static final int smtPoolIdleTimeout = getIntProp("smtPoolIdleTimeout", 10000);
 	public static final boolean smtUseNegativeLiterals = propIsSet("smtUseNegativeLiterals", false);
 	public static final boolean smtDoubleCheckUnknowns = propIsSet("smtDoubleCheckUnknowns", true);
 	public static final boolean smtUseSingleShotSolver = propIsSet("smtUseSingleShotSolver", false)
 			|| smtSolver.equals("boolector");
 	public static final boolean smtCheckSuccess = propIsSet("smtCheckSuccess", false);
+	public static final boolean smtAsyncIo = propIsSet("smtAsyncIo", false);
+	public static final boolean smtAsyncEval = propIsSet("smtAsyncEval", false);
 
 	private static final Dataset pushPopStackSize = new Dataset();
 	private static final Dataset pushPopStackReuse = new Dataset();
@@ -142,8 +180,30 @@ public final class Configuration {
 	private static final Dataset csaCacheHits = new Dataset();
 	private static final Dataset csaCacheMisses = new Dataset();
 	private static final AtomicInteger csaCacheClears = new AtomicInteger();
+	private static final AtomicInteger smtRestartsCrash = new AtomicInteger();
+	private static final AtomicInteger smtRestartsDeadline = new AtomicInteger();
+	private static final AtomicInteger csaCacheEvictions = new AtomicInteger();
+	private static final Dataset csaCacheEvicted = new Dataset();
+	private static final Dataset csaCacheSurvived = new Dataset();
+	private static final int csaCacheHitRateWindow = 1000;
+	private static final int csaCacheHitRateWindowsKept = 100;
+	// Only the most recent windows are kept; the rest are just summarized
+	private static final Deque<Double> csaCacheHitRateOverTime = new ArrayDeque<>();
+	private static int csaCacheWindows;
+	private static double csaCacheWindowRateSum;
+	private static double csaCacheWindowRateMin = 1;
+	private static double csaCacheWindowRateMax;
+	private static int csaCacheWindowHits;
+	private static int csaCacheWindowAsserts;
 	private static final Dataset csaEvalStats = new Dataset();
 	private static final Dataset pushPopEvalStats = new Dataset();
+	private static final Map<String, AtomicInteger> portfolioWins = new ConcurrentHashMap<>();
+	private static final AtomicInteger portfolioCallsRaced = new AtomicInteger();
+	private static final AtomicInteger portfolioCallsPredicted = new AtomicInteger();
+	private static final AtomicInteger schedulerCallsMain = new AtomicInteger();
+	private static final AtomicInteger schedulerCallsExpensive = new AtomicInteger();
+	private static final AtomicInteger schedulerTimeoutsTightened = new AtomicInteger();
+	private static final AtomicInteger schedulerTightenedUnknown = new AtomicInteger();
 	private static final Dataset otherSolverEvalStats = new Dataset();
 
 	public static final int parallelism = getIntProp("parallelism", 4);
@@ -154,6 +214,14 @@ public final class Configuration {
 	public static final List<String> trackedRelations = getListProp("trackedRelations");
 
 	public static final List<String> factDirs = getListProp("factDirs");
+	public static final boolean fastFactFiles = propIsSet("fastFactFiles", true);
+	public static final boolean sllParsing = propIsSet("sllParsing", true);
+	public static final int benchmarkParse = getIntProp("benchmarkParse", 0);
+	public static final List<String> batchFactDirs = getListProp("batchFactDirs");
+	public static final int factFileChunkSize = getIntProp("factFileChunkSize", 64);
+	public static final String binaryOutputDir = System.getProperty("binaryOutputDir");
+	public static final String outputDir = System.getProperty("outputDir");
+	public static final String convertFacts = System.getProperty("convertFacts");
 
 	public static final boolean debugMst = propIsSet("debugMst");
 	public static final boolean debugStratification = propIsSet("debugStratification");
@@ -301,6 +369,8 @@ public final class Configuration {
 		out.println("[SMT NUM CALLS - UNKNOWN] " + smtNumCallsUnknown);
 		out.println("[SMT NUM CALLS - DOUBLE CHECK] " + smtNumCallsDoubleCheck);
 		out.println("[SMT NUM CALLS - FALSE UNKNOWN] " + smtNumCallsFalseUnknown);
+		out.println("[SMT SOLVER RESTARTS - CRASH] " + smtRestartsCrash.get());
+		out.println("[SMT SOLVER RESTARTS - DEADLINE] " + smtRestartsDeadline.get());
 		if (csaEvalStats.size() > 0) {
 			out.println("--- CSA ---");
 			out.printf("[CSA EVAL TIME] %1.1fms%n", csaEvalStats.computeSum() / 1e6);
@@ -312,6 +382,24 @@ public final class Configuration {
 			out.println("[CSA CACHE HIT RATE] " + csaCacheHitRate.getStatsString());
 			out.println("[CSA CACHE USE RATE] " + csaCacheUseRate.getStatsString());
 			out.println("[CSA CACHE CLEARS] " + csaCacheClears.get());
+			out.println("[CSA CACHE EVICTIONS] " + csaCacheEvictions.get());
+			if (csaCacheEvicted.size() > 0) {
+				out.println("[CSA CACHE EVICTED PER EVICTION] " + csaCacheEvicted.getStatsString());
+				out.println("[CSA CACHE SURVIVED PER EVICTION] " + csaCacheSurvived.getStatsString());
+			}
+			synchronized (csaCacheHitRateOverTime) {
+				if (csaCacheWindows > 0) {
+					out.printf("[CSA CACHE HIT RATE PER %d LOOKUPS] mean %1.2f, min %1.2f, max %1.2f%n",
+							csaCacheHitRateWindow, csaCacheWindowRateSum / csaCacheWindows, csaCacheWindowRateMin,
+							csaCacheWindowRateMax);
+				}
+				StringBuilder sb = new StringBuilder();
+				for (double rate : csaCacheHitRateOverTime) {
+					sb.append(String.format(" %1.2f", rate));
+				}
+				out.println("[CSA CACHE HIT RATE PER " + csaCacheHitRateWindow + " LOOKUPS - LAST "
+						+ csaCacheHitRateOverTime.size() + " OF " + csaCacheWindows + "]" + sb);
+			}
 		}
 		if (pushPopEvalStats.size() > 0) {
 			out.println("--- PUSH POP ---");
@@ -323,6 +411,21 @@ public final class Configuration {
 			out.println("[PUSH POP STACK DELTA] " + pushPopStackDelta.getStatsString());
 			out.println("[PUSH POP STACK REUSE] " + pushPopStackReuse.getStatsString());
 		}
+		if (portfolioCallsRaced.get() + portfolioCallsPredicted.get() > 0) {
+			out.println("--- PORTFOLIO ---");
+			out.println("[PORTFOLIO CALLS - RACED] " + portfolioCallsRaced.get());
+			out.println("[PORTFOLIO CALLS - PREDICTED] " + portfolioCallsPredicted.get());
+			for (Map.Entry<String, AtomicInteger> e : portfolioWins.entrySet()) {
+				out.println("[PORTFOLIO WINS - " + e.getKey().toUpperCase() + "] " + e.getValue().get());
+			}
+		}
+		if (schedulerCallsMain.get() + schedulerCallsExpensive.get() > 0) {
+			out.println("--- SCHEDULER ---");
+			out.println("[SCHEDULER CALLS - MAIN POOL] " + schedulerCallsMain.get());
+			out.println("[SCHEDULER CALLS - EXPENSIVE POOL] " + schedulerCallsExpensive.get());
+			out.println("[SCHEDULER TIMEOUTS TIGHTENED] " + schedulerTimeoutsTightened.get());
+			out.println("[SCHEDULER UNKNOWN AFTER TIGHTENING] " + schedulerTightenedUnknown.get());
+		}
 		if (otherSolverEvalStats.size() > 0) {
 			out.println("--- OTHER ---");
 			out.printf("[OTHER EVAL TIME] %1.1fms%n", otherSolverEvalStats.computeSum() / 1e6);
@@ -345,6 +448,23 @@ public final class Configuration {
 		csaCacheHitRate.addDataPoint(numAsserts == 0 ? 1 : (double) hits / numAsserts);
 		csaCacheUseRate.addDataPoint(oldSize == 0 ? 1 : (double) hits / oldSize);
 		csaCacheSize.addDataPoint(oldSize);
+		synchronized (csaCacheHitRateOverTime) {
+			csaCacheWindowHits += hits;
+			csaCacheWindowAsserts += numAsserts;
+			if (csaCacheWindowAsserts >= csaCacheHitRateWindow) {
+				double rate = (double) csaCacheWindowHits / csaCacheWindowAsserts;
+				csaCacheWindows++;
+				csaCacheWindowRateSum += rate;
+				csaCacheWindowRateMin = Math.min(csaCacheWindowRateMin, rate);
+				csaCacheWindowRateMax = Math.max(csaCacheWindowRateMax, rate);
+				if (csaCacheHitRateOverTime.size() == csaCacheHitRateWindowsKept) {
+					csaCacheHitRateOverTime.removeFirst();
+				}
+				csaCacheHitRateOverTime.addLast(rate);
+				csaCacheWindowHits = 0;
+				csaCacheWindowAsserts = 0;
+			}
+		}
 	}
 
 	public static void recordSmtDoubleCheck(boolean falseUnknown) {
@@ -354,10 +474,50 @@ public final class Configuration {
 		}
 	}
 
+	public static void recordPortfolioCall(String winner, boolean raced) {
+		if (raced) {
+			portfolioCallsRaced.incrementAndGet();
+		} else {
+			portfolioCallsPredicted.incrementAndGet();
+		}
+		if (winner != null) {
+			Util.lookupOrCreate(portfolioWins, winner, () -> new AtomicInteger()).incrementAndGet();
+		}
+	}
+
+	public static void recordSmtScheduling(boolean expensive, boolean tightened) {
+		if (expensive) {
+			schedulerCallsExpensive.incrementAndGet();
+		} else {
+			schedulerCallsMain.incrementAndGet();
+		}
+		if (tightened) {
+			schedulerTimeoutsTightened.incrementAndGet();
+		}
+	}
+
+	public static void recordSmtTightenedUnknown() {
+		schedulerTightenedUnknown.incrementAndGet();
+	}
+
+	public static void recordSmtRestart(boolean deadline) {
+		if (deadline) {
+			smtRestartsDeadline.incrementAndGet();
+		} else {
+			smtRestartsCrash.incrementAndGet();
+		}
+	}
+
 	public static void recordCsaCacheClear(int solverId) {
 		csaCacheClears.incrementAndGet();
 	}
 
+	public static void recordCsaCacheEviction(int solverId, int evicted, int survived) {
+		csaCacheEvictions.incrementAndGet();
+		csaCacheEvicted.addDataPoint(evicted);
+		csaCacheSurvived.addDataPoint(survived);
+	}
+
 	public static void recordFuncTime(FunctionSymbol func, long time) {
 		AtomicLong l = Util.lookupOrCreate(funcTimes, func, () -> new AtomicLong());
 		l.addAndGet(time);
@@ -506,7 +666,10 @@ public final class Configuration {
 		if (val == null) {
 			val = "queue-1";
 		}
-		
+		return parseSmtStrategy(val);
+	}
+
+	public static SmtStrategy parseSmtStrategy(String val) {
 		switch (val) {
 		case "naive":
 			return new SmtStrategy(SmtStrategy.Tag.NAIVE, null);
@@ -0,0 +1,137 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.parsing.BinaryFactFile;
+import edu.harvard.seas.pl.formulog.parsing.ParseException;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.symbols.Symbol;
+import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
+
+/**
+ * Converts the tab-separated fact files for the external relations of a
+ * Formulog program (which may be compressed) into binary fact files, written
+ * to the directory given by <code>convertFacts</code>. The fact files are read
+ * from the directories in <code>factDirs</code> (or the current directory if
+ * there are none); facts for the same relation from different directories are
+ * merged. For each relation, the time taken to load the tab-separated and the
+ * binary versions is reported.
+ */
+public final class FactConverter {
+
+	private final String file;
+	private final Path outDir;
+
+	private FactConverter(String file, Path outDir) {
+		this.file = file;
+		this.outDir = outDir;
+	}
+
+	private void go() throws IOException, ParseException {
+		List<Path> factDirs = Configuration.factDirs.stream().map(Paths::get).collect(Collectors.toList());
+		if (factDirs.isEmpty()) {
+			factDirs = Collections.singletonList(Paths.get(""));
+		}
+		Parser parser = new Parser();
+		BasicProgram prog;
+		try (FileReader reader = new FileReader(file)) {
+			prog = parser.parse(reader);
+		}
+		Files.createDirectories(outDir);
+		for (RelationSymbol sym : findRelations(prog.getSymbolManager(), factDirs)) {
+			Set<Term[]> facts = new HashSet<>();
+			long start = System.nanoTime();
+			for (Path dir : factDirs) {
+				Path tsv = Parser.findTsvFile(dir, sym.toString());
+				if (Files.exists(tsv)) {
+					parser.loadFacts(sym, tsv, facts);
+				}
+			}
+			double tsvSecs = (System.nanoTime() - start) / 1e9;
+			Path bin = outDir.resolve(sym + BinaryFactFile.extension);
+			try {
+				BinaryFactFile.write(bin, sym, new ArrayList<>(facts));
+			} catch (IllegalArgumentException e) {
+				System.out.println(sym + ": skipped (" + e.getMessage() + ")");
+				continue;
+			}
+			Set<Term[]> reloaded = new HashSet<>();
+			start = System.nanoTime();
+			parser.loadFacts(sym, bin, reloaded);
+			double binSecs = (System.nanoTime() - start) / 1e9;
+			if (reloaded.size() != facts.size()) {
+				throw new AssertionError("Read back " + reloaded.size() + " facts for " + sym + " but wrote "
+						+ facts.size());
+			}
+			System.out.printf("%s: %d facts, tsv %.3fs, binary %.3fs%n", sym, facts.size(), tsvSecs, binSecs);
+		}
+	}
+
+	private static List<RelationSymbol> findRelations(SymbolManager sm, List<Path> factDirs) throws IOException {
+		Set<String> names = new HashSet<>();
+		for (Path dir : factDirs) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toAbsolutePath(), "*.tsv*")) {
+				for (Path f : files) {
+					String name = f.getFileName().toString();
+					names.add(name.substring(0, name.lastIndexOf(".tsv")));
+				}
+			}
+		}
+		List<RelationSymbol> rels = new ArrayList<>();
+		for (String name : names) {
+			if (!sm.hasName(name)) {
+				continue;
+			}
+			Symbol sym = sm.lookupSymbol(name);
+			if (sym instanceof RelationSymbol && ((RelationSymbol) sym).isExternal()) {
+				rels.add((RelationSymbol) sym);
+			}
+		}
+		rels.sort((r1, r2) -> r1.toString().compareTo(r2.toString()));
+		return rels;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Expected a single Formulog file as an argument.");
+			System.exit(1);
+		}
+		new FactConverter(args[0], Paths.get(Configuration.convertFacts)).go();
+		System.exit(0);
+	}
+
+}
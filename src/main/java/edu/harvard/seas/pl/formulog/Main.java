@@ -22,23 +22,30 @@ package edu.harvard.seas.pl.formulog;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.time.StopWatch;
 
 import edu.harvard.seas.pl.formulog.ast.BasicRule;
 import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.UserPredicate;
 import edu.harvard.seas.pl.formulog.codegen.CodeGen;
 import edu.harvard.seas.pl.formulog.eval.Evaluation;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.eval.EvaluationResult;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.BinaryFactFile;
 import edu.harvard.seas.pl.formulog.parsing.ParseException;
 import edu.harvard.seas.pl.formulog.parsing.Parser;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
@@ -54,6 +61,7 @@ public final class Main {
 
 	private final String file;
 	private final StopWatch clock = new StopWatch();
+	private final Parser parser = new Parser();
 	private volatile boolean interrupted = true;
 
 	private static final boolean exnStackTrace = System.getProperty("exnStackTrace") != null;
@@ -65,22 +73,75 @@ public final class Main {
 	private void go() {
 		Program<UserPredicate, BasicRule> prog = parse();
 		WellTypedProgram typedProg = typeCheck(prog);
-		Evaluation eval = setup(typedProg);
+		discardFacts(prog);
+		SemiNaiveEvaluation eval = setup(typedProg);
+		if (Configuration.batchFactDirs.isEmpty()) {
+			discardFacts(typedProg);
+		}
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 
 			@Override
 			public void run() {
 				if (interrupted) {
-					printResults(eval);
+					printResults(eval, null);
 				}
 			}
 
 		}
 
 		);
-		evaluate(eval);
-		interrupted = false;
-		printResults(eval);
+		if (Configuration.batchFactDirs.isEmpty()) {
+			evaluate(eval);
+			interrupted = false;
+			printResults(eval, null);
+		} else {
+			runBatch(typedProg, eval);
+			interrupted = false;
+		}
+	}
+
+	/**
+	 * Evaluates the program once for each directory in
+	 * <code>batchFactDirs</code>, loading that directory's external facts on
+	 * top of the facts that are written in the program. The program is parsed,
+	 * type checked, and set up only once; only the loaded facts are type checked
+	 * for each run.
+	 */
+	private void runBatch(WellTypedProgram prog, SemiNaiveEvaluation eval) {
+		Map<RelationSymbol, List<Term[]>> hardCodedFacts = new HashMap<>();
+		for (RelationSymbol sym : prog.getFactSymbols()) {
+			if (sym.isExternal()) {
+				hardCodedFacts.put(sym, new ArrayList<>(prog.getFacts(sym)));
+			}
+		}
+		TypeChecker checker = new TypeChecker(prog);
+		for (String dir : Configuration.batchFactDirs) {
+			System.out.println("Loading facts from " + dir + "...");
+			clock.reset();
+			clock.start();
+			for (RelationSymbol sym : hardCodedFacts.keySet()) {
+				prog.getFacts(sym).clear();
+			}
+			try {
+				parser.loadExternalFacts(prog, Collections.singletonList(Paths.get(dir)));
+				checker.typeCheckFacts(hardCodedFacts.keySet());
+				for (Map.Entry<RelationSymbol, List<Term[]>> e : hardCodedFacts.entrySet()) {
+					prog.getFacts(e.getKey()).addAll(e.getValue());
+				}
+				eval.reset();
+			} catch (ParseException e) {
+				handleParseException(e);
+			} catch (TypeException e) {
+				handleException("Error while typechecking facts from " + dir + "!", e);
+			} catch (EvaluationException e) {
+				handleException("Error while loading facts from " + dir + "!", e);
+			}
+			clock.stop();
+			System.out.println("Finished loading facts (" + clock.getTime() / 1000.0 + "s)");
+			evaluate(eval);
+			Path name = Paths.get(dir).toAbsolutePath().normalize().getFileName();
+			printResults(eval, name == null ? dir : name.toString());
+		}
 	}
 
 	private Program<UserPredicate, BasicRule> parse() {
@@ -88,27 +149,41 @@ public final class Main {
 		clock.start();
 		try {
 			List<Path> factDirs = Configuration.factDirs.stream().map(Paths::get).collect(Collectors.toList());
-			if (factDirs.isEmpty()) {
+			if (factDirs.isEmpty() && Configuration.batchFactDirs.isEmpty()) {
 				factDirs = Collections.singletonList(Paths.get(""));
 			}
 			FileReader reader = new FileReader(file);
-			Program<UserPredicate, BasicRule> prog = new Parser().parse(reader, factDirs);
+			Program<UserPredicate, BasicRule> prog = parser.parse(reader, factDirs);
 			clock.stop();
 			System.out.println("Finished parsing (" + clock.getTime() / 1000.0 + "s)");
 			return prog;
 		} catch (FileNotFoundException e) {
 			handleException("Error while parsing!", e);
 		} catch (ParseException e) {
-			String msg = "Error while parsing ";
-			if (e.getFileName() != null) {
-				msg += e.getFileName() + ", ";
-			}
-			msg += "line " + e.getLineNo() + ":";
-			handleException(msg, e);
+			handleParseException(e);
 		}
 		throw new AssertionError("impossible");
 	}
 
+	private static void handleParseException(ParseException e) {
+		String msg = "Error while parsing ";
+		if (e.getFileName() != null) {
+			msg += e.getFileName() + ", ";
+		}
+		msg += "line " + e.getLineNo() + ":";
+		handleException(msg, e);
+	}
+
+	/**
+	 * Drops the facts held by a program once the next stage of the pipeline has
+	 * its own copy, so that at most two copies of the EDB are live at once.
+	 */
+	private static void discardFacts(Program<UserPredicate, BasicRule> prog) {
+		for (RelationSymbol sym : prog.getFactSymbols()) {
+			prog.getFacts(sym).clear();
+		}
+	}
+
 	private WellTypedProgram typeCheck(Program<UserPredicate, BasicRule> prog) {
 		System.out.println("Type checking...");
 		clock.reset();
@@ -124,12 +199,13 @@ public final class Main {
 		}
 	}
 
-	private Evaluation setup(WellTypedProgram prog) {
+	private SemiNaiveEvaluation setup(WellTypedProgram prog) {
 		System.out.println("Rewriting and validating...");
 		clock.reset();
 		clock.start();
 		try {
-			Evaluation eval = SemiNaiveEvaluation.setup(prog, Configuration.parallelism, Configuration.eagerSemiNaive);
+			SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(prog, Configuration.parallelism,
+					Configuration.eagerSemiNaive);
 			clock.stop();
 			System.out.println("Finished rewriting and validating (" + clock.getTime() / 1000.0 + "s)");
 			return eval;
@@ -152,9 +228,24 @@ public final class Main {
 		}
 	}
 
-	private void printResults(Evaluation eval) {
+	/**
+	 * Prints or writes out the results of an evaluation. In a batch, results are
+	 * labeled with the name of the run, and files are written to a subdirectory
+	 * of that name.
+	 */
+	private void printResults(Evaluation eval, String run) {
 		PrintStream out = System.out;
 		EvaluationResult res = eval.getResult();
+		if (Configuration.binaryOutputDir != null) {
+			writeBinaryResults(res, resolve(Configuration.binaryOutputDir, run));
+		}
+		if (Configuration.outputDir != null) {
+			writeResults(res, resolve(Configuration.outputDir, run));
+			return;
+		}
+		if (run != null) {
+			out.println("Results for " + run + ":");
+		}
 		switch (Configuration.printResultsPreference) {
 		case ALL:
 			printEdb(res, out);
@@ -178,6 +269,66 @@ public final class Main {
 		}
 	}
 
+	private static Path resolve(String dir, String run) {
+		Path path = Paths.get(dir);
+		return run == null ? path : path.resolve(run);
+	}
+
+	private void writeResults(EvaluationResult res, Path dir) {
+		List<String> names = new ArrayList<>();
+		List<Iterable<UserPredicate>> facts = new ArrayList<>();
+		for (RelationSymbol sym : res.getSymbols()) {
+			boolean selected;
+			switch (Configuration.printResultsPreference) {
+			case ALL:
+				selected = true;
+				break;
+			case EDB:
+				selected = sym.isEdbSymbol();
+				break;
+			case IDB:
+				selected = sym.isIdbSymbol();
+				break;
+			case SOME:
+				selected = Configuration.getSelectedRelsToPrint().contains(sym.toString());
+				break;
+			default:
+				selected = false;
+			}
+			if (selected) {
+				names.add(sym.toString());
+				facts.add(res.getAll(sym));
+			}
+		}
+		if (Configuration.printResultsPreference == PrintPreference.QUERY && res.getQueryAnswer() != null) {
+			names.add("query");
+			facts.add(res.getQueryAnswer());
+		}
+		System.out.println("Writing " + names.size() + " relation(s) to " + dir + "...");
+		try {
+			new ResultWriter(dir, Configuration.parallelism).write(names, facts);
+		} catch (IOException e) {
+			handleException("Error while writing results!", e);
+		}
+	}
+
+	private void writeBinaryResults(EvaluationResult res, Path dir) {
+		try {
+			Files.createDirectories(dir);
+			for (RelationSymbol sym : res.getSymbols()) {
+				if (sym.isIdbSymbol()) {
+					List<Term[]> tuples = new ArrayList<>();
+					for (UserPredicate fact : res.getAll(sym)) {
+						tuples.add(fact.getArgs());
+					}
+					BinaryFactFile.write(dir.resolve(sym + BinaryFactFile.extension), sym, tuples);
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			handleException("Error while writing binary results!", e);
+		}
+	}
+
 	public void printEdb(EvaluationResult res, PrintStream out) {
 		out.println("Extensional database:");
 		for (RelationSymbol sym : res.getSymbols()) {
@@ -234,6 +385,12 @@ public final class Main {
 			}
 		} else if (Configuration.codeGen) {
 			CodeGen.main(args);
+		} else if (Configuration.smtReplay != null) {
+			SmtReplay.main(args);
+		} else if (Configuration.convertFacts != null) {
+			FactConverter.main(args);
+		} else if (Configuration.benchmarkParse > 0) {
+			ParseBenchmark.main(args);
 		} else {
 			if (args.length != 1) {
 				System.out.println("Expected a single Formulog file as an argument.");
@@ -0,0 +1,87 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+
+/**
+ * Measures how long it takes to parse a Formulog program (without loading any
+ * external facts) when trying SLL prediction first, and when using full LL
+ * prediction from the start. Each mode parses the program
+ * <code>benchmarkParse</code> times, alternating between the modes; the first
+ * parse in each mode is reported separately, since it also fills ANTLR's DFA
+ * cache.
+ */
+public final class ParseBenchmark {
+
+	private final String file;
+	private final int runs;
+
+	private ParseBenchmark(String file, int runs) {
+		this.file = file;
+		this.runs = runs;
+	}
+
+	private void go() throws Exception {
+		List<Long> sll = new ArrayList<>();
+		List<Long> ll = new ArrayList<>();
+		for (int i = 0; i < runs; ++i) {
+			sll.add(time(true));
+			ll.add(time(false));
+		}
+		report("SLL first", sll);
+		report("LL only", ll);
+	}
+
+	private long time(boolean sllFirst) throws Exception {
+		long start = System.nanoTime();
+		try (FileReader reader = new FileReader(file)) {
+			new Parser(sllFirst).parse(reader);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String mode, List<Long> times) {
+		long first = times.get(0);
+		List<Long> rest = new ArrayList<>(times.subList(1, times.size()));
+		Collections.sort(rest);
+		System.out.printf("%s: first %.3fs", mode, first / 1e9);
+		if (!rest.isEmpty()) {
+			System.out.printf(", then min %.3fs, median %.3fs", rest.get(0) / 1e9, rest.get(rest.size() / 2) / 1e9);
+		}
+		System.out.println();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Expected a single Formulog file as an argument.");
+			System.exit(1);
+		}
+		new ParseBenchmark(args[0], Configuration.benchmarkParse).go();
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,106 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+
+/**
+ * Writes the facts of relations to tab-separated files (one per relation) in
+ * an output directory, in the same format that fact files are read in. The
+ * files are written in parallel, each through its own buffered writer. Facts
+ * are written in the order in which the evaluation result provides them; for
+ * the semi-naive evaluator this is the order of the relation's master index,
+ * so the output is sorted without any extra work.
+ */
+public final class ResultWriter {
+
+	private final Path dir;
+	private final int parallelism;
+
+	public ResultWriter(Path dir, int parallelism) {
+		this.dir = dir;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Writes each of the given sets of facts to the file with the corresponding
+	 * name (plus <code>.tsv</code>).
+	 */
+	public void write(List<String> names, List<Iterable<UserPredicate>> facts) throws IOException {
+		assert names.size() == facts.size();
+		Files.createDirectories(dir);
+		ExecutorService exec = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<Future<?>> tasks = new ArrayList<>();
+			for (int i = 0; i < names.size(); ++i) {
+				Path path = dir.resolve(names.get(i) + ".tsv");
+				Iterable<UserPredicate> fs = facts.get(i);
+				tasks.add(exec.submit(() -> {
+					writeFile(path, fs);
+					return null;
+				}));
+			}
+			for (Future<?> task : tasks) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
+	private static void writeFile(Path path, Iterable<UserPredicate> facts) throws IOException {
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path)), 1 << 16)) {
+			for (UserPredicate fact : facts) {
+				Term[] args = fact.getArgs();
+				for (int i = 0; i < args.length; ++i) {
+					if (i > 0) {
+						w.write('\t');
+					}
+					w.write(args[i].toString());
+				}
+				w.write('\n');
+			}
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package edu.harvard.seas.pl.formulog;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.SemiNaiveEvaluation;
+import edu.harvard.seas.pl.formulog.parsing.ParseException;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.smt.SmtLibSolver;
+import edu.harvard.seas.pl.formulog.smt.SmtQuery;
+import edu.harvard.seas.pl.formulog.smt.SmtResult;
+import edu.harvard.seas.pl.formulog.smt.SmtStatus;
+import edu.harvard.seas.pl.formulog.smt.SmtStrategy;
+import edu.harvard.seas.pl.formulog.smt.SmtTraceReader;
+import edu.harvard.seas.pl.formulog.smt.SmtTraceReader.Call;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.TypeException;
+import edu.harvard.seas.pl.formulog.validating.InvalidProgramException;
+
+/**
+ * Replays an SMT trace recorded with <code>-DsmtTrace</code> through the SMT
+ * solver selected by the current configuration, and reports throughput,
+ * latency percentiles, and how often the replayed results disagree with the
+ * recorded ones. The trace is replayed once for each of the strategies listed
+ * in <code>smtReplayStrategies</code>, or just through
+ * <code>smtStrategy</code> if there are none. Each thread of the traced run is
+ * replayed by its own thread, issuing its calls back-to-back in their original
+ * order. The solvers are started against the same (transformed) program as
+ * during evaluation; external facts are not loaded, since they play no part in
+ * what is declared to the solver.
+ */
+public final class SmtReplay {
+
+	private final String file;
+	private final String trace;
+
+	private SmtReplay(String file, String trace) {
+		this.file = file;
+		this.trace = trace;
+	}
+
+	private void go() throws Exception {
+		BasicProgram prog = load();
+		Map<Long, List<Call>> calls = readTrace(prog);
+		int numQueries = 0;
+		List<Long> recorded = new ArrayList<>();
+		for (List<Call> cs : calls.values()) {
+			for (Call c : cs) {
+				numQueries += c.queries.size();
+				recorded.add(c.end - c.start);
+			}
+		}
+		System.out.println("Replaying " + numQueries + " queries from " + calls.size() + " thread(s)...");
+		System.out.println("Recorded call latency (ms): " + percentiles(recorded));
+		List<SmtStrategy> strategies = new ArrayList<>();
+		for (String s : Configuration.smtReplayStrategies) {
+			strategies.add(Configuration.parseSmtStrategy(s));
+		}
+		if (strategies.isEmpty()) {
+			strategies.add(Configuration.smtStrategy);
+		}
+		for (SmtStrategy strategy : strategies) {
+			Run run = new Run(strategy);
+			run.replay(prog, calls);
+			System.out.println(strategy + ":");
+			System.out.printf("  Time: %.3fs (%.1f queries/s)%n", run.secs, numQueries / run.secs);
+			System.out.println("  Replayed call latency (ms): " + percentiles(run.latencies));
+			System.out.println("  Results differing from trace: " + run.mismatches.get());
+			System.out.println("  Failed calls: " + run.errors.get());
+		}
+		if (!Configuration.timeSmt) {
+			System.out.println("(Set -DtimeSmt for solver and cache statistics.)");
+		}
+	}
+
+	private static class Run {
+
+		final SmtStrategy strategy;
+		final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger mismatches = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		double secs;
+
+		Run(SmtStrategy strategy) {
+			this.strategy = strategy;
+		}
+
+		void replay(BasicProgram prog, Map<Long, List<Call>> calls) throws Exception {
+			SmtLibSolver smt = SemiNaiveEvaluation.getSmtManager(strategy);
+			smt.start(prog);
+			List<Thread> threads = new ArrayList<>();
+			for (List<Call> cs : calls.values()) {
+				threads.add(new Thread(() -> replay(smt, cs)));
+			}
+			long start = System.nanoTime();
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			secs = (System.nanoTime() - start) / 1e9;
+			smt.destroy();
+		}
+
+		void replay(SmtLibSolver smt, List<Call> calls) {
+			List<CompletableFuture<?>> pending = new ArrayList<>();
+			for (Call c : calls) {
+				long start = System.nanoTime();
+				try {
+					switch (c.kind) {
+					case "batch": {
+						List<SmtResult> res = smt.checkBatch(c.queries);
+						latencies.add((System.nanoTime() - start) / 1000);
+						compare(c, res);
+						break;
+					}
+					case "async": {
+						SmtQuery q = c.queries.get(0);
+						pending.add(smt.checkAsync(q.conjuncts, q.getModel, q.timeout).whenComplete((res, exn) -> {
+							latencies.add((System.nanoTime() - start) / 1000);
+							if (exn != null) {
+								errors.incrementAndGet();
+							} else {
+								compare(c, Collections.singletonList(res));
+							}
+						}));
+						break;
+					}
+					default: {
+						SmtQuery q = c.queries.get(0);
+						SmtResult res = smt.check(q.conjuncts, q.getModel, q.timeout);
+						latencies.add((System.nanoTime() - start) / 1000);
+						compare(c, Collections.singletonList(res));
+					}
+					}
+				} catch (EvaluationException e) {
+					errors.incrementAndGet();
+				}
+			}
+			for (CompletableFuture<?> fut : pending) {
+				try {
+					fut.join();
+				} catch (RuntimeException e) {
+					// Already counted
+				}
+			}
+		}
+
+		void compare(Call c, List<SmtResult> res) {
+			for (int i = 0; i < res.size(); ++i) {
+				SmtStatus expected = c.statuses.get(i);
+				SmtStatus actual = res.get(i).status;
+				if (expected != null && expected != SmtStatus.UNKNOWN && actual != SmtStatus.UNKNOWN
+						&& expected != actual) {
+					mismatches.incrementAndGet();
+				}
+			}
+		}
+
+	}
+
+	private static String percentiles(List<Long> micros) {
+		if (micros.isEmpty()) {
+			return "n/a";
+		}
+		long[] xs = new long[micros.size()];
+		synchronized (micros) {
+			for (int i = 0; i < xs.length; ++i) {
+				xs[i] = micros.get(i);
+			}
+		}
+		Arrays.sort(xs);
+		StringBuilder sb = new StringBuilder();
+		for (double p : new double[] { 0.5, 0.9, 0.99 }) {
+			int i = Math.max(0, (int) Math.ceil(p * xs.length) - 1);
+			sb.append(String.format("p%d=%.3f ", (int) (p * 100), xs[i] / 1000.0));
+		}
+		sb.append(String.format("max=%.3f", xs[xs.length - 1] / 1000.0));
+		return sb.toString();
+	}
+
+	private BasicProgram load() throws IOException, ParseException, TypeException, InvalidProgramException {
+		try (FileReader reader = new FileReader(file)) {
+			return SemiNaiveEvaluation.transform(new TypeChecker(new Parser().parse(reader)).typeCheck());
+		}
+	}
+
+	private Map<Long, List<Call>> readTrace(BasicProgram prog) throws IOException {
+		Map<Long, List<Call>> calls = new LinkedHashMap<>();
+		try (SmtTraceReader r = new SmtTraceReader(new FileReader(trace), prog.getSymbolManager())) {
+			Call c;
+			while ((c = r.next()) != null) {
+				calls.computeIfAbsent(c.thread, k -> new ArrayList<>()).add(c);
+			}
+		}
+		return calls;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Expected a single Formulog file as an argument.");
+			System.exit(1);
+		}
+		new SmtReplay(args[0], Configuration.smtReplay).go();
+		System.exit(0);
+	}
+
+}
@@ -282,11 +282,11 @@ public final class Constructors {
 		@Override
 		public void toSmtLib(SmtLibShim shim) {
 			shim.print("(let ((");
-			((SmtLibTerm) args[0]).toSmtLib(shim);
+			shim.print((SmtLibTerm) args[0]);
 			shim.print(" ");
-			((SmtLibTerm) args[1]).toSmtLib(shim);
+			shim.print((SmtLibTerm) args[1]);
 			shim.print(")) ");
-			((SmtLibTerm) args[2]).toSmtLib(shim);
+			shim.printUnderBinder((SmtLibTerm) args[2]);
 			shim.print(")");
 		}
 
@@ -353,7 +353,7 @@ public final class Constructors {
 			if (!pats.isEmpty()) {
 				shim.print("(! ");
 			}
-			((SmtLibTerm) args[1]).toSmtLib(shim);
+			shim.printUnderBinder((SmtLibTerm) args[1]);
 			if (!pats.isEmpty()) {
 				for (List<Term> pat : pats) {
 					shim.print(" :pattern (");
@@ -362,7 +362,7 @@ public final class Constructors {
 						shim.getTypeAnnotation(BuiltInConstructorSymbol.CONS);
 						Constructor wrappedPat = (Constructor) it.next();
 						SmtLibTerm t = (SmtLibTerm) wrappedPat.getArgs()[0];
-						t.toSmtLib(shim);
+						shim.printUnderBinder(t);
 						if (it.hasNext()) {
 							shim.print(" ");
 						}
@@ -640,7 +640,7 @@ public final class Constructors {
 				shim.print("((_ int2bv ");
 				int width = nat(sym.getArgs().get(0));
 				shim.print(width + ") ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 		});
@@ -652,7 +652,7 @@ public final class Constructors {
 			public void toSmtLib(SmtLibShim shim) {
 				shim.print("((_ extract ");
 				shim.print(args[2] + " " + args[1] + ") ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 		});
@@ -663,7 +663,7 @@ public final class Constructors {
 
 			@Override
 			public void toSmtLib(SmtLibShim shim) {
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 			}
 
 		});
@@ -680,14 +680,14 @@ public final class Constructors {
 				if (idx1 < idx2) {
 					shim.print("(");
 					shim.print("(_ sign_extend " + (idx2 - idx1) + ") ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				} else if (idx1 == idx2) {
-					t.toSmtLib(shim);
+					shim.print(t);
 				} else {
 					shim.print("(");
 					shim.print("(_ extract " + (idx2 - 1) + " 0) ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				}
 			}
@@ -706,14 +706,14 @@ public final class Constructors {
 				if (idx1 < idx2) {
 					shim.print("(");
 					shim.print("(_ zero_extend " + (idx2 - idx1) + ") ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				} else if (idx1 == idx2) {
-					t.toSmtLib(shim);
+					shim.print(t);
 				} else {
 					shim.print("(");
 					shim.print("(_ extract " + (idx2 - 1) + " 0) ");
-					t.toSmtLib(shim);
+					shim.print(t);
 					shim.print(")");
 				}
 			}
@@ -730,7 +730,7 @@ public final class Constructors {
 				int exponent = nat(sym, 1);
 				int significand = nat(sym, 2);
 				shim.print("((_ to_fp " + exponent + " " + significand + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -745,7 +745,7 @@ public final class Constructors {
 				int exponent = nat(sym, 2);
 				int significand = nat(sym, 3);
 				shim.print("((_ to_fp " + exponent + " " + significand + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -760,7 +760,7 @@ public final class Constructors {
 			public void toSmtLib(SmtLibShim shim) {
 				int width = nat(sym, 2);
 				shim.print("((_ " + s + " " + width + ") RNE ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -963,7 +963,7 @@ public final class Constructors {
 				shim.print("(");
 				shim.print(s);
 				shim.print(" ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -979,7 +979,7 @@ public final class Constructors {
 				shim.print("(");
 				shim.print(s);
 				shim.print(" ");
-				((SmtLibTerm) args[0]).toSmtLib(shim);
+				shim.print((SmtLibTerm) args[0]);
 				shim.print(")");
 			}
 
@@ -1084,7 +1084,7 @@ public final class Constructors {
 		for (Term t : c.getArgs()) {
 			SmtLibTerm tt = (SmtLibTerm) t;
 			shim.print(" ");
-			tt.toSmtLib(shim);
+			shim.print(tt);
 		}
 		if (sym.getArity() > 0) {
 			shim.print(")");
@@ -32,6 +32,7 @@ import edu.harvard.seas.pl.formulog.ast.Exprs.ExprVisitor;
 import edu.harvard.seas.pl.formulog.ast.Exprs.ExprVisitorExn;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.functions.FunctionDefManager;
+import edu.harvard.seas.pl.formulog.smt.SmtCallPendingException;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInFunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.FunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.Symbol;
@@ -152,6 +153,8 @@ public final class FunctionCallFactory {
 				} else {
 					r = computeWithoutMemoization(newArgs);
 				}
+			} catch (SmtCallPendingException e) {
+				throw e;
 			} catch (Throwable e) {
 				throw new EvaluationException(e);
 			}
@@ -26,6 +26,8 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
 import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
 import edu.harvard.seas.pl.formulog.types.Types.Type;
 import edu.harvard.seas.pl.formulog.util.Util;
@@ -49,6 +51,20 @@ public class Model extends AbstractTerm implements Primitive<Map<SolverVariable,
 		return m;
 	}
 
+	/**
+	 * Returns the value of a variable in the model, or null if it has none. The
+	 * values of a model read with <code>smtLazyModels</code> are only parsed from
+	 * the solver's output when they are first looked up; a value that cannot be
+	 * parsed is reported here.
+	 */
+	public Term lookup(SolverVariable x) throws EvaluationException {
+		try {
+			return m.get(x);
+		} catch (UncheckedEvaluationException e) {
+			throw new EvaluationException(e.getMessage());
+		}
+	}
+
 	@Override
 	public Type getType() {
 		return BuiltInTypes.model;
@@ -57,9 +73,15 @@ public class Model extends AbstractTerm implements Primitive<Map<SolverVariable,
 	@Override
 	public String toString() {
 		String s = "[";
-		for (Iterator<Map.Entry<SolverVariable, Term>> it = m.entrySet().iterator(); it.hasNext();) {
-			Map.Entry<SolverVariable, Term> e = it.next();
-			s += e.getKey() + " -> " + e.getValue();
+		for (Iterator<SolverVariable> it = m.keySet().iterator(); it.hasNext();) {
+			SolverVariable x = it.next();
+			String val;
+			try {
+				val = String.valueOf(m.get(x));
+			} catch (UncheckedEvaluationException e) {
+				val = "<unreadable: " + e.getMessage() + ">";
+			}
+			s += x + " -> " + val;
 			if (it.hasNext()) {
 				s += ", ";
 			}
@@ -20,6 +20,8 @@ package edu.harvard.seas.pl.formulog.db;
  * #L%
  */
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -28,13 +30,16 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -132,6 +137,28 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 		return false;
 	}
 
+	/**
+	 * Adds a batch of tuples to a relation. If the relation is still empty,
+	 * each of its indices is built in one go from a (parallel) sort of the
+	 * tuples, which is much cheaper than inserting them one at a time; the
+	 * batch can contain duplicates. This should not be called concurrently
+	 * with any other operation on the same relation.
+	 */
+	public void bulkLoad(RelationSymbol sym, List<Term[]> tups) {
+		if (tups.isEmpty()) {
+			return;
+		}
+		IndexedFactSet master = masterIndex.get(sym).fst();
+		if (!master.isEmpty()) {
+			addAll(sym, tups);
+			return;
+		}
+		Term[][] arr = tups.toArray(new Term[0][]);
+		for (IndexedFactSet idx : getUniqueIndices(sym)) {
+			idx.buildFrom(arr.clone());
+		}
+	}
+
 	private boolean allNormal(Term[] args) {
 		for (Term arg : args) {
 			if (!arg.isGround() || arg.containsUnevaluatedTerm()) {
@@ -428,7 +455,9 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 		private static final AtomicInteger idCnt = new AtomicInteger();
 		private final int id;
-		private final NavigableSet<Term[]> s;
+		private final Comparator<Term[]> cmp;
+		private volatile ConcurrentSkipListMap<Term[], Boolean> m;
+		private volatile NavigableSet<Term[]> s;
 		private final AtomicInteger cnt = new AtomicInteger();
 		private final List<Integer> comparatorOrder;
 
@@ -464,7 +493,7 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			} else {
 				cmp = new TermArrayComparator(a);
 			}
-			return new IndexedFactSet(new ConcurrentSkipListSet<>(cmp), order);
+			return new IndexedFactSet(cmp, order);
 		}
 
 		public int comparatorLength() {
@@ -484,8 +513,10 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			return s.isEmpty();
 		}
 
-		private IndexedFactSet(NavigableSet<Term[]> s, List<Integer> comparatorOrder) {
-			this.s = s;
+		private IndexedFactSet(Comparator<Term[]> cmp, List<Integer> comparatorOrder) {
+			this.cmp = cmp;
+			this.m = new ConcurrentSkipListMap<>(cmp);
+			this.s = m.keySet();
 			this.comparatorOrder = comparatorOrder;
 			this.id = idCnt.getAndIncrement();
 		}
@@ -495,7 +526,7 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 		}
 
 		public boolean add(Term[] arr) {
-			boolean modified = s.add(arr);
+			boolean modified = m.putIfAbsent(arr, Boolean.TRUE) == null;
 			if (modified) {
 				cnt.incrementAndGet();
 			}
@@ -506,7 +537,7 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			boolean modified = false;
 			int delta = 0;
 			for (Term[] tup : tups) {
-				if (s.add(tup)) {
+				if (m.putIfAbsent(tup, Boolean.TRUE) == null) {
 					modified = true;
 					delta++;
 				}
@@ -521,6 +552,25 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 			return cnt.get();
 		}
 
+		/**
+		 * Replaces the (empty) contents of this set with the given tuples, which
+		 * are sorted and deduplicated in place and then linked into a skip list in
+		 * a single pass.
+		 */
+		public void buildFrom(Term[][] tups) {
+			assert isEmpty();
+			Arrays.parallelSort(tups, cmp);
+			int n = 0;
+			for (int i = 0; i < tups.length; ++i) {
+				if (n == 0 || cmp.compare(tups[n - 1], tups[i]) != 0) {
+					tups[n++] = tups[i];
+				}
+			}
+			m = new ConcurrentSkipListMap<>(new SortedTuples(cmp, tups, n));
+			s = m.keySet();
+			cnt.set(n);
+		}
+
 		public Iterable<Term[]> lookup(Term[] tup, BindingType[] pat) {
 			Term[] lower = new Term[tup.length];
 			Term[] upper = new Term[tup.length];
@@ -553,6 +603,138 @@ public class SortedIndexedFactDb implements IndexedFactDb {
 
 	}
 
+	/**
+	 * A read-only view of a sorted, duplicate-free range of an array of tuples,
+	 * which a skip list can be built from in a single pass. Lookups use binary
+	 * search; the bounds of a submap are clamped to the range of this one.
+	 */
+	private static class SortedTuples extends AbstractMap<Term[], Boolean> implements SortedMap<Term[], Boolean> {
+
+		private final Comparator<Term[]> cmp;
+		private final Term[][] tups;
+		private final int from;
+		private final int to;
+
+		public SortedTuples(Comparator<Term[]> cmp, Term[][] tups, int size) {
+			this(cmp, tups, 0, size);
+		}
+
+		private SortedTuples(Comparator<Term[]> cmp, Term[][] tups, int from, int to) {
+			this.cmp = cmp;
+			this.tups = tups;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * The index of the first tuple in range that is not less than the key.
+		 */
+		private int lowerBound(Term[] key) {
+			int lo = from;
+			int hi = to;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cmp.compare(tups[mid], key) < 0) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		@Override
+		public Comparator<? super Term[]> comparator() {
+			return cmp;
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			Term[] k = (Term[]) key;
+			int i = lowerBound(k);
+			return i < to && cmp.compare(tups[i], k) == 0;
+		}
+
+		@Override
+		public Boolean get(Object key) {
+			return containsKey(key) ? Boolean.TRUE : null;
+		}
+
+		@Override
+		public Set<Map.Entry<Term[], Boolean>> entrySet() {
+			return new AbstractSet<Map.Entry<Term[], Boolean>>() {
+
+				@Override
+				public Iterator<Map.Entry<Term[], Boolean>> iterator() {
+					return new Iterator<Map.Entry<Term[], Boolean>>() {
+
+						private int i = from;
+
+						@Override
+						public boolean hasNext() {
+							return i < to;
+						}
+
+						@Override
+						public Map.Entry<Term[], Boolean> next() {
+							if (i >= to) {
+								throw new NoSuchElementException();
+							}
+							return new AbstractMap.SimpleImmutableEntry<>(tups[i++], Boolean.TRUE);
+						}
+
+					};
+				}
+
+				@Override
+				public int size() {
+					return to - from;
+				}
+
+			};
+		}
+
+		@Override
+		public SortedMap<Term[], Boolean> subMap(Term[] fromKey, Term[] toKey) {
+			if (cmp.compare(fromKey, toKey) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			return new SortedTuples(cmp, tups, lowerBound(fromKey), lowerBound(toKey));
+		}
+
+		@Override
+		public SortedMap<Term[], Boolean> headMap(Term[] toKey) {
+			return new SortedTuples(cmp, tups, from, lowerBound(toKey));
+		}
+
+		@Override
+		public SortedMap<Term[], Boolean> tailMap(Term[] fromKey) {
+			return new SortedTuples(cmp, tups, lowerBound(fromKey), to);
+		}
+
+		@Override
+		public Term[] firstKey() {
+			if (from == to) {
+				throw new NoSuchElementException();
+			}
+			return tups[from];
+		}
+
+		@Override
+		public Term[] lastKey() {
+			if (from == to) {
+				throw new NoSuchElementException();
+			}
+			return tups[to - 1];
+		}
+
+	}
+
 	private static class TermArrayComparator implements Comparator<Term[]> {
 
 		private final int[] pat;
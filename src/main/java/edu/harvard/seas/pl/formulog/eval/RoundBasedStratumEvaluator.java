@@ -34,6 +34,7 @@ import edu.harvard.seas.pl.formulog.ast.UserPredicate;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb;
 import edu.harvard.seas.pl.formulog.eval.SemiNaiveRule.DeltaSymbol;
+import edu.harvard.seas.pl.formulog.smt.SmtCallPendingException;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
 import edu.harvard.seas.pl.formulog.unification.OverwriteSubstitution;
 import edu.harvard.seas.pl.formulog.unification.Substitution;
@@ -185,6 +186,8 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 	}
 
 	static final boolean recordRuleDiagnostics = Configuration.recordRuleDiagnostics;
+	// Not final, so that tests can switch it on
+	static boolean smtAsyncEval = Configuration.smtAsyncEval;
 
 	@SuppressWarnings("serial")
 	class RuleSuffixEvaluator extends AbstractFJPTask {
@@ -222,23 +225,40 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			this.it = it;
 		}
 
+		/**
+		 * Creates a task that resumes evaluating the rule at the literal at
+		 * position <code>pos</code>, which is where an asynchronous SMT call was
+		 * made.
+		 */
+		protected RuleSuffixEvaluator(IndexedRule rule, SimplePredicate head, SimpleLiteral[] body, int pos,
+				OverwriteSubstitution s) {
+			this(rule, head, body, pos - 1, s, null);
+		}
+
 		@Override
 		public void doTask() throws EvaluationException {
 			long start = 0;
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
-			Iterable<Term[]> tups = it.next();
-			if (it.hasNext()) {
-				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, startPos, s.copy(), it));
-			}
+			boolean wasAsync = SmtCallPendingException.setEnabled(smtAsyncEval);
 			try {
-				for (Term[] tup : tups) {
-					evaluate(tup);
+				if (it == null) {
+					search(startPos + 1);
+				} else {
+					Iterable<Term[]> tups = it.next();
+					if (it.hasNext()) {
+						exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, head, body, startPos, s.copy(), it));
+					}
+					for (Term[] tup : tups) {
+						evaluate(tup);
+					}
 				}
 			} catch (UncheckedEvaluationException e) {
 				throw new EvaluationException(
 						"Exception raised while evaluating the rule: " + rule + "\n\n" + e.getMessage());
+			} finally {
+				SmtCallPendingException.setEnabled(wasAsync);
 			}
 			if (recordRuleDiagnostics) {
 				long end = System.currentTimeMillis();
@@ -249,7 +269,11 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 		void evaluate(Term[] ans) throws UncheckedEvaluationException {
 			SimplePredicate p = (SimplePredicate) body[startPos];
 			updateBinding(p, ans);
-			int pos = startPos + 1;
+			search(startPos + 1);
+		}
+
+		void search(int pos) throws UncheckedEvaluationException {
+			Term[] ans;
 			@SuppressWarnings("unchecked")
 			Iterator<Term[]>[] stack = new Iterator[rule.getBodySize()];
 			boolean movingRight = true;
@@ -260,6 +284,8 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 					} catch (EvaluationException e) {
 						throw new UncheckedEvaluationException(
 								"Exception raised while evaluating the literal: " + head + "\n\n" + e.getMessage());
+					} catch (SmtCallPendingException e) {
+						resumeLater(pos, e);
 					}
 					pos--;
 					movingRight = false;
@@ -314,6 +340,12 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 					} catch (EvaluationException e) {
 						throw new UncheckedEvaluationException(
 								"Exception raised while evaluating the literal: " + l + "\n\n" + e.getMessage());
+					} catch (SmtCallPendingException e) {
+						// Hand this branch of the search off to a task that runs once
+						// the solver has answered, and keep backtracking here.
+						resumeLater(pos, e);
+						pos--;
+						movingRight = false;
 					}
 				} else {
 					Iterator<Term[]> it = stack[pos];
@@ -330,6 +362,10 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			}
 		}
 
+		void resumeLater(int pos, SmtCallPendingException e) {
+			exec.addTaskAfter(e.getFuture(), new RuleSuffixEvaluator(rule, head, body, pos, s.copy()));
+		}
+
 		void updateBinding(SimplePredicate p, Term[] ans) {
 			Term[] args = p.getArgs();
 			BindingType[] pat = p.getBindingPattern();
@@ -358,11 +394,14 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 			if (recordRuleDiagnostics) {
 				start = System.currentTimeMillis();
 			}
+			boolean wasAsync = SmtCallPendingException.setEnabled(smtAsyncEval);
 			try {
 				evaluate();
 			} catch (EvaluationException e) {
 				throw new EvaluationException(
 						"Exception raised while evaluating the rule:\n" + rule + "\n\n" + e.getMessage());
+			} finally {
+				SmtCallPendingException.setEnabled(wasAsync);
 			}
 			if (recordRuleDiagnostics) {
 				long end = System.currentTimeMillis();
@@ -406,6 +445,9 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 				} catch (EvaluationException e) {
 					throw new EvaluationException(
 							"Exception raised while evaluating the literal: " + l + "\n\n" + e.getMessage());
+				} catch (SmtCallPendingException e) {
+					resumeLater(pos, s, e);
+					return;
 				}
 			}
 			if (pos == len) {
@@ -416,13 +458,30 @@ public final class RoundBasedStratumEvaluator extends AbstractStratumEvaluator {
 				} catch (EvaluationException e) {
 					throw new EvaluationException("Exception raised while evaluationg the literal: " + rule.getHead()
 							+ e.getLocalizedMessage());
+				} catch (SmtCallPendingException e) {
+					resumeLater(pos, s, e);
+					return;
 				}
 			}
-			Iterator<Iterable<Term[]>> tups = lookup(rule, pos, s).iterator();
+			Iterator<Iterable<Term[]>> tups;
+			try {
+				tups = lookup(rule, pos, s).iterator();
+			} catch (SmtCallPendingException e) {
+				resumeLater(pos, s, e);
+				return;
+			}
 			if (tups.hasNext()) {
 				exec.recursivelyAddTask(new RuleSuffixEvaluator(rule, pos, s, tups));
 			}
 		}
+
+		void resumeLater(int pos, OverwriteSubstitution s, SmtCallPendingException e) {
+			SimpleLiteral[] body = new SimpleLiteral[rule.getBodySize()];
+			for (int i = 0; i < body.length; ++i) {
+				body[i] = rule.getBody(i);
+			}
+			exec.addTaskAfter(e.getFuture(), new RuleSuffixEvaluator(rule, rule.getHead(), body, pos, s));
+		}
 	}
 
 	StopWatch recordRoundStart(int round) {
@@ -27,7 +27,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.BiFunction;
 
 import edu.harvard.seas.pl.formulog.Configuration;
@@ -56,12 +60,16 @@ import edu.harvard.seas.pl.formulog.smt.CheckSatAssumingSolver;
 import edu.harvard.seas.pl.formulog.smt.DoubleCheckingSolver;
 import edu.harvard.seas.pl.formulog.smt.NotThreadSafeQueueSmtManager;
 import edu.harvard.seas.pl.formulog.smt.PerThreadSmtManager;
+import edu.harvard.seas.pl.formulog.smt.PortfolioSolver;
 import edu.harvard.seas.pl.formulog.smt.PushPopNaiveSolver;
 import edu.harvard.seas.pl.formulog.smt.PushPopSolver;
 import edu.harvard.seas.pl.formulog.smt.QueueSmtManager;
+import edu.harvard.seas.pl.formulog.smt.SchedulingSmtManager;
+import edu.harvard.seas.pl.formulog.smt.SelfHealingSolver;
 import edu.harvard.seas.pl.formulog.smt.SingleShotSolver;
 import edu.harvard.seas.pl.formulog.smt.SmtLibSolver;
 import edu.harvard.seas.pl.formulog.smt.SmtStrategy;
+import edu.harvard.seas.pl.formulog.smt.TracingSolver;
 import edu.harvard.seas.pl.formulog.symbols.FunctionSymbol;
 import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
 import edu.harvard.seas.pl.formulog.symbols.Symbol;
@@ -72,6 +80,7 @@ import edu.harvard.seas.pl.formulog.util.AbstractFJPTask;
 import edu.harvard.seas.pl.formulog.util.CountingFJP;
 import edu.harvard.seas.pl.formulog.util.CountingFJPImpl;
 import edu.harvard.seas.pl.formulog.util.MockCountingFJP;
+import edu.harvard.seas.pl.formulog.util.Pair;
 import edu.harvard.seas.pl.formulog.util.Util;
 import edu.harvard.seas.pl.formulog.validating.FunctionDefValidation;
 import edu.harvard.seas.pl.formulog.validating.InvalidProgramException;
@@ -90,19 +99,17 @@ public class SemiNaiveEvaluation implements Evaluation {
 	private final CountingFJP exec;
 	private final Set<RelationSymbol> trackedRelations;
 	private final WellTypedProgram inputProgram;
+	private final BasicProgram magicProg;
 	private final Map<RelationSymbol, Set<IndexedRule>> rules;
 	private final boolean eagerEval;
+	private boolean hooksAdded;
 
 	static final boolean sequential = System.getProperty("sequential") != null;
 	static final boolean debugRounds = Configuration.debugRounds;
 
-	@SuppressWarnings("serial")
 	public static SemiNaiveEvaluation setup(WellTypedProgram prog, int parallelism, boolean eagerEval)
 			throws InvalidProgramException {
-		FunctionDefValidation.validate(prog);
-		MagicSetTransformer mst = new MagicSetTransformer(prog);
-		BasicProgram magicProg = mst.transform(Configuration.useDemandTransformation,
-				Configuration.restoreStratification);
+		BasicProgram magicProg = transform(prog);
 		Set<RelationSymbol> allRelations = new HashSet<>(magicProg.getFactSymbols());
 		allRelations.addAll(magicProg.getRuleSymbols());
 		SortedIndexedFactDbBuilder dbb = new SortedIndexedFactDbBuilder(allRelations);
@@ -110,35 +117,51 @@ public class SemiNaiveEvaluation implements Evaluation {
 		PredicateFunctionSetter predFuncs = new PredicateFunctionSetter(
 				magicProg.getFunctionCallFactory().getDefManager(), dbb);
 
-		Map<RelationSymbol, Set<IndexedRule>> rules = new HashMap<>();
 		List<Stratum> strata = new Stratifier(magicProg).stratify();
 		for (Stratum stratum : strata) {
 			if (stratum.hasRecursiveNegationOrAggregation()) {
 				throw new InvalidProgramException("Cannot handle recursive negation or aggregation: " + stratum);
 			}
-			Set<RelationSymbol> stratumSymbols = stratum.getPredicateSyms();
-			for (RelationSymbol sym : stratumSymbols) {
+		}
+		CountingFJP exec;
+		if (sequential) {
+			exec = new MockCountingFJP();
+		} else {
+			exec = new CountingFJPImpl(parallelism);
+		}
+		try {
+			return setup(prog, magicProg, strata, dbb, deltaDbb, predFuncs, exec, eagerEval);
+		} catch (InvalidProgramException e) {
+			exec.shutdown();
+			throw e;
+		}
+	}
+
+	private static SemiNaiveEvaluation setup(WellTypedProgram prog, BasicProgram magicProg, List<Stratum> strata,
+			SortedIndexedFactDbBuilder dbb, SortedIndexedFactDbBuilder deltaDbb, PredicateFunctionSetter predFuncs,
+			CountingFJP exec, boolean eagerEval) throws InvalidProgramException {
+		Map<RelationSymbol, List<Pair<ValidRule, SimpleRule>>> prepared = prepareRules(magicProg, strata, exec,
+				eagerEval);
+		// Indices are assigned in a single pass, in the same order as the rules
+		// were generated, so that index numbering does not depend on scheduling.
+		Map<RelationSymbol, Set<IndexedRule>> rules = new HashMap<>();
+		for (Stratum stratum : strata) {
+			for (RelationSymbol sym : stratum.getPredicateSyms()) {
 				Set<IndexedRule> rs = new HashSet<>();
-				for (BasicRule br : magicProg.getRules(sym)) {
-					for (SemiNaiveRule snr : SemiNaiveRule.make(br, stratumSymbols)) {
-						BiFunction<ComplexLiteral, Set<Var>, Integer> score = chooseScoringFunction(eagerEval);
-						ValidRule vr = ValidRule.make(tweakRule(snr, eagerEval), score);
-						checkRule(vr, eagerEval);
-						predFuncs.preprocess(vr);
-						SimpleRule sr = SimpleRule.make(vr, magicProg.getFunctionCallFactory());
-						IndexedRule ir = IndexedRule.make(sr, p -> {
-							RelationSymbol psym = p.getSymbol();
-							if (psym instanceof DeltaSymbol) {
-								psym = ((DeltaSymbol) psym).getBaseSymbol();
-								return deltaDbb.makeIndex(psym, p.getBindingPattern());
-							} else {
-								return dbb.makeIndex(psym, p.getBindingPattern());
-							}
-						});
-						rs.add(ir);
-						if (Configuration.printFinalRules) {
-							System.err.println("[FINAL RULE]:\n" + ir);
+				for (Pair<ValidRule, SimpleRule> p : prepared.get(sym)) {
+					predFuncs.preprocess(p.fst());
+					IndexedRule ir = IndexedRule.make(p.snd(), pred -> {
+						RelationSymbol psym = pred.getSymbol();
+						if (psym instanceof DeltaSymbol) {
+							psym = ((DeltaSymbol) psym).getBaseSymbol();
+							return deltaDbb.makeIndex(psym, pred.getBindingPattern());
+						} else {
+							return dbb.makeIndex(psym, pred.getBindingPattern());
 						}
+					});
+					rs.add(ir);
+					if (Configuration.printFinalRules) {
+						System.err.println("[FINAL RULE]:\n" + ir);
 					}
 				}
 				rules.put(sym, rs);
@@ -148,6 +171,9 @@ public class SemiNaiveEvaluation implements Evaluation {
 		predFuncs.setDb(db);
 
 		SmtLibSolver smt = getSmtManager();
+		if (Configuration.smtTrace != null) {
+			smt = new TracingSolver(smt, Configuration.smtTrace);
+		}
 		try {
 			smt.start(magicProg);
 		} catch (EvaluationException e) {
@@ -164,43 +190,156 @@ public class SemiNaiveEvaluation implements Evaluation {
 			}
 		}
 
-		CountingFJP exec;
-		if (sequential) {
-			exec = new MockCountingFJP();
-		} else {
-			exec = new CountingFJPImpl(parallelism);
+		try {
+			loadFacts(magicProg, db, exec);
+		} catch (EvaluationException e) {
+			throw new InvalidProgramException(e);
+		}
+		return new SemiNaiveEvaluation(prog, magicProg, db, deltaDbb, rules, magicProg.getQuery(), strata, exec,
+				getTrackedRelations(magicProg.getSymbolManager()), eagerEval);
+	}
+
+	/**
+	 * Returns the program that is actually evaluated (and handed to the SMT
+	 * solver) for <code>prog</code>, i.e., the program after the magic set
+	 * transformation.
+	 */
+	public static BasicProgram transform(WellTypedProgram prog) throws InvalidProgramException {
+		FunctionDefValidation.validate(prog);
+		MagicSetTransformer mst = new MagicSetTransformer(prog);
+		return mst.transform(Configuration.useDemandTransformation, Configuration.restoreStratification);
+	}
+
+	/**
+	 * Turns the rules of each relation into semi-naive, validated, simplified
+	 * rules, with one task per relation symbol, run on the evaluation's pool.
+	 * This does not touch any shared state; predicate functions and indices are
+	 * set up afterwards by the caller. If several relations have invalid rules,
+	 * the error for the first one (in stratum order) is reported. Since fresh
+	 * variables are numbered in the order they are made, the tasks are run one
+	 * after the other when the final rules are to be printed, so that the output
+	 * does not change from run to run.
+	 */
+	@SuppressWarnings("serial")
+	private static Map<RelationSymbol, List<Pair<ValidRule, SimpleRule>>> prepareRules(BasicProgram magicProg,
+			List<Stratum> strata, CountingFJP exec, boolean eagerEval) throws InvalidProgramException {
+		List<RelationSymbol> syms = new ArrayList<>();
+		List<Callable<List<Pair<ValidRule, SimpleRule>>>> tasks = new ArrayList<>();
+		for (Stratum stratum : strata) {
+			Set<RelationSymbol> stratumSymbols = stratum.getPredicateSyms();
+			for (RelationSymbol sym : stratumSymbols) {
+				syms.add(sym);
+				tasks.add(() -> {
+					List<Pair<ValidRule, SimpleRule>> l = new ArrayList<>();
+					for (BasicRule br : magicProg.getRules(sym)) {
+						for (SemiNaiveRule snr : SemiNaiveRule.make(br, stratumSymbols)) {
+							BiFunction<ComplexLiteral, Set<Var>, Integer> score = chooseScoringFunction(eagerEval);
+							ValidRule vr = ValidRule.make(tweakRule(snr, eagerEval), score);
+							checkRule(vr, eagerEval);
+							l.add(new Pair<>(vr, SimpleRule.make(vr, magicProg.getFunctionCallFactory())));
+						}
+					}
+					return l;
+				});
+			}
+		}
+		int n = tasks.size();
+		AtomicReferenceArray<List<Pair<ValidRule, SimpleRule>>> results = new AtomicReferenceArray<>(n);
+		AtomicReferenceArray<Exception> failures = new AtomicReferenceArray<>(n);
+		for (int i = 0; i < n; ++i) {
+			int j = i;
+			Runnable r = () -> {
+				try {
+					results.set(j, tasks.get(j).call());
+				} catch (Exception e) {
+					failures.set(j, e);
+				}
+			};
+			if (Configuration.printFinalRules) {
+				r.run();
+				continue;
+			}
+			exec.externallyAddTask(new AbstractFJPTask(exec) {
+
+				@Override
+				public void doTask() {
+					r.run();
+				}
+
+			});
+		}
+		exec.blockUntilFinished();
+		Map<RelationSymbol, List<Pair<ValidRule, SimpleRule>>> m = new HashMap<>();
+		for (int i = 0; i < n; ++i) {
+			Exception e = failures.get(i);
+			if (e instanceof InvalidProgramException) {
+				throw (InvalidProgramException) e;
+			} else if (e != null) {
+				throw new InvalidProgramException(e);
+			}
+			m.put(syms.get(i), results.get(i));
 		}
-		
+		return m;
+	}
+
+	/**
+	 * Loads the facts of a program into a fact database. Facts are normalized in
+	 * parallel chunks, and then each relation's indices are built in bulk from
+	 * its normalized facts. Formulas in the program's own fact tuples are
+	 * rewritten in place along the way.
+	 */
+	private static void loadFacts(BasicProgram magicProg, SortedIndexedFactDb db, CountingFJP exec)
+			throws EvaluationException {
+		Map<RelationSymbol, Queue<List<Term[]>>> normalized = new HashMap<>();
 		for (RelationSymbol sym : magicProg.getFactSymbols()) {
+			Queue<List<Term[]>> bufs = new ConcurrentLinkedQueue<>();
+			normalized.put(sym, bufs);
 			for (Iterable<Term[]> tups : Util.splitIterable(magicProg.getFacts(sym), Configuration.taskSize)) {
 				exec.externallyAddTask(new AbstractFJPTask(exec) {
 
 					@Override
 					public void doTask() throws EvaluationException {
 						FormulaRewriter fr = new FormulaRewriter(magicProg.getFunctionCallFactory());
+						List<Term[]> buf = new ArrayList<>();
 						for (Term[] tup : tups) {
 							try {
 								for (int i = 0; i < tup.length; ++i) {
 									tup[i] = fr.rewrite(tup[i], false);
 								}
-								db.add(sym, Terms.normalize(tup, new SimpleSubstitution()));
+								buf.add(Terms.normalize(tup, new SimpleSubstitution()));
 							} catch (EvaluationException e) {
 								UserPredicate p = UserPredicate.make(sym, tup, false);
 								throw new EvaluationException("Cannot normalize fact " + p + ":\n" + e.getMessage());
 							}
 						}
+						bufs.add(buf);
 					}
 
 				});
 			}
 		}
 		exec.blockUntilFinished();
+		if (!exec.hasFailed()) {
+			for (Map.Entry<RelationSymbol, Queue<List<Term[]>>> e : normalized.entrySet()) {
+				exec.externallyAddTask(new AbstractFJPTask(exec) {
+
+					@Override
+					public void doTask() throws EvaluationException {
+						List<Term[]> all = new ArrayList<>();
+						for (List<Term[]> buf : e.getValue()) {
+							all.addAll(buf);
+						}
+						e.getValue().clear();
+						db.bulkLoad(e.getKey(), all);
+					}
+
+				});
+			}
+			exec.blockUntilFinished();
+		}
 		if (exec.hasFailed()) {
-			exec.shutdown();
-			throw new InvalidProgramException(exec.getFailureCause());
+			throw exec.getFailureCause();
 		}
-		return new SemiNaiveEvaluation(prog, db, deltaDbb, rules, magicProg.getQuery(), strata, exec,
-				getTrackedRelations(magicProg.getSymbolManager()), eagerEval);
 	}
 
 	private static Rule<UserPredicate, ComplexLiteral> tweakRule(Rule<UserPredicate, ComplexLiteral> r,
@@ -268,16 +407,39 @@ public class SemiNaiveEvaluation implements Evaluation {
 		return inner;
 	}
 
+	private static SmtLibSolver maybeSchedule(SmtLibSolver pool, int size) {
+		if (!Configuration.smtSchedule) {
+			return pool;
+		}
+		SmtLibSolver expensive = null;
+		if (Configuration.smtExpensiveSolvers > 0) {
+			expensive = new QueueSmtManager(Configuration.smtExpensiveSolvers,
+					() -> maybeDoubleCheckSolver(makeCheckSatAssumingSolver()));
+		}
+		return new SchedulingSmtManager(pool, size, expensive);
+	}
+
 	private static SmtLibSolver makeNaiveSolver() {
 		return Configuration.smtUseSingleShotSolver ? new SingleShotSolver() : new CallAndResetSolver();
 	}
 
+	private static SmtLibSolver makeCheckSatAssumingSolver() {
+		if (!Configuration.smtPortfolio.isEmpty()) {
+			return new PortfolioSolver(Configuration.smtPortfolio);
+		}
+		return new CheckSatAssumingSolver();
+	}
+
 	private static SmtLibSolver getSmtManager() {
-		SmtStrategy strategy = Configuration.smtStrategy;
+		return getSmtManager(Configuration.smtStrategy);
+	}
+
+	public static SmtLibSolver getSmtManager(SmtStrategy strategy) {
 		switch (strategy.getTag()) {
 		case QUEUE: {
 			int size = (int) strategy.getMetadata();
-			return new QueueSmtManager(size, () -> maybeDoubleCheckSolver(new CheckSatAssumingSolver()));
+			return maybeSchedule(
+					new QueueSmtManager(size, () -> maybeDoubleCheckSolver(makeCheckSatAssumingSolver())), size);
 		}
 		case NAIVE:
 			return maybeDoubleCheckSolver(makeNaiveSolver());
@@ -287,26 +449,26 @@ public class SemiNaiveEvaluation implements Evaluation {
 			return new PushPopNaiveSolver();
 		case BEST_MATCH: {
 			int size = (int) strategy.getMetadata();
-			return maybeDoubleCheckSolver(new BestMatchSmtManager(size));
+			return maybeSchedule(maybeDoubleCheckSolver(new BestMatchSmtManager(size)), size);
 		}
 		case PER_THREAD_QUEUE: {
 			int size = (int) strategy.getMetadata();
 			return new PerThreadSmtManager(() -> new NotThreadSafeQueueSmtManager(size,
-					() -> maybeDoubleCheckSolver(new CheckSatAssumingSolver())));
+					() -> maybeDoubleCheckSolver(makeCheckSatAssumingSolver())));
 		}
 		case PER_THREAD_BEST_MATCH: {
 			int size = (int) strategy.getMetadata();
 			return new PerThreadSmtManager(() -> maybeDoubleCheckSolver(new BestMatchSmtManager(size)));
 		}
 		case PER_THREAD_PUSH_POP: {
-			return new PerThreadSmtManager(() -> new PushPopSolver());
+			return new PerThreadSmtManager(() -> new SelfHealingSolver(() -> new PushPopSolver()));
 		}
 		case PER_THREAD_PUSH_POP_NAIVE: {
-			return new PerThreadSmtManager(() -> new PushPopNaiveSolver());
+			return new PerThreadSmtManager(() -> new SelfHealingSolver(() -> new PushPopNaiveSolver()));
 		}
 		case PER_THREAD_NAIVE: {
-			return new PerThreadSmtManager(() -> maybeDoubleCheckSolver(
-					Configuration.smtUseSingleShotSolver ? new SingleShotSolver() : new CallAndResetSolver()));
+			return new PerThreadSmtManager(() -> new SelfHealingSolver(() -> maybeDoubleCheckSolver(
+					Configuration.smtUseSingleShotSolver ? new SingleShotSolver() : new CallAndResetSolver())));
 		}
 		default:
 			throw new UnsupportedOperationException("Cannot support SMT strategy: " + strategy);
@@ -469,11 +631,12 @@ public class SemiNaiveEvaluation implements Evaluation {
 		}, null);
 	}
 
-	SemiNaiveEvaluation(WellTypedProgram inputProgram, SortedIndexedFactDb db,
+	SemiNaiveEvaluation(WellTypedProgram inputProgram, BasicProgram magicProg, SortedIndexedFactDb db,
 			IndexedFactDbBuilder<SortedIndexedFactDb> deltaDbb, Map<RelationSymbol, Set<IndexedRule>> rules,
 			UserPredicate query, List<Stratum> strata, CountingFJP exec, Set<RelationSymbol> trackedRelations,
 			boolean eagerEval) {
 		this.inputProgram = inputProgram;
+		this.magicProg = magicProg;
 		this.db = db;
 		this.query = query;
 		this.strata = strata;
@@ -494,27 +657,44 @@ public class SemiNaiveEvaluation implements Evaluation {
 		return strata;
 	}
 
+	/**
+	 * Empties the fact database and reloads it from the current facts of the
+	 * program that this evaluation was set up from. This makes it possible to
+	 * change the facts of the input program (e.g., to load a different set of
+	 * external facts) and evaluate it again, without repeating the setup.
+	 */
+	public synchronized void reset() throws EvaluationException {
+		db.clear();
+		deltaDb.clear();
+		nextDeltaDb.clear();
+		magicProg.getFunctionCallFactory().clearMemoCache();
+		loadFacts(magicProg, db, exec);
+	}
+
 	@Override
 	public synchronized void run() throws EvaluationException {
-		if (Configuration.printRelSizes) {
-			Runtime.getRuntime().addShutdownHook(new Thread() {
+		if (!hooksAdded) {
+			hooksAdded = true;
+			if (Configuration.printRelSizes) {
+				Runtime.getRuntime().addShutdownHook(new Thread() {
 
-				@Override
-				public void run() {
-					Configuration.printRelSizes(System.err, "REL SIZE", db, true);
-				}
+					@Override
+					public void run() {
+						Configuration.printRelSizes(System.err, "REL SIZE", db, true);
+					}
 
-			});
-		}
-		if (Configuration.debugParallelism) {
-			Runtime.getRuntime().addShutdownHook(new Thread() {
+				});
+			}
+			if (Configuration.debugParallelism) {
+				Runtime.getRuntime().addShutdownHook(new Thread() {
 
-				@Override
-				public void run() {
-					System.err.println("[STEAL COUNT] " + exec.getStealCount());
-				}
+					@Override
+					public void run() {
+						System.err.println("[STEAL COUNT] " + exec.getStealCount());
+					}
 
-			});
+				});
+			}
 		}
 		for (Stratum stratum : strata) {
 			evaluateStratum(stratum);
@@ -30,7 +30,6 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.function.BiFunction;
 
 import org.pcollections.HashTreePMap;
@@ -52,6 +51,7 @@ import edu.harvard.seas.pl.formulog.ast.StringTerm;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Terms;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtCallPendingException;
 import edu.harvard.seas.pl.formulog.smt.SmtLibSolver;
 import edu.harvard.seas.pl.formulog.smt.SmtResult;
 import edu.harvard.seas.pl.formulog.smt.SmtStatus;
@@ -1701,7 +1701,7 @@ public final class BuiltInFunctionDefFactory {
 
 	}
 
-	private final Map<Triple<Set<SmtLibTerm>, Boolean, Integer>, Future<SmtResult>> smtMemo = new ConcurrentHashMap<>();
+	private final Map<Triple<Set<SmtLibTerm>, Boolean, Integer>, CompletableFuture<SmtResult>> smtMemo = new ConcurrentHashMap<>();
 
 	private Pair<SmtStatus, Model> querySmt(SmtLibTerm assertions, boolean getModel) throws EvaluationException {
 		return querySmt(assertions, getModel, Integer.MAX_VALUE);
@@ -1772,7 +1772,9 @@ public final class BuiltInFunctionDefFactory {
 				return new Pair<>(SmtStatus.SATISFIABLE, m);
 			}
 			SmtResult res;
-			if (Configuration.smtMemoize) {
+			if (SmtCallPendingException.isEnabled()) {
+				res = querySmtAsync(set, getModel, timeout);
+			} else if (Configuration.smtMemoize) {
 				res = querySmtWithMemo(set, getModel, timeout);
 			} else {
 				res = smt.check(set, getModel, timeout);
@@ -1787,9 +1789,21 @@ public final class BuiltInFunctionDefFactory {
 			throws EvaluationException {
 		Triple<Set<SmtLibTerm>, Boolean, Integer> key = new Triple<>(assertions, getModel, timeout);
 		CompletableFuture<SmtResult> completableFut = new CompletableFuture<>();
-		Future<SmtResult> fut = smtMemo.putIfAbsent(key, completableFut);
+		CompletableFuture<SmtResult> fut = smtMemo.putIfAbsent(key, completableFut);
 		if (fut == null) {
-			completableFut.complete(smt.check(assertions, getModel, timeout));
+			try {
+				SmtResult res = smt.check(assertions, getModel, timeout);
+				if (res.isProvisional()) {
+					// Let those already waiting share it, but ask again next time
+					smtMemo.remove(key, completableFut);
+				}
+				completableFut.complete(res);
+			} catch (EvaluationException | RuntimeException e) {
+				// Wake up anyone waiting on this query, but do not memoize the failure
+				smtMemo.remove(key, completableFut);
+				completableFut.completeExceptionally(e);
+				throw e;
+			}
 			fut = completableFut;
 		}
 		long waitStart = 0;
@@ -1807,6 +1821,51 @@ public final class BuiltInFunctionDefFactory {
 		}
 	}
 
+	/**
+	 * Submits the query without waiting for the solver. If the result is not
+	 * yet known, throws a {@link SmtCallPendingException}; the caller retries
+	 * once the exception's future completes, and then finds the result here. For
+	 * this to work, results are always memoized in this mode. A failed query is
+	 * reported to the first caller that finds it (normally the one resumed by
+	 * its completion) and then dropped from the memo, so that later calls ask
+	 * the solver again; the same goes for an unknown result that was found
+	 * under a tightened timeout.
+	 */
+	private SmtResult querySmtAsync(Set<SmtLibTerm> assertions, boolean getModel, int timeout)
+			throws EvaluationException {
+		Triple<Set<SmtLibTerm>, Boolean, Integer> key = new Triple<>(assertions, getModel, timeout);
+		CompletableFuture<SmtResult> fut = smtMemo.get(key);
+		if (fut == null) {
+			CompletableFuture<SmtResult> completableFut = new CompletableFuture<>();
+			fut = smtMemo.putIfAbsent(key, completableFut);
+			if (fut == null) {
+				fut = completableFut;
+				smt.checkAsync(assertions, getModel, timeout).whenComplete((res, exn) -> {
+					if (exn != null) {
+						completableFut.completeExceptionally(exn);
+					} else {
+						completableFut.complete(res);
+					}
+				});
+			}
+		}
+		if (!fut.isDone()) {
+			throw new SmtCallPendingException(fut);
+		}
+		if (fut.isCompletedExceptionally()) {
+			smtMemo.remove(key, fut);
+		}
+		try {
+			SmtResult res = fut.get();
+			if (res.isProvisional()) {
+				smtMemo.remove(key, fut);
+			}
+			return res;
+		} catch (InterruptedException | ExecutionException e) {
+			throw new EvaluationException(e);
+		}
+	}
+
 	private final FunctionDef isSat = new FunctionDef() {
 
 		@Override
@@ -1950,7 +2009,7 @@ public final class BuiltInFunctionDefFactory {
 		public Term evaluate(Term[] args) throws EvaluationException {
 			SolverVariable x = (SolverVariable) args[0];
 			Model m = (Model) args[1];
-			Term t = m.getVal().get(x);
+			Term t = m.lookup(x);
 			return t == null ? Constructors.none() : Constructors.some(t);
 		}
 
@@ -0,0 +1,323 @@
+package edu.harvard.seas.pl.formulog.parsing;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.parsing.FactFileParser.ColumnKind;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbolType;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+
+/**
+ * A binary, column-oriented file format for the facts of a single relation.
+ * 
+ * A file consists of a header (magic number, version, arity, number of
+ * tuples, and the kind of each column), a dictionary, and then the columns,
+ * one after the other. Columns of type i32, i64, fp32, and fp64 hold their
+ * values directly, as fixed-width big-endian numbers; every other column holds
+ * (four-byte) indices into the dictionary. Each dictionary entry is either the
+ * value of a string or the text of some other term, which is parsed once when
+ * the file is loaded, no matter how many tuples share it. Only terms whose text
+ * parses back to the same term can be stored (see {@link #isStorable(Term)});
+ * for example, relations holding models, opaque sets, or formulas cannot be
+ * written in this format.
+ * 
+ * Files are memory-mapped for loading; a single column cannot be larger than
+ * 2GB.
+ */
+public final class BinaryFactFile {
+
+	private BinaryFactFile() {
+		throw new AssertionError("impossible");
+	}
+
+	public static final String extension = ".bin";
+
+	private static final int magic = 0x464c4742;
+	private static final int version = 1;
+
+	private static final byte stringEntry = 0;
+	private static final byte termEntry = 1;
+
+	/**
+	 * Writes the given tuples of a relation to a file.
+	 * 
+	 * @throws IllegalArgumentException if some tuple holds a term that could not
+	 *                                  be read back from the file
+	 */
+	public static void write(Path path, RelationSymbol sym, List<Term[]> tuples) throws IOException {
+		ColumnKind[] kinds = ColumnKind.of(sym);
+		Map<Term, Integer> dict = new HashMap<>();
+		List<Term> entries = new ArrayList<>();
+		for (Term[] tup : tuples) {
+			for (int i = 0; i < kinds.length; ++i) {
+				if (width(kinds[i]) == 0 && !dict.containsKey(tup[i])) {
+					if (kinds[i] == ColumnKind.OTHER && !isStorable(tup[i])) {
+						throw new IllegalArgumentException(
+								"Cannot store term in binary fact file for relation " + sym + ": " + tup[i]);
+					}
+					dict.put(tup[i], entries.size());
+					entries.add(tup[i]);
+				}
+			}
+		}
+		List<byte[]> encoded = new ArrayList<>();
+		long dictBytes = 0;
+		for (Term t : entries) {
+			String s = t instanceof StringTerm ? ((StringTerm) t).getVal() : t.toString();
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			encoded.add(bytes);
+			dictBytes += 5 + bytes.length;
+		}
+		try (OutputStream os = Files.newOutputStream(path);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(kinds.length);
+			out.writeLong(tuples.size());
+			for (ColumnKind kind : kinds) {
+				out.writeByte(kind.ordinal());
+			}
+			out.writeInt(entries.size());
+			out.writeLong(dictBytes);
+			for (int i = 0; i < entries.size(); ++i) {
+				byte[] bytes = encoded.get(i);
+				out.writeByte(entries.get(i) instanceof StringTerm ? stringEntry : termEntry);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			for (int i = 0; i < kinds.length; ++i) {
+				for (Term[] tup : tuples) {
+					writeValue(out, kinds[i], tup[i], dict);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the text of a term parses back to the same term. This is
+	 * the case for terms built from vanilla constructors (including lists,
+	 * tuples, and records), booleans, numbers, and strings without quotes or
+	 * backslashes (which are printed without escaping).
+	 */
+	static boolean isStorable(Term t) {
+		if (t instanceof I32 || t instanceof I64 || t instanceof FP32 || t instanceof FP64
+				|| t instanceof BoolTerm) {
+			return true;
+		}
+		if (t instanceof StringTerm) {
+			String s = ((StringTerm) t).getVal();
+			return s.indexOf('"') < 0 && s.indexOf('\\') < 0 && s.indexOf('\n') < 0 && s.indexOf('\t') < 0;
+		}
+		if (t instanceof Constructor) {
+			Constructor c = (Constructor) t;
+			if (c.getSymbol().getConstructorSymbolType() != ConstructorSymbolType.VANILLA_CONSTRUCTOR) {
+				return false;
+			}
+			for (Term arg : c.getArgs()) {
+				if (!isStorable(arg)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private static void writeValue(DataOutputStream out, ColumnKind kind, Term t, Map<Term, Integer> dict)
+			throws IOException {
+		switch (kind) {
+		case I32:
+			out.writeInt(((I32) t).getVal());
+			break;
+		case I64:
+			out.writeLong(((I64) t).getVal());
+			break;
+		case FP32:
+			out.writeInt(Float.floatToRawIntBits(((FP32) t).getVal()));
+			break;
+		case FP64:
+			out.writeLong(Double.doubleToRawLongBits(((FP64) t).getVal()));
+			break;
+		case STRING:
+		case OTHER:
+			out.writeInt(dict.get(t));
+			break;
+		}
+	}
+
+	private static int width(ColumnKind kind) {
+		switch (kind) {
+		case I32:
+		case FP32:
+			return 4;
+		case I64:
+		case FP64:
+			return 8;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Loads the tuples in a file into the given collection, checking that they
+	 * fit the declared types of the relation.
+	 */
+	static void load(FactFileParser fpp, Path path, RelationSymbol sym, Collection<Term[]> acc)
+			throws ParseException, IOException {
+		ColumnKind[] expected = ColumnKind.of(sym);
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			long pos = 0;
+			ByteBuffer header = map(ch, pos, 20);
+			if (header.getInt() != magic) {
+				throw new ParseException(0, "Not a binary fact file");
+			}
+			int v = header.getInt();
+			if (v != version) {
+				throw new ParseException(0, "Unsupported binary fact file version: " + v);
+			}
+			int arity = header.getInt();
+			if (arity != expected.length) {
+				throw new ParseException(0,
+						"Arity mismatch: expected " + expected.length + " columns, but got " + arity);
+			}
+			long n = header.getLong();
+			if (n > Integer.MAX_VALUE) {
+				throw new ParseException(0, "Too many tuples: " + n);
+			}
+			pos += 20;
+			ByteBuffer kindsBuf = map(ch, pos, arity + 12);
+			ColumnKind[] kinds = new ColumnKind[arity];
+			for (int i = 0; i < arity; ++i) {
+				int k = kindsBuf.get();
+				if (k < 0 || k >= ColumnKind.values().length) {
+					throw new ParseException(0, "Unrecognized column kind: " + k);
+				}
+				kinds[i] = ColumnKind.values()[k];
+				if (width(kinds[i]) != width(expected[i]) || (width(kinds[i]) > 0 && kinds[i] != expected[i])) {
+					throw new ParseException(0, "Column " + i + " holds " + kinds[i] + " values, but the relation "
+							+ sym + " expects " + expected[i] + " values");
+				}
+			}
+			int numEntries = kindsBuf.getInt();
+			long dictBytes = kindsBuf.getLong();
+			pos += arity + 12;
+			Term[] dict = readDictionary(fpp, map(ch, pos, dictBytes), numEntries);
+			pos += dictBytes;
+			Term[][] tuples = new Term[(int) n][arity];
+			for (int i = 0; i < arity; ++i) {
+				long len = n * Math.max(4, width(kinds[i]));
+				readColumn(map(ch, pos, len), kinds[i], dict, tuples, i);
+				pos += len;
+			}
+			for (Term[] tup : tuples) {
+				acc.add(tup);
+			}
+		}
+	}
+
+	private static ByteBuffer map(FileChannel ch, long pos, long len) throws IOException, ParseException {
+		if (len > Integer.MAX_VALUE) {
+			throw new ParseException(0, "Binary fact file section is larger than 2GB");
+		}
+		if (pos + len > ch.size()) {
+			throw new ParseException(0, "Truncated binary fact file");
+		}
+		return ch.map(MapMode.READ_ONLY, pos, len);
+	}
+
+	private static Term[] readDictionary(FactFileParser fpp, ByteBuffer buf, int numEntries) throws ParseException {
+		Term[] dict = new Term[numEntries];
+		for (int i = 0; i < numEntries; ++i) {
+			byte tag = buf.get();
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			String s = new String(bytes, StandardCharsets.UTF_8);
+			if (tag == stringEntry) {
+				dict[i] = StringTerm.make(s);
+			} else {
+				dict[i] = fpp.checkFact(new Term[] { fpp.parseTerm(s, 0) }, 0)[0];
+			}
+		}
+		return dict;
+	}
+
+	private static void readColumn(ByteBuffer buf, ColumnKind kind, Term[] dict, Term[][] tuples, int col)
+			throws ParseException {
+		switch (kind) {
+		case I32:
+			for (Term[] tup : tuples) {
+				tup[col] = I32.make(buf.getInt());
+			}
+			break;
+		case I64:
+			for (Term[] tup : tuples) {
+				tup[col] = I64.make(buf.getLong());
+			}
+			break;
+		case FP32:
+			for (Term[] tup : tuples) {
+				tup[col] = FP32.make(Float.intBitsToFloat(buf.getInt()));
+			}
+			break;
+		case FP64:
+			for (Term[] tup : tuples) {
+				tup[col] = FP64.make(Double.longBitsToDouble(buf.getLong()));
+			}
+			break;
+		case STRING:
+		case OTHER:
+			for (Term[] tup : tuples) {
+				int idx = buf.getInt();
+				if (idx < 0 || idx >= dict.length) {
+					throw new ParseException(0, "Dictionary index out of bounds: " + idx);
+				}
+				tup[col] = dict[idx];
+			}
+			break;
+		}
+	}
+
+}
@@ -20,21 +20,38 @@ package edu.harvard.seas.pl.formulog.parsing;
  * #L%
  */
 
-import java.util.Set;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
 import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.parsing.generated.FormulogParser;
 import edu.harvard.seas.pl.formulog.parsing.generated.FormulogParser.TabSeparatedTermLineContext;
 import edu.harvard.seas.pl.formulog.parsing.generated.FormulogParser.TsvFileContext;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.BuiltInTypes;
+import edu.harvard.seas.pl.formulog.types.Types.Type;
 
 class FactFileParser {
 
 	private final ParsingContext pc;
+	private TermExtractor termExtractor;
+	private VariableCheckPass varChecker;
 
 	public FactFileParser(ParsingContext parsingContext) {
 		pc = parsingContext;
 	}
 
-	public void loadFacts(TsvFileContext ctx, int expectedArity, Set<Term[]> acc) throws ParseException {
+	public void loadFacts(TsvFileContext ctx, int expectedArity, Collection<Term[]> acc) throws ParseException {
 		TermExtractor termExtractor = new TermExtractor(pc);
 		VariableCheckPass varChecker = new VariableCheckPass(pc.symbolManager());
 		for (TabSeparatedTermLineContext l : ctx.tabSeparatedTermLine()) {
@@ -52,4 +69,352 @@ class FactFileParser {
 		}
 	}
 
+	/**
+	 * Loads the facts of a tab-separated file line by line, without building a
+	 * parse tree, if every column of the relation is declared as i32, i64, fp32,
+	 * fp64, or string. Cells holding plain literals are read directly; a line
+	 * with a cell that does not (e.g., because it contains a comment) is handed
+	 * to the ANTLR parser as a whole. If some column has another type, the file
+	 * is handed to the ANTLR parser as a whole.
+	 */
+	public void loadFacts(Reader r, RelationSymbol sym, Collection<Term[]> acc) throws ParseException, IOException {
+		if (Arrays.asList(ColumnKind.of(sym)).contains(ColumnKind.OTHER)) {
+			FormulogParser parser = Parser.getParser(r, true);
+			loadFacts(Parser.parseTwoStage(parser, FormulogParser::tsvFile), sym.getArity(), acc);
+			return;
+		}
+		LineParser lp = new LineParser(sym);
+		BufferedReader br = new BufferedReader(r, 1 << 16);
+		String line;
+		int lineNo = 0;
+		while ((line = br.readLine()) != null) {
+			lineNo++;
+			acc.add(lp.parse(line, lineNo));
+		}
+	}
+
+	static enum ColumnKind {
+		I32, I64, FP32, FP64, STRING, OTHER;
+
+		public static ColumnKind of(Type type) {
+			if (type.equals(BuiltInTypes.i32)) {
+				return I32;
+			} else if (type.equals(BuiltInTypes.i64)) {
+				return I64;
+			} else if (type.equals(BuiltInTypes.fp32)) {
+				return FP32;
+			} else if (type.equals(BuiltInTypes.fp64)) {
+				return FP64;
+			} else if (type.equals(BuiltInTypes.string)) {
+				return STRING;
+			}
+			return OTHER;
+		}
+
+		public static ColumnKind[] of(RelationSymbol sym) {
+			List<Type> types = sym.getCompileTimeType().getArgTypes();
+			ColumnKind[] kinds = new ColumnKind[types.size()];
+			for (int i = 0; i < kinds.length; ++i) {
+				kinds[i] = of(types.get(i));
+			}
+			return kinds;
+		}
+	}
+
+	/**
+	 * Turns the lines of a fact file for a given relation into tuples.
+	 */
+	class LineParser {
+
+		private final ColumnKind[] kinds;
+		private final int[] starts;
+		private final int[] ends;
+
+		public LineParser(RelationSymbol sym) {
+			kinds = ColumnKind.of(sym);
+			starts = new int[kinds.length];
+			ends = new int[kinds.length];
+		}
+
+		public Term[] parse(String line, int lineNo) throws ParseException {
+			int n = split(line);
+			if (n != kinds.length) {
+				throw new ParseException(lineNo,
+						"Arity mismatch: expected " + kinds.length + " terms, but got " + n);
+			}
+			Term[] args = new Term[n];
+			for (int i = 0; i < n; ++i) {
+				Term t = readLiteral(kinds[i], line, starts[i], ends[i]);
+				if (t == null) {
+					return parseLine(line, lineNo);
+				}
+				args[i] = t;
+			}
+			return args;
+		}
+
+		private Term[] parseLine(String line, int lineNo) throws ParseException {
+			Term[] args = parseTerms(line, lineNo);
+			if (args.length != kinds.length) {
+				throw new ParseException(lineNo,
+						"Arity mismatch: expected " + kinds.length + " terms, but got " + args.length);
+			}
+			return checkFact(args, lineNo);
+		}
+
+		/**
+		 * Finds the (space-trimmed) cells of a line, splitting on tabs outside of
+		 * string literals, and returns how many there are. Only the bounds of the
+		 * first cells that fit are recorded.
+		 */
+		private int split(String line) {
+			int len = line.length();
+			int n = 0;
+			int start = 0;
+			boolean quoted = false;
+			boolean blank = true;
+			for (int i = 0; i <= len; ++i) {
+				char ch = i < len ? line.charAt(i) : '\t';
+				if (quoted) {
+					if (ch == '\\') {
+						i++;
+					} else if (ch == '"') {
+						quoted = false;
+					}
+				} else if (ch == '"') {
+					quoted = true;
+				} else if (ch == '\t') {
+					if (n < starts.length) {
+						int s = start;
+						int e = i;
+						while (s < e && line.charAt(s) == ' ') {
+							s++;
+						}
+						while (e > s && line.charAt(e - 1) == ' ') {
+							e--;
+						}
+						starts[n] = s;
+						ends[n] = e;
+					}
+					n++;
+					start = i + 1;
+					continue;
+				}
+				if (ch != ' ') {
+					blank = false;
+				}
+			}
+			return blank && n == 1 ? 0 : n;
+		}
+
+	}
+
+	/**
+	 * Parses a single term (such as a cell of a fact file) with the ANTLR
+	 * parser.
+	 */
+	Term parseTerm(String text, int lineNo) throws ParseException {
+		Term[] ts = parseTerms(text, lineNo);
+		if (ts.length != 1) {
+			throw new ParseException(lineNo, "Expected a single term, but found: " + text);
+		}
+		return ts[0];
+	}
+
+	/**
+	 * Parses a single line of tab-separated terms with the ANTLR parser.
+	 */
+	private Term[] parseTerms(String text, int lineNo) throws ParseException {
+		if (termExtractor == null) {
+			termExtractor = new TermExtractor(pc);
+		}
+		FormulogParser parser = Parser.getParser(new StringReader(text + "\n"), true);
+		List<TabSeparatedTermLineContext> ls = Parser.parseTwoStage(parser, FormulogParser::tsvFile)
+				.tabSeparatedTermLine();
+		if (ls.size() != 1) {
+			throw new ParseException(lineNo, "Expected a single line of terms, but found: " + text);
+		}
+		try {
+			return termExtractor.extractArray(ls.get(0).term());
+		} catch (UncheckedParseException e) {
+			throw new ParseException(lineNo, e.getMessage());
+		}
+	}
+
+	Term[] checkFact(Term[] args, int lineNo) throws ParseException {
+		if (varChecker == null) {
+			varChecker = new VariableCheckPass(pc.symbolManager());
+		}
+		try {
+			return varChecker.checkFact(args);
+		} catch (VariableCheckPassException e) {
+			throw new ParseException(lineNo, e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a cell that holds a plain literal of the given kind, producing the
+	 * same term as the ANTLR parser would; returns null if the cell holds
+	 * anything else.
+	 */
+	private static Term readLiteral(ColumnKind kind, String line, int s, int e) {
+		if (s == e) {
+			return null;
+		}
+		char last = line.charAt(e - 1);
+		try {
+			switch (kind) {
+			case I32:
+				if (isHex(line, s, e)) {
+					return I32.make(Integer.parseUnsignedInt(line.substring(s + 2, e), 16));
+				} else if (isInt(line, s, e)) {
+					return I32.make(Integer.parseInt(line.substring(s, e)));
+				}
+				return null;
+			case I64:
+				if (last != 'l' && last != 'L') {
+					return null;
+				} else if (isHex(line, s, e - 1)) {
+					return I64.make(Long.parseUnsignedLong(line.substring(s + 2, e - 1), 16));
+				} else if (isInt(line, s, e - 1)) {
+					return I64.make(Long.parseLong(line.substring(s, e - 1)));
+				}
+				return null;
+			case FP32:
+				if (line.startsWith("fp32_", s)) {
+					switch (line.substring(s, e)) {
+					case "fp32_nan":
+						return FP32.make(Float.NaN);
+					case "fp32_pos_infinity":
+						return FP32.make(Float.POSITIVE_INFINITY);
+					case "fp32_neg_infinity":
+						return FP32.make(Float.NEGATIVE_INFINITY);
+					}
+				} else if ((last == 'f' || last == 'F') && isFloat(line, s, e - 1, false)) {
+					return FP32.make(Float.parseFloat(line.substring(s, e)));
+				}
+				return null;
+			case FP64:
+				if (line.startsWith("fp64_", s)) {
+					switch (line.substring(s, e)) {
+					case "fp64_nan":
+						return FP64.make(Double.NaN);
+					case "fp64_pos_infinity":
+						return FP64.make(Double.POSITIVE_INFINITY);
+					case "fp64_neg_infinity":
+						return FP64.make(Double.NEGATIVE_INFINITY);
+					}
+				} else if ((last == 'd' || last == 'D') && isFloat(line, s, e - 1, false)
+						|| isFloat(line, s, e, true)) {
+					return FP64.make(Double.parseDouble(line.substring(s, e)));
+				}
+				return null;
+			case STRING:
+				if (isString(line, s, e)) {
+					return StringTerm.make(line.substring(s + 1, e - 1));
+				}
+				return null;
+			case OTHER:
+				return null;
+			}
+		} catch (NumberFormatException exn) {
+			// Let the parser report it
+		}
+		return null;
+	}
+
+	private static boolean isDigit(char ch) {
+		return ch >= '0' && ch <= '9';
+	}
+
+	private static boolean isDigits(String line, int s, int e) {
+		if (s == e) {
+			return false;
+		}
+		for (int i = s; i < e; ++i) {
+			if (!isDigit(line.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipSign(String line, int s, int e) {
+		if (s < e && (line.charAt(s) == '+' || line.charAt(s) == '-')) {
+			return s + 1;
+		}
+		return s;
+	}
+
+	private static boolean isInt(String line, int s, int e) {
+		return isDigits(line, skipSign(line, s, e), e);
+	}
+
+	private static boolean isHex(String line, int s, int e) {
+		if (e - s < 3 || !line.startsWith("0x", s)) {
+			return false;
+		}
+		for (int i = s + 2; i < e; ++i) {
+			char ch = line.charAt(i);
+			if (!isDigit(ch) && (ch < 'a' || ch > 'f') && (ch < 'A' || ch > 'F')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks for a floating point literal without suffix: an optional sign,
+	 * digits with an optional fractional part (or just a fractional part), and
+	 * an optional exponent. If the literal must be fractional, a plain integer
+	 * does not count (the parser would read it as an i32).
+	 */
+	private static boolean isFloat(String line, int s, int e, boolean mustBeFractional) {
+		int i = skipSign(line, s, e);
+		int j = i;
+		while (j < e && isDigit(line.charAt(j))) {
+			j++;
+		}
+		boolean fractional = false;
+		if (j < e && line.charAt(j) == '.') {
+			int k = j + 1;
+			while (k < e && isDigit(line.charAt(k))) {
+				k++;
+			}
+			if (k == j + 1) {
+				return false;
+			}
+			fractional = true;
+			j = k;
+		} else if (j == i) {
+			return false;
+		}
+		if (j < e && (line.charAt(j) == 'e' || line.charAt(j) == 'E')) {
+			fractional = true;
+			j = skipSign(line, j + 1, e);
+			if (!isDigits(line, j, e)) {
+				return false;
+			}
+			j = e;
+		}
+		return j == e && (fractional || !mustBeFractional);
+	}
+
+	private static boolean isString(String line, int s, int e) {
+		if (e - s < 2 || line.charAt(s) != '"' || line.charAt(e - 1) != '"') {
+			return false;
+		}
+		for (int i = s + 1; i < e - 1; ++i) {
+			char ch = line.charAt(i);
+			if (ch == '\\') {
+				if (++i == e - 1) {
+					return false;
+				}
+			} else if (ch == '"' || ch == '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
 }
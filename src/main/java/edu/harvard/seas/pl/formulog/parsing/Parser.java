@@ -22,25 +22,47 @@ import java.io.FileNotFoundException;
  * #L%
  */
 
+import java.io.BufferedInputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
 
+import org.antlr.v4.runtime.ANTLRErrorStrategy;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.BufferedTokenStream;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
 import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.BasicProgram;
@@ -57,8 +79,22 @@ import edu.harvard.seas.pl.formulog.util.Pair;
 public class Parser {
 
 	private final ParsingContext pc = new ParsingContext();
-	
-	private FormulogParser getParser(Reader r, boolean isTsv) throws ParseException {
+	private final boolean sllFirst;
+
+	public Parser() {
+		this(Configuration.sllParsing);
+	}
+
+	/**
+	 * Creates a parser that either tries the fast SLL prediction mode before
+	 * full LL prediction (see {@link #parseTwoStage}), or uses full LL
+	 * prediction from the start.
+	 */
+	public Parser(boolean sllFirst) {
+		this.sllFirst = sllFirst;
+	}
+
+	static FormulogParser getParser(Reader r, boolean isTsv) throws ParseException {
 		try {
 			CharStream chars = CharStreams.fromReader(r);
 			FormulogLexer lexer = new FormulogLexer(chars);
@@ -69,6 +105,40 @@ public class Parser {
 		}
 	}
 
+	static <T> T parseTwoStage(FormulogParser parser, Function<FormulogParser, T> rule) {
+		return parseTwoStage(parser, rule, Configuration.sllParsing);
+	}
+
+	/**
+	 * Applies a grammar rule to the input of a parser. If <code>sllFirst</code>
+	 * is set, the input is first parsed with the SLL prediction mode, which is
+	 * much cheaper than full LL prediction but can fail on some valid inputs;
+	 * this first attempt bails out at the first syntax error, in which case the
+	 * input is parsed again with full LL prediction and the usual error
+	 * reporting and recovery. Both attempts (and all parsers) share the DFA cache
+	 * that ANTLR keeps statically for the generated parser, so predictions learned
+	 * while parsing one file speed up parsing the next.
+	 */
+	static <T> T parseTwoStage(FormulogParser parser, Function<FormulogParser, T> rule, boolean sllFirst) {
+		if (!sllFirst) {
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			return rule.apply(parser);
+		}
+		ANTLRErrorStrategy handler = parser.getErrorHandler();
+		parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		parser.removeErrorListeners();
+		parser.setErrorHandler(new BailErrorStrategy());
+		try {
+			return rule.apply(parser);
+		} catch (ParseCancellationException e) {
+			parser.reset();
+			parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+			parser.setErrorHandler(handler);
+			parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+			return rule.apply(parser);
+		}
+	}
+
 	public BasicProgram parse(Reader r) throws ParseException {
 		return parse(r, Collections.emptyList());
 	}
@@ -76,7 +146,7 @@ public class Parser {
 	public BasicProgram parse(Reader r, List<Path> inputDirs) throws ParseException {
 		try {
 			FormulogParser parser = getParser(r, false);
-			ProgContext progCtx = parser.prog();
+			ProgContext progCtx = parseTwoStage(parser, FormulogParser::prog, sllFirst);
 			Pair<BasicProgram, Set<RelationSymbol>> p = new TopLevelParser(pc).parse(progCtx);
 			BasicProgram prog = p.fst();
 			loadExternalEdbs(prog, p.snd(), inputDirs);
@@ -90,56 +160,307 @@ public class Parser {
 		Set<Term[]> facts = new HashSet<>();
 		FormulogParser parser = getParser(factStream, true);
 		FactFileParser fpp = new FactFileParser(pc);
-		fpp.loadFacts(parser.tsvFile(), sym.getArity(), facts);
+		fpp.loadFacts(parseTwoStage(parser, FormulogParser::tsvFile, sllFirst), sym.getArity(), facts);
 		return facts;
 	}
 	
+	/**
+	 * Loads the facts for the external relations of a program from the given
+	 * directories, adding them to the program's facts. Unlike facts loaded
+	 * while parsing, these facts are not type checked.
+	 */
+	public void loadExternalFacts(Program<UserPredicate, BasicRule> prog, List<Path> inputDirs)
+			throws ParseException {
+		Set<RelationSymbol> rels = new HashSet<>();
+		for (RelationSymbol sym : prog.getFactSymbols()) {
+			if (sym.isExternal()) {
+				rels.add(sym);
+			}
+		}
+		loadExternalEdbs(prog, rels, inputDirs);
+	}
+
 	private void loadExternalEdbs(Program<UserPredicate, BasicRule> prog, Set<RelationSymbol> rels, List<Path> inputDirs)
 			throws ParseException {
 		if (rels.isEmpty() || inputDirs.isEmpty()) {
 			return;
 		}
 		ExecutorService exec = Executors.newFixedThreadPool(Configuration.parallelism);
-		List<Future<?>> tasks = new ArrayList<>();
-		for (Path inputDir : inputDirs) {
-			for (RelationSymbol sym : rels) {
-				tasks.add(exec.submit(new Runnable() {
-
-					@Override
-					public void run() {
-						try {
-							readEdbFromFile(sym, inputDir, prog.getFacts(sym));
-						} catch (ParseException e) {
-							throw new UncheckedParseException(e);
-						}
+		try {
+			Map<RelationSymbol, List<Future<List<Term[]>>>> loads = new LinkedHashMap<>();
+			for (Path inputDir : inputDirs) {
+				for (RelationSymbol sym : rels) {
+					List<Future<List<Term[]>>> fs = loads.computeIfAbsent(sym, k -> new ArrayList<>());
+					for (Callable<List<Term[]>> task : loadTasks(sym, findFactFile(inputDir, sym))) {
+						fs.add(exec.submit(task));
+					}
+				}
+			}
+			// Each task parses into its own buffer; once they are all done, the
+			// buffers for a relation are merged into its fact set by a single task,
+			// so no two threads ever add to the same set.
+			List<Future<?>> merges = new ArrayList<>();
+			for (Map.Entry<RelationSymbol, List<Future<List<Term[]>>>> e : loads.entrySet()) {
+				List<List<Term[]>> bufs = new ArrayList<>();
+				for (Future<List<Term[]>> f : e.getValue()) {
+					bufs.add(f.get());
+				}
+				Set<Term[]> facts = prog.getFacts(e.getKey());
+				merges.add(exec.submit(() -> {
+					for (List<Term[]> buf : bufs) {
+						facts.addAll(buf);
 					}
-
 				}));
 			}
-		}
-		exec.shutdown();
-		try {
-			for (Future<?> task : tasks) {
-				task.get();
+			for (Future<?> merge : merges) {
+				merge.get();
 			}
 		} catch (InterruptedException e) {
 			throw new ParseException(0, e.getMessage());
 		} catch (ExecutionException e) {
 			Throwable cause = e.getCause();
+			if (cause instanceof ParseException) {
+				throw (ParseException) cause;
+			}
 			if (cause instanceof UncheckedParseException) {
 				throw new ParseException((UncheckedParseException) cause);
 			}
 			throw new ParseException(0, e.getMessage());
+		} finally {
+			exec.shutdownNow();
 		}
 	}
 
-	private void readEdbFromFile(RelationSymbol sym, Path inputDir, Set<Term[]> acc)
-			throws ParseException {
-		Path path = inputDir.resolve(sym.toString() + ".tsv");
-		try (FileReader fr = new FileReader(path.toFile())) {
-			FormulogParser parser = getParser(fr, true);
-			FactFileParser fpp = new FactFileParser(pc);
-			fpp.loadFacts(parser.tsvFile(), sym.getArity(), acc);
+	private static Path findFactFile(Path inputDir, RelationSymbol sym) {
+		Path path = inputDir.resolve(sym.toString() + BinaryFactFile.extension);
+		if (!Files.exists(path)) {
+			path = findTsvFile(inputDir, sym.toString());
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the tasks that load a fact file. An uncompressed tab-separated file
+	 * of at least twice {@link Configuration#factFileChunkSize} megabytes is split
+	 * at line boundaries into chunks of about that size, each of which is loaded
+	 * by its own task; any other file is loaded by a single task.
+	 */
+	private List<Callable<List<Term[]>>> loadTasks(RelationSymbol sym, Path path) throws ParseException {
+		List<Callable<List<Term[]>>> tasks = new ArrayList<>();
+		long chunkSize = Configuration.factFileChunkSize * (1L << 20);
+		try {
+			if (chunkSize > 0 && path.toString().endsWith(".tsv") && Files.exists(path)
+					&& Files.size(path) >= 2 * chunkSize) {
+				long[] bounds = splitAtLines(path, chunkSize);
+				for (int i = 0; i + 1 < bounds.length; ++i) {
+					long start = bounds[i];
+					long end = bounds[i + 1];
+					tasks.add(() -> loadChunk(sym, path, start, end));
+				}
+				return tasks;
+			}
+		} catch (IOException e) {
+			throw new ParseException(path.toString(), 0, e.getMessage());
+		}
+		tasks.add(() -> {
+			List<Term[]> buf = new ArrayList<>();
+			loadFacts(sym, path, buf);
+			return buf;
+		});
+		return tasks;
+	}
+
+	/**
+	 * Returns the offsets at which a file should be split into chunks of roughly
+	 * the given size so that every chunk starts at the beginning of a line. The
+	 * first offset is zero and the last is the size of the file.
+	 */
+	private static long[] splitAtLines(Path path, long chunkSize) throws IOException {
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = ch.size();
+			List<Long> bounds = new ArrayList<>();
+			bounds.add(0L);
+			ByteBuffer buf = ByteBuffer.allocate(1 << 12);
+			long pos = chunkSize;
+			while (pos < size) {
+				buf.clear();
+				int n = ch.read(buf, pos);
+				if (n <= 0) {
+					break;
+				}
+				int i = 0;
+				while (i < n && buf.get(i) != '\n') {
+					i++;
+				}
+				if (i == n) {
+					pos += n;
+					continue;
+				}
+				pos += i + 1;
+				if (pos < size) {
+					bounds.add(pos);
+				}
+				pos += chunkSize;
+			}
+			bounds.add(size);
+			long[] arr = new long[bounds.size()];
+			for (int i = 0; i < arr.length; ++i) {
+				arr[i] = bounds.get(i);
+			}
+			return arr;
+		}
+	}
+
+	private List<Term[]> loadChunk(RelationSymbol sym, Path path, long start, long end) throws ParseException {
+		List<Term[]> buf = new ArrayList<>();
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			ch.position(start);
+			InputStream in = new RangeInputStream(Channels.newInputStream(ch), end - start);
+			loadTsv(sym, new InputStreamReader(in), buf);
+		} catch (IOException e) {
+			throw new ParseException(path.toString(), 0, e.getMessage());
+		} catch (UncheckedParseException e) {
+			throw new ParseException(path.toString(), lineOffset(path, start) + e.getLineNo(), e.getMessage());
+		} catch (ParseException e) {
+			throw new ParseException(path.toString(), lineOffset(path, start) + e.getLineNo(), e.getMessage());
+		}
+		return buf;
+	}
+
+	/**
+	 * Counts the lines before an offset in a file, so that errors in a chunk can
+	 * be reported with line numbers relative to the whole file.
+	 */
+	private static int lineOffset(Path path, long offset) {
+		int lines = 0;
+		try (InputStream in = new RangeInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16),
+				offset)) {
+			int ch;
+			while ((ch = in.read()) != -1) {
+				if (ch == '\n') {
+					lines++;
+				}
+			}
+		} catch (IOException e) {
+			// Fall back to line numbers relative to the chunk.
+		}
+		return lines;
+	}
+
+	/**
+	 * An input stream that reads at most a fixed number of bytes from another
+	 * stream.
+	 */
+	private static class RangeInputStream extends FilterInputStream {
+
+		private long remaining;
+
+		public RangeInputStream(InputStream in, long len) {
+			super(in);
+			remaining = len;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long k = super.skip(Math.min(n, remaining));
+			remaining -= k;
+			return k;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+	}
+
+	/**
+	 * The suffixes of the compressed forms of a tab-separated fact file that can
+	 * be read, in the order in which they are looked for.
+	 */
+	public static final List<String> compressedSuffixes = Collections
+			.unmodifiableList(Arrays.asList(".gz", ".zip"));
+
+	/**
+	 * Returns the path of the tab-separated fact file for the relation with the
+	 * given name in a directory: <code>name.tsv</code>, if it exists, or otherwise
+	 * the first of its compressed forms that exists. If none exist, it returns the
+	 * path of the uncompressed file.
+	 */
+	public static Path findTsvFile(Path dir, String name) {
+		Path path = dir.resolve(name + ".tsv");
+		if (!Files.exists(path)) {
+			for (String suffix : compressedSuffixes) {
+				Path p = dir.resolve(name + ".tsv" + suffix);
+				if (Files.exists(p)) {
+					return p;
+				}
+			}
+		}
+		return path;
+	}
+
+	private static Reader openTsvFile(Path path) throws IOException {
+		String name = path.toString();
+		if (name.endsWith(".gz")) {
+			InputStream in = new GZIPInputStream(Files.newInputStream(path), 1 << 16);
+			return new InputStreamReader(new ReadAheadInputStream(in, path.getFileName().toString()));
+		}
+		if (name.endsWith(".zip")) {
+			ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+			if (in.getNextEntry() == null) {
+				in.close();
+				throw new IOException("Empty zip archive: " + path);
+			}
+			return new InputStreamReader(new ReadAheadInputStream(in, path.getFileName().toString()));
+		}
+		return new FileReader(path.toFile());
+	}
+
+	/**
+	 * Loads the facts for a relation from a file, which is either a binary fact
+	 * file (if its name ends in {@value BinaryFactFile#extension}) or a
+	 * tab-separated file. A tab-separated file ending in one of the
+	 * {@link #compressedSuffixes} is decompressed on a separate thread while it
+	 * is parsed.
+	 */
+	public void loadFacts(RelationSymbol sym, Path path, Collection<Term[]> acc) throws ParseException {
+		if (path.toString().endsWith(BinaryFactFile.extension)) {
+			try {
+				BinaryFactFile.load(new FactFileParser(pc), path, sym, acc);
+			} catch (IOException e) {
+				throw new ParseException(path.toString(), 0, e.getMessage());
+			} catch (ParseException e) {
+				throw new ParseException(path.toString(), e.getLineNo(), e.getMessage());
+			}
+			return;
+		}
+		try (Reader fr = openTsvFile(path)) {
+			loadTsv(sym, fr, acc);
 		} catch (FileNotFoundException e) {
 			throw new ParseException(0, "Could not find external fact file: " + path);
 		} catch (IOException e) {
@@ -151,4 +472,14 @@ public class Parser {
 		}
 	}
 
+	private void loadTsv(RelationSymbol sym, Reader r, Collection<Term[]> acc) throws ParseException, IOException {
+		FactFileParser fpp = new FactFileParser(pc);
+		if (Configuration.fastFactFiles) {
+			fpp.loadFacts(r, sym, acc);
+		} else {
+			FormulogParser parser = getParser(r, true);
+			fpp.loadFacts(parseTwoStage(parser, FormulogParser::tsvFile, sllFirst), sym.getArity(), acc);
+		}
+	}
+
 }
@@ -0,0 +1,149 @@
+package edu.harvard.seas.pl.formulog.parsing;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An input stream that reads ahead from another stream on a background thread.
+ * Wrapping a decompressing stream in one of these lets decompression of a fact
+ * file overlap with parsing it.
+ */
+class ReadAheadInputStream extends InputStream {
+
+	private static final int chunkSize = 1 << 16;
+	private static final int maxChunks = 16;
+	private static final byte[] eof = new byte[0];
+
+	private final InputStream in;
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(maxChunks);
+	private final Thread producer;
+	private volatile boolean closed;
+	private volatile IOException error;
+	private byte[] chunk;
+	private int pos;
+
+	public ReadAheadInputStream(InputStream in, String name) {
+		this.in = in;
+		producer = new Thread(this::produce, "formulog-read-ahead-" + name);
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private void produce() {
+		try {
+			while (!closed) {
+				byte[] buf = new byte[chunkSize];
+				int n = 0;
+				int k;
+				while (n < buf.length && (k = in.read(buf, n, buf.length - n)) != -1) {
+					n += k;
+				}
+				if (n > 0) {
+					put(n == buf.length ? buf : Arrays.copyOf(buf, n));
+				}
+				if (n < buf.length) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			// The stream was closed.
+		} finally {
+			try {
+				put(eof);
+			} catch (InterruptedException e) {
+				// The stream was closed.
+			}
+		}
+	}
+
+	private void put(byte[] buf) throws InterruptedException {
+		while (!closed) {
+			if (chunks.offer(buf, 100, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (chunk == eof) {
+			return false;
+		}
+		if (chunk == null || pos == chunk.length) {
+			try {
+				chunk = chunks.take();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			pos = 0;
+			if (chunk == eof) {
+				if (error != null) {
+					throw error;
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return chunk[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, chunk.length - pos);
+		System.arraycopy(chunk, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		producer.interrupt();
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		in.close();
+	}
+
+}
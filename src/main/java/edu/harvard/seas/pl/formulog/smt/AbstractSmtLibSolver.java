@@ -26,12 +26,16 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.harvard.seas.pl.formulog.Configuration;
@@ -48,36 +52,50 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 	protected final static Pair<Collection<SolverVariable>, Collection<SolverVariable>> emptyCollectionPair = new Pair<>(
 			Collections.emptyList(), Collections.emptyList());
 
-	private static final ExternalSolverProcessFactory solverFactory;
-	static {
-		switch (Configuration.smtSolver) {
+	private static final ExternalSolverProcessFactory defaultSolverFactory = getSolverFactory(Configuration.smtSolver);
+
+	public static ExternalSolverProcessFactory getSolverFactory(String solverName) {
+		switch (solverName) {
 		case "z3":
-			solverFactory = Z3ProcessFactory.get();
-			break;
+			return Z3ProcessFactory.get();
 		case "cvc4":
-			solverFactory = Cvc4ProcessFactory.get();
-			break;
+			return Cvc4ProcessFactory.get();
 		case "yices":
-			solverFactory = YicesProcessFactory.get();
-			break;
+			return YicesProcessFactory.get();
 		case "boolector":
-			solverFactory = BoolectorProcessFactory.get();
-			break;
+			return BoolectorProcessFactory.get();
+		case "standin":
+			return StandInProcessFactory.get();
 		default:
 			throw new AssertionError("impossible");
 		}
 	}
+
 	private static final AtomicInteger solverCnt = new AtomicInteger();
 
 	protected final int solverId = solverCnt.getAndIncrement();
 
 	protected SmtLibShim shim;
-	protected Process solver;
+	protected volatile Process solver;
 	private final PrintWriter log;
+	private final String solverName;
+	private final ExternalSolverProcessFactory solverFactory;
+	private Program<?, ?> prog;
+	private volatile SolverChannel channel;
 
 	protected static int taskCnt;
 
 	public AbstractSmtLibSolver() {
+		this(Configuration.smtSolver, defaultSolverFactory);
+	}
+
+	public AbstractSmtLibSolver(String solverName) {
+		this(solverName, getSolverFactory(solverName));
+	}
+
+	private AbstractSmtLibSolver(String solverName, ExternalSolverProcessFactory solverFactory) {
+		this.solverName = solverName;
+		this.solverFactory = solverFactory;
 		PrintWriter w = null;
 		if (Configuration.debugSmt) {
 			try {
@@ -96,15 +114,29 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 	@Override
 	public synchronized void start(Program<?, ?> prog) throws EvaluationException {
 		assert solver == null;
+		this.prog = prog;
 		try {
 			solver = solverFactory.newProcess(isIncremental());
 		} catch (IOException e) {
 			throw new AssertionError("Could not create external solver process:\n" + e);
 		}
-		BufferedReader reader = new BufferedReader(new InputStreamReader(solver.getInputStream()));
+		Reader reader;
+		if (Configuration.smtAsyncIo) {
+			try {
+				channel = SolverChannelSelector.get().register(solver);
+			} catch (IOException e) {
+				throw new AssertionError("Could not create channel for external solver process:\n" + e);
+			}
+			reader = channel;
+		} else {
+			reader = new BufferedReader(new InputStreamReader(solver.getInputStream()));
+		}
 		PrintWriter writer = new PrintWriter(solver.getOutputStream());
-		shim = new SmtLibShim(reader, writer, log);
+		shim = new SmtLibShim(reader, writer, log, solverName);
 		shim.initialize(prog, Configuration.smtDeclareAdts);
+		if (Configuration.smtLazyDeclarations) {
+			shim.declareLazily();
+		}
 		start();
 	}
 
@@ -113,11 +145,37 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 		assert solver != null;
 		solver.destroy();
 		solver = null;
+		if (channel != null) {
+			SolverChannelSelector.get().unregister(channel);
+			channel = null;
+		}
+	}
+
+	@Override
+	public void kill() {
+		Process p = solver;
+		if (p != null) {
+			p.destroyForcibly();
+		}
+	}
+
+	public synchronized void restart() throws EvaluationException {
+		assert prog != null;
+		if (solver != null) {
+			destroy();
+		}
+		start(prog);
+	}
+
+	public String getSolverName() {
+		return solverName;
 	}
 
 	@Override
 	public void finalize() {
-		destroy();
+		if (solver != null) {
+			destroy();
+		}
 	}
 
 	protected abstract void start() throws EvaluationException;
@@ -158,23 +216,188 @@ public abstract class AbstractSmtLibSolver implements SmtLibSolver {
 		try {
 			SmtStatus status = shim.checkSatAssuming(p.fst(), p.snd(), timeout);
 			if (debug) {
-				long evalTime = System.nanoTime() - start;
-				Configuration.recordSmtEvalTime(this, encodeTime, evalTime, status);
-				if (log != null) {
-					log.println("; time: " + evalTime / 1e6 + "ms");
-					log.flush();
-				}
+				recordEvalTime(encodeTime, System.nanoTime() - start, status);
 			}
 			Map<SolverVariable, Term> m = null;
 			if (status.equals(SmtStatus.SATISFIABLE) && getModel) {
 				m = shim.getModel();
 			}
+			return finishCall(status, m, taskId, taskName);
+		} catch (EvaluationException e) {
+			throw wrapException(e);
+		}
+	}
+
+	/**
+	 * Writes the queries to the solver back to back and only then reads the
+	 * results, so that the round trip to the solver is paid once per batch
+	 * instead of once per query.
+	 */
+	@Override
+	public synchronized void checkBatch(List<SmtQuery> queries, List<SmtResult> results)
+			throws EvaluationException {
+		if (!isIncremental() || Configuration.smtCheckSuccess) {
+			// Every command would be followed by a response that has to be read
+			// before the next command is sent
+			SmtLibSolver.super.checkBatch(queries, results);
+			return;
+		}
+		assert solver != null;
+		int start = 0;
+		while (start < queries.size()) {
+			// A model can only be requested right after its query has been
+			// checked, so a query that wants one ends the pipeline
+			int end = start;
+			while (end < queries.size() - 1 && !queries.get(end).getModel) {
+				end++;
+			}
+			checkPipelined(queries.subList(start, end + 1), results);
+			start = end + 1;
+		}
+	}
+
+	private void checkPipelined(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+		int n = queries.size();
+		int[] taskIds = new int[n];
+		String[] taskNames = new String[n];
+		long[] encodeTimes = new long[n];
+		boolean debug = Configuration.timeSmt || log != null;
+		try {
+			for (int i = 0; i < n; ++i) {
+				SmtQuery q = queries.get(i);
+				taskIds[i] = taskCnt++;
+				if (q.conjuncts.isEmpty()) {
+					continue;
+				}
+				taskNames[i] = "#" + solverId + ":" + taskIds[i] + " (thread #" + Thread.currentThread().getId() + ")";
+				shim.printComment("*** START CALL " + taskNames[i] + " ***");
+				long start = 0;
+				if (debug) {
+					start = System.nanoTime();
+				}
+				Pair<Collection<SolverVariable>, Collection<SolverVariable>> p = makeAssertions(q.conjuncts);
+				if (debug) {
+					encodeTimes[i] = System.nanoTime() - start;
+				}
+				shim.writeCheckSatAssuming(p.fst(), p.snd(), q.timeout);
+			}
+			shim.flush();
+			long sendTime = 0;
+			if (debug) {
+				sendTime = System.nanoTime();
+			}
+			for (int i = 0; i < n; ++i) {
+				SmtQuery q = queries.get(i);
+				if (taskNames[i] == null) {
+					Map<SolverVariable, Term> m = q.getModel ? Collections.emptyMap() : null;
+					results.add(makeResult(SmtStatus.SATISFIABLE, m, taskIds[i]));
+					continue;
+				}
+				SmtStatus status = shim.readCheckSatResult();
+				if (debug) {
+					recordEvalTime(encodeTimes[i], System.nanoTime() - sendTime, status);
+				}
+				Map<SolverVariable, Term> m = null;
+				if (status.equals(SmtStatus.SATISFIABLE) && q.getModel) {
+					m = shim.getModel();
+				}
+				shim.printComment("*** END CALL " + taskNames[i] + " ***\n");
+				results.add(makeResult(status, m, taskIds[i]));
+			}
 			cleanup();
-			shim.printComment("*** END CALL " + taskName + " ***\n");
-			return makeResult(status, m, taskId);
 		} catch (EvaluationException e) {
-			throw new EvaluationException("Problem with solver " + solverId + ":\n" + e.getMessage());
+			throw wrapException(e);
 		}
 	}
 
+	/**
+	 * Like {@link #check(Collection, boolean, int)}, except that when
+	 * asynchronous solver I/O is enabled the calling thread only encodes and
+	 * sends the query; the solver's response is handled once the selector
+	 * thread has buffered it. The solver must not be used for another call
+	 * until the returned future has completed.
+	 */
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> assertions, boolean getModel,
+			int timeout) {
+		SolverChannel ch = channel;
+		if (ch == null || assertions.isEmpty()) {
+			return SmtLibSolver.super.checkAsync(assertions, getModel, timeout);
+		}
+		int taskId;
+		String taskName;
+		boolean debug = Configuration.timeSmt || log != null;
+		long encodeTime = 0;
+		long sendTime = 0;
+		synchronized (this) {
+			assert solver != null;
+			taskId = taskCnt++;
+			taskName = "#" + solverId + ":" + taskId + " (thread #" + Thread.currentThread().getId() + ")";
+			shim.printComment("*** START CALL " + taskName + " ***");
+			long start = 0;
+			if (debug) {
+				start = System.nanoTime();
+			}
+			try {
+				Pair<Collection<SolverVariable>, Collection<SolverVariable>> p = makeAssertions(assertions);
+				if (debug) {
+					sendTime = System.nanoTime();
+					encodeTime = sendTime - start;
+				}
+				shim.sendCheckSatAssuming(p.fst(), p.snd(), timeout);
+			} catch (EvaluationException e) {
+				CompletableFuture<SmtResult> fut = new CompletableFuture<>();
+				fut.completeExceptionally(wrapException(e));
+				return fut;
+			}
+		}
+		long encodeTime2 = encodeTime;
+		long sendTime2 = sendTime;
+		return ch.awaitLine().thenComposeAsync(v -> {
+			synchronized (this) {
+				try {
+					SmtStatus status = shim.readCheckSatResult();
+					if (debug) {
+						recordEvalTime(encodeTime2, System.nanoTime() - sendTime2, status);
+					}
+					if (!status.equals(SmtStatus.SATISFIABLE) || !getModel) {
+						return CompletableFuture.completedFuture(finishCall(status, null, taskId, taskName));
+					}
+					shim.sendGetModel();
+				} catch (EvaluationException e) {
+					throw new CompletionException(wrapException(e));
+				}
+			}
+			return ch.awaitSExp().thenApplyAsync(v2 -> {
+				synchronized (this) {
+					try {
+						Map<SolverVariable, Term> m = shim.readModel();
+						return finishCall(SmtStatus.SATISFIABLE, m, taskId, taskName);
+					} catch (EvaluationException e) {
+						throw new CompletionException(wrapException(e));
+					}
+				}
+			});
+		});
+	}
+
+	private void recordEvalTime(long encodeTime, long evalTime, SmtStatus status) {
+		Configuration.recordSmtEvalTime(this, encodeTime, evalTime, status);
+		if (log != null) {
+			log.println("; time: " + evalTime / 1e6 + "ms");
+			log.flush();
+		}
+	}
+
+	private SmtResult finishCall(SmtStatus status, Map<SolverVariable, Term> m, int taskId, String taskName)
+			throws EvaluationException {
+		cleanup();
+		shim.printComment("*** END CALL " + taskName + " ***\n");
+		return makeResult(status, m, taskId);
+	}
+
+	private EvaluationException wrapException(EvaluationException e) {
+		return new EvaluationException("Problem with solver " + solverId + ":\n" + e.getMessage());
+	}
+
 }
@@ -20,91 +20,313 @@ package edu.harvard.seas.pl.formulog.smt;
  * #L%
  */
 
+import java.util.BitSet;
 import java.util.Collection;
-
-
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.Program;
 import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
-import edu.harvard.seas.pl.formulog.util.Pair;
 
 public class BestMatchSmtManager implements SmtLibSolver {
 
-	private final CheckSatAssumingSolver[] solvers;
-	private final AtomicIntegerArray statuses;
 	private static final int cacheCap = Configuration.smtCacheSize;
 
+	private volatile Program<?, ?> prog;
+
+	/*
+	 * The fields below are guarded by the lock. The index maps each cached
+	 * conjunct to the solvers that hold it, so routing a query only costs as
+	 * much as the query's own cache hits. A slot without a solver is either
+	 * empty or has a solver starting up in it.
+	 */
+	private final Object lock = new Object();
+	private final SmtLibSolver[] solvers;
+	private final Map<SmtLibTerm, BitSet> index = new HashMap<>();
+	private final int[] cacheSizes;
+	private final boolean[] busy;
+	private final boolean[] starting;
+	private final long[] lastUsed;
+	private int numFree;
+	private int numStarting;
+	private int numWaiting;
+	private EvaluationException startFailure;
+	private boolean destroyed;
+	private ScheduledFuture<?> retirement;
+
 	public BestMatchSmtManager(int size) {
-		solvers = new CheckSatAssumingSolver[size];
-		statuses = new AtomicIntegerArray(size);
+		if (size <= 0) {
+			throw new IllegalArgumentException("Cannot have non-positive number of solvers.");
+		}
+		solvers = new SmtLibSolver[size];
+		cacheSizes = new int[size];
+		busy = new boolean[size];
+		starting = new boolean[size];
+		lastUsed = new long[size];
 	}
 
 	@Override
 	public SmtResult check(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout) throws EvaluationException {
-		while (true) {
-			PriorityQueue<Pair<Integer, Double>> q = new PriorityQueue<>(solvers.length, cmp);
-			for (int i = 0; i < solvers.length; ++i) {
-				double score = score(conjuncts, solvers[i]);
-				q.add(new Pair<>(i, score));
-			}
-			while (!q.isEmpty()) {
-				int i = q.remove().fst();
-				if (statuses.compareAndSet(i, 0, 1)) {
-					try {
-						return solvers[i].check(conjuncts, getModel, timeout);
-					} finally {
-						statuses.set(i, 0);
+		long waitStart = 0;
+		if (Configuration.timeSmt) {
+			waitStart = System.nanoTime();
+		}
+		int i;
+		try {
+			i = acquire(conjuncts);
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtWaitTime(System.nanoTime() - waitStart);
+		}
+		try {
+			return solvers[i].check(conjuncts, getModel, timeout);
+		} finally {
+			release(i);
+		}
+	}
+
+	private int acquire(Collection<SmtLibTerm> conjuncts) throws InterruptedException, EvaluationException {
+		synchronized (lock) {
+			numWaiting++;
+			try {
+				boolean retried = false;
+				while (numFree == 0) {
+					if (startFailure != null && numStarting == 0 && !anyBusy()) {
+						// There is no live solver left, but a failed start only
+						// fails this call if a fresh attempt on its behalf fails too
+						if (retried) {
+							throw startFailure;
+						}
+						retried = true;
+						startFailure = null;
+						startSolver();
+					} else if (ElasticPools.enabled && numStarting < numWaiting) {
+						// Every call that has to wait is a reason to grow the pool
+						startSolver();
 					}
+					lock.wait();
 				}
+			} finally {
+				numWaiting--;
 			}
+			int[] hits = new int[solvers.length];
+			for (SmtLibTerm conjunct : conjuncts) {
+				BitSet holders = index.get(conjunct);
+				if (holders != null) {
+					for (int i = holders.nextSetBit(0); i >= 0; i = holders.nextSetBit(i + 1)) {
+						hits[i]++;
+					}
+				}
+			}
+			int best = -1;
+			double bestScore = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < solvers.length; ++i) {
+				if (solvers[i] == null || busy[i]) {
+					continue;
+				}
+				double score = score(hits[i], conjuncts.size(), cacheSizes[i]);
+				if (score > bestScore) {
+					best = i;
+					bestScore = score;
+				}
+			}
+			busy[best] = true;
+			numFree--;
+			if (ElasticPools.enabled && numFree + numStarting < ElasticPools.spares) {
+				startSolver();
+			}
+			return best;
 		}
 	}
 
-	private static final Comparator<Pair<Integer, Double>> cmp = new Comparator<Pair<Integer, Double>>() {
+	private void release(int i) {
+		synchronized (lock) {
+			busy[i] = false;
+			if (destroyed) {
+				solvers[i].destroy();
+				solvers[i] = null;
+				return;
+			}
+			lastUsed[i] = System.nanoTime();
+			numFree++;
+			lock.notify();
+		}
+	}
 
-		@Override
-		public int compare(Pair<Integer, Double> o1, Pair<Integer, Double> o2) {
-			return Double.compare(o2.snd(), o1.snd());
+	/*
+	 * Reward a solver for the fraction of the query it already has cached, and
+	 * penalize it for the cached conjuncts the query does not need (since they
+	 * push the solver toward its next cache eviction).
+	 */
+	private static double score(int hits, int numConjuncts, int cacheSize) {
+		double score1 = numConjuncts == 0 ? 0 : 3.0 * hits / numConjuncts;
+		double score2 = cacheCap == 0 ? 0 : -((double) (cacheSize - hits) / cacheCap);
+		return score1 + score2;
+	}
+
+	private SmtLibSolver makeSolver(int slot) {
+		IndexUpdater updater = new IndexUpdater(slot);
+		return new SelfHealingSolver(() -> {
+			CheckSatAssumingSolver s = new CheckSatAssumingSolver();
+			s.setCacheListener(updater);
+			return s;
+		});
+	}
+
+	/*
+	 * Must be called while holding the lock.
+	 */
+	private void startSolver() {
+		int slot = -1;
+		for (int i = 0; i < solvers.length; ++i) {
+			if (solvers[i] == null && !starting[i]) {
+				slot = i;
+				break;
+			}
 		}
+		if (slot < 0) {
+			return;
+		}
+		int i = slot;
+		starting[i] = true;
+		numStarting++;
+		ElasticPools.startInBackground(() -> {
+			SmtLibSolver solver = makeSolver(i);
+			EvaluationException failure = null;
+			try {
+				solver.start(prog);
+			} catch (EvaluationException e) {
+				failure = e;
+			}
+			synchronized (lock) {
+				starting[i] = false;
+				numStarting--;
+				if (failure != null) {
+					// If there is no solver to wait for, fail the waiting calls
+					if (numFree == 0 && numStarting == 0 && !anyBusy()) {
+						startFailure = failure;
+						lock.notifyAll();
+					}
+					return;
+				}
+				if (destroyed) {
+					solver.destroy();
+					return;
+				}
+				startFailure = null;
+				solvers[i] = solver;
+				lastUsed[i] = System.nanoTime();
+				numFree++;
+				lock.notify();
+			}
+		});
+	}
 
-	};
+	private boolean anyBusy() {
+		for (boolean b : busy) {
+			if (b) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-	private double score(Collection<SmtLibTerm> conjuncts, CheckSatAssumingSolver solver) {
-		Set<SmtLibTerm> cache = solver.getCache();
-		int cacheSize = cache.size();
-		if (cacheSize == 0) {
-			return 0;
+	private void retireIdleSolvers() {
+		synchronized (lock) {
+			long now = System.nanoTime();
+			for (int i = 0; i < solvers.length; ++i) {
+				if (solvers[i] != null && !busy[i] && ElasticPools.isExpired(lastUsed[i], now)) {
+					// Destroy the solver while holding the lock, so that its
+					// cache leaves the index before anything else uses the slot
+					solvers[i].destroy();
+					solvers[i] = null;
+					numFree--;
+				}
+			}
+		}
+	}
+
+	private class IndexUpdater implements CheckSatAssumingSolver.CacheListener {
+
+		private final int solver;
+
+		public IndexUpdater(int solver) {
+			this.solver = solver;
+		}
+
+		@Override
+		public void added(SmtLibTerm conjunct) {
+			synchronized (lock) {
+				BitSet holders = index.get(conjunct);
+				if (holders == null) {
+					holders = new BitSet(solvers.length);
+					index.put(conjunct, holders);
+				}
+				if (!holders.get(solver)) {
+					holders.set(solver);
+					cacheSizes[solver]++;
+				}
+			}
 		}
-		int hits = 0;
-		for (SmtLibTerm conjunct : conjuncts) {
-			if (cache.contains(conjunct)) {
-				hits++;
+
+		@Override
+		public void evicted(SmtLibTerm conjunct) {
+			synchronized (lock) {
+				BitSet holders = index.get(conjunct);
+				if (holders == null || !holders.get(solver)) {
+					return;
+				}
+				holders.clear(solver);
+				cacheSizes[solver]--;
+				if (holders.isEmpty()) {
+					index.remove(conjunct);
+				}
 			}
 		}
-		double score1 = 3 * hits / conjuncts.size();
-		double score2 = -((cacheSize - hits) / cacheCap);
-		return score1 + score2;
+
 	}
 
 	@Override
 	public void start(Program<?, ?> prog) throws EvaluationException {
+		this.prog = prog;
+		if (ElasticPools.enabled) {
+			synchronized (lock) {
+				for (int i = 0; i < Math.max(1, ElasticPools.spares); ++i) {
+					startSolver();
+				}
+				retirement = ElasticPools.scheduleRetirement(this::retireIdleSolvers);
+			}
+			return;
+		}
 		for (int i = 0; i < solvers.length; ++i) {
-			CheckSatAssumingSolver solver = new CheckSatAssumingSolver();
+			SmtLibSolver solver = makeSolver(i);
 			solver.start(prog);
-			solvers[i] = solver;
+			synchronized (lock) {
+				solvers[i] = solver;
+				numFree++;
+			}
 		}
 	}
 
 	@Override
 	public void destroy() {
-		for (SmtLibSolver solver : solvers) {
-			solver.destroy();
+		synchronized (lock) {
+			destroyed = true;
+			if (retirement != null) {
+				retirement.cancel(false);
+			}
+			// Solvers that are in use are destroyed when they are released
+			for (int i = 0; i < solvers.length; ++i) {
+				if (solvers[i] != null && !busy[i]) {
+					solvers[i].destroy();
+					solvers[i] = null;
+				}
+			}
 		}
 	}
 
@@ -20,10 +20,14 @@ package edu.harvard.seas.pl.formulog.smt;
  * #L%
  */
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -35,7 +39,6 @@ import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Terms;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
-import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.GlobalSymbolManager;
 import edu.harvard.seas.pl.formulog.symbols.parameterized.BuiltInConstructorSymbolBase;
 import edu.harvard.seas.pl.formulog.symbols.parameterized.Param;
@@ -48,13 +51,38 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 
 	private final Map<SmtLibTerm, SolverVariable> indicatorVars = new HashMap<>();
 	private int nextVarId;
+	private CacheListener cacheListener;
+
+	/*
+	 * Unless hard resets are used, indicator assertions are grouped into
+	 * generations, each living in its own push level; the last generation is
+	 * the one on top of the solver's stack. When the cache overflows, the top
+	 * generation is popped. Conjuncts in it that were hit since they were
+	 * asserted are re-asserted into the generation below (as far as it has
+	 * room for them), so conjuncts that keep being used sink toward the bottom
+	 * of the stack and survive later evictions, while conjuncts used only once
+	 * are dropped.
+	 */
+	private static final boolean generational = !Configuration.smtCacheHardResets
+			&& Configuration.smtCacheGenerations > 1;
+	private static final int generationCap = Math.max(1,
+			Configuration.smtCacheSize / Math.max(1, Configuration.smtCacheGenerations));
+	private final Deque<List<SmtLibTerm>> generations = new ArrayDeque<>();
+	private final Set<SmtLibTerm> hot = new HashSet<>();
+
+	public CheckSatAssumingSolver() {
+		super();
+	}
+
+	public CheckSatAssumingSolver(String solverName) {
+		super(solverName);
+	}
 
 	private void clearCache() throws EvaluationException {
 		if (Configuration.timeSmt) {
 			Configuration.recordCsaCacheClear(solverId);
 		}
-		indicatorVars.clear();
-		nextVarId = 0;
+		forgetCache();
 		if (Configuration.smtCacheHardResets) {
 			shim.reset();
 			start();
@@ -64,10 +92,73 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 		}
 	}
 
+	private void forgetCache() {
+		if (cacheListener != null) {
+			for (SmtLibTerm conjunct : indicatorVars.keySet()) {
+				cacheListener.evicted(conjunct);
+			}
+		}
+		indicatorVars.clear();
+		hot.clear();
+		generations.clear();
+		generations.add(new ArrayList<>());
+		nextVarId = 0;
+	}
+
+	private void evictGenerations() throws EvaluationException {
+		int evicted = 0;
+		int survived = 0;
+		// Leave room for a fresh generation
+		while (indicatorVars.size() > Configuration.smtCacheSize - generationCap && generations.size() > 1) {
+			List<SmtLibTerm> survivors = new ArrayList<>();
+			List<SmtLibTerm> top = generations.removeLast();
+			int room = generationCap - generations.getLast().size();
+			for (SmtLibTerm conjunct : top) {
+				indicatorVars.remove(conjunct);
+				if (hot.remove(conjunct) && survivors.size() < room) {
+					survivors.add(conjunct);
+				} else {
+					evicted++;
+					if (cacheListener != null) {
+						cacheListener.evicted(conjunct);
+					}
+				}
+			}
+			shim.pop();
+			List<SmtLibTerm> gen = generations.getLast();
+			for (SmtLibTerm conjunct : survivors) {
+				SolverVariable x = makeIndicatorVar(conjunct);
+				indicatorVars.put(conjunct, x);
+				shim.makeGuardedAssertion(x, conjunct);
+				gen.add(conjunct);
+			}
+			survived += survivors.size();
+		}
+		if (indicatorVars.size() > Configuration.smtCacheSize - generationCap) {
+			// Everything has been squeezed into the bottom generation
+			clearCache();
+			return;
+		}
+		shim.push();
+		generations.addLast(new ArrayList<>());
+		if (Configuration.timeSmt) {
+			Configuration.recordCsaCacheEviction(solverId, evicted, survived);
+		}
+	}
+
 	public Set<SmtLibTerm> getCache() {
 		return indicatorVars.keySet();
 	}
 
+	/**
+	 * Registers a listener that is told whenever a conjunct enters or leaves
+	 * this solver's cache. The listener is called from whichever thread is
+	 * using the solver.
+	 */
+	public void setCacheListener(CacheListener listener) {
+		cacheListener = listener;
+	}
+
 	@Override
 	protected Pair<Collection<SolverVariable>, Collection<SolverVariable>> makeAssertions(
 			Collection<SmtLibTerm> formula) throws EvaluationException {
@@ -79,12 +170,20 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 			SolverVariable x = indicatorVars.get(conjunct);
 			if (x != null) {
 				hits++;
+				hot.add(conjunct);
 			} else {
 				misses++;
+				if (generational && generations.getLast().size() >= generationCap) {
+					shim.push();
+					generations.addLast(new ArrayList<>());
+				}
 				x = makeIndicatorVar(conjunct);
 				indicatorVars.put(conjunct, x);
-				SmtLibTerm imp = makeImp(x, conjunct);
-				shim.makeAssertion(imp);
+				generations.getLast().add(conjunct);
+				if (cacheListener != null) {
+					cacheListener.added(conjunct);
+				}
+				shim.makeGuardedAssertion(x, conjunct);
 			}
 			onVars.add(x);
 		}
@@ -100,11 +199,6 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 		return new Pair<>(onVars, offVars);
 	}
 
-	private SmtLibTerm makeImp(SolverVariable x, SmtLibTerm assertion) {
-		Term[] args = { x, assertion };
-		return (SmtLibTerm) Constructors.make(BuiltInConstructorSymbol.SMT_IMP, args);
-	}
-
 	private SolverVariable makeIndicatorVar(SmtLibTerm assertion) {
 		Term[] args = Terms.singletonArray(Terms.makeDummyTerm(nextVarId++));
 		ParameterizedConstructorSymbol sym = GlobalSymbolManager
@@ -116,12 +210,19 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 	@Override
 	protected void cleanup() throws EvaluationException {
 		if (indicatorVars.size() > Configuration.smtCacheSize) {
-			clearCache();
+			if (generational) {
+				evictGenerations();
+			} else {
+				clearCache();
+			}
 		}
 	}
 
 	@Override
 	protected void start() throws EvaluationException {
+		// The process might be fresh (e.g., after a restart), so nothing we
+		// remember asserting to it can be trusted
+		forgetCache();
 		shim.setLogic(Configuration.smtLogic);
 		shim.makeDeclarations();
 		if (!Configuration.smtCacheHardResets) {
@@ -129,9 +230,25 @@ public class CheckSatAssumingSolver extends AbstractSmtLibSolver {
 		}
 	}
 
+	@Override
+	public synchronized void destroy() {
+		if (solver != null) {
+			forgetCache();
+		}
+		super.destroy();
+	}
+
 	@Override
 	protected boolean isIncremental() {
 		return true;
 	}
 
+	public interface CacheListener {
+
+		void added(SmtLibTerm conjunct);
+
+		void evicted(SmtLibTerm conjunct);
+
+	}
+
 }
@@ -21,6 +21,8 @@ package edu.harvard.seas.pl.formulog.smt;
  */
 
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.Program;
@@ -55,6 +57,55 @@ public class DoubleCheckingSolver implements SmtLibSolver {
 		return res;
 	}
 
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> formula, boolean getModel, int timeout) {
+		return inner.checkAsync(formula, getModel, timeout).thenCompose(res -> {
+			if (!res.status.equals(SmtStatus.UNKNOWN)) {
+				return CompletableFuture.completedFuture(res);
+			}
+			return checker.checkAsync(formula, getModel, timeout).thenApply(res2 -> {
+				if (Configuration.timeSmt) {
+					Configuration.recordSmtDoubleCheck(!res2.status.equals(SmtStatus.UNKNOWN));
+				}
+				return res2;
+			});
+		});
+	}
+
+	@Override
+	public void checkBatch(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+		int base = results.size();
+		try {
+			inner.checkBatch(queries, results);
+		} catch (EvaluationException e) {
+			// Keep only the answers that do not need a second opinion; the caller
+			// asks again for the rest
+			for (int i = base; i < results.size(); ++i) {
+				if (results.get(i).status.equals(SmtStatus.UNKNOWN)) {
+					results.subList(i, results.size()).clear();
+					break;
+				}
+			}
+			throw e;
+		}
+		for (int i = base; i < results.size(); ++i) {
+			if (results.get(i).status.equals(SmtStatus.UNKNOWN)) {
+				SmtQuery q = queries.get(i - base);
+				SmtResult res2 = checker.check(q.conjuncts, q.getModel, q.timeout);
+				if (Configuration.timeSmt) {
+					Configuration.recordSmtDoubleCheck(!res2.status.equals(SmtStatus.UNKNOWN));
+				}
+				results.set(i, res2);
+			}
+		}
+	}
+
+	@Override
+	public void kill() {
+		inner.kill();
+		checker.kill();
+	}
+
 	@Override
 	public void destroy() {
 		inner.destroy();
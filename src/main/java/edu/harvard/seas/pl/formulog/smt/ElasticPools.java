@@ -0,0 +1,76 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+
+/**
+ * Shared machinery for solver pools whose size follows demand. Such a pool
+ * starts solvers in the background (so that declaring the program to a new
+ * solver does not hold up an SMT call), keeps a few started solvers in reserve,
+ * and retires solvers that have sat idle for too long.
+ */
+final class ElasticPools {
+
+	private ElasticPools() {
+		throw new AssertionError("impossible");
+	}
+
+	public static final boolean enabled = Configuration.smtElasticPool;
+	public static final int spares = Configuration.smtPoolSpares;
+	public static final long idleTimeout = Configuration.smtPoolIdleTimeout;
+
+	private static final ExecutorService starter = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "smt-pool-starter");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "smt-pool-reaper");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public static void startInBackground(Runnable task) {
+		starter.execute(task);
+	}
+
+	/**
+	 * Periodically runs a task that retires the solvers of a pool that have been
+	 * idle for longer than the idle timeout.
+	 */
+	public static ScheduledFuture<?> scheduleRetirement(Runnable task) {
+		long period = Math.max(1, idleTimeout / 2);
+		return reaper.scheduleWithFixedDelay(task, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	public static boolean isExpired(long lastUsed, long now) {
+		return now - lastUsed > TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+	}
+
+}
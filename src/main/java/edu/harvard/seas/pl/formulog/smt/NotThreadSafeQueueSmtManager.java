@@ -54,7 +54,7 @@ public class NotThreadSafeQueueSmtManager implements SmtLibSolver {
 	@Override
 	public void start(Program<?, ?> prog) throws EvaluationException {
 		for (int i = 0; i < solvers.length; ++i) {
-			SmtLibSolver solver = maker.get();
+			SmtLibSolver solver = new SelfHealingSolver(maker);
 			solver.start(prog);
 			solvers[i] = solver;
 		}
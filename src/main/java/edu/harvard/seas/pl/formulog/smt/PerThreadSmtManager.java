@@ -22,16 +22,19 @@ package edu.harvard.seas.pl.formulog.smt;
 
 
 import java.util.Collection;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import edu.harvard.seas.pl.formulog.ast.Program;
 import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
+import edu.harvard.seas.pl.formulog.util.Util;
 
 public class PerThreadSmtManager implements SmtLibSolver {
 
 	private final ThreadLocal<SmtLibSolver> subManager;
+	private final Set<SmtLibSolver> allSubManagers = Util.concurrentSet();
 	private volatile Program<?, ?> prog;
 
 	public PerThreadSmtManager(Supplier<SmtLibSolver> managerMaker) {
@@ -45,6 +48,7 @@ public class PerThreadSmtManager implements SmtLibSolver {
 				} catch (EvaluationException e) {
 					throw new UncheckedEvaluationException(e.getMessage());
 				}
+				allSubManagers.add(m);
 				return m;
 			}
 
@@ -68,7 +72,11 @@ public class PerThreadSmtManager implements SmtLibSolver {
 
 	@Override
 	public void destroy() {
-		subManager.get().destroy();
+		// Destroy the managers of all threads, not just this one
+		for (SmtLibSolver m : allSubManagers) {
+			m.destroy();
+		}
+		allSubManagers.clear();
 	}
 
 }
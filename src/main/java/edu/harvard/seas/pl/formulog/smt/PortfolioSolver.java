@@ -0,0 +1,355 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.util.LruCache;
+import edu.harvard.seas.pl.formulog.util.Pair;
+
+/**
+ * Sends each query to several solver backends at once and returns the first
+ * definitive (i.e., non-unknown) answer. Losing backends are killed and
+ * restarted in the background. The portfolio keeps track of which backend
+ * tends to win for each query shape, and once one clearly dominates a shape
+ * it sends queries of that shape only to that backend (with the occasional
+ * race to keep the statistics honest); if that backend answers unknown, the
+ * query is raced on the others.
+ * 
+ * Boolector does not support <code>check-sat-assuming</code>, so it is run
+ * with a fresh solver process per query, as when it is the main solver.
+ * Several threads can use the portfolio at the same time, as long as they
+ * need different backends. A backend that cannot be restarted after losing a
+ * race drops out of the portfolio.
+ */
+public class PortfolioSolver implements SmtLibSolver {
+
+	private static final int minSamplesBeforePredicting = 16;
+	private static final double dominanceThreshold = 0.9;
+	private static final int exploreInterval = 8;
+	private static final int maxShapes = 4096;
+	private static final int maxConjuncts = 1 << 16;
+
+	private final List<String> solverNames;
+	private final Function<String, SmtLibSolver> makeBackend;
+	private final SmtLibSolver[] backends;
+	/*
+	 * A backend is used only by the holder of its permit, which is held from
+	 * the start of a call until the backend is ready for the next one (i.e.,
+	 * until it has been restarted, if the call was cancelled).
+	 */
+	private final Semaphore[] permits;
+	private final AtomicReferenceArray<Throwable> restartFailures;
+	private Program<?, ?> prog;
+	private final LruCache<QueryShape, ShapeStats> statsByShape = new LruCache<>(maxShapes);
+	private final LruCache<SmtLibTerm, QueryShape> shapesByConjunct = new LruCache<>(maxConjuncts);
+	private final ExecutorService exec = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	public PortfolioSolver(List<String> solverNames) {
+		this(solverNames, PortfolioSolver::makeBackend);
+	}
+
+	PortfolioSolver(List<String> solverNames, Function<String, SmtLibSolver> makeBackend) {
+		if (solverNames.isEmpty()) {
+			throw new IllegalArgumentException("Cannot have an empty portfolio.");
+		}
+		this.solverNames = new ArrayList<>(solverNames);
+		this.makeBackend = makeBackend;
+		backends = new SmtLibSolver[solverNames.size()];
+		permits = new Semaphore[solverNames.size()];
+		for (int i = 0; i < permits.length; ++i) {
+			permits[i] = new Semaphore(1);
+		}
+		restartFailures = new AtomicReferenceArray<>(solverNames.size());
+	}
+
+	private static SmtLibSolver makeBackend(String solverName) {
+		if (solverName.equals("boolector")) {
+			return new SingleShotSolver(solverName);
+		}
+		return new CheckSatAssumingSolver(solverName);
+	}
+
+	@Override
+	public synchronized void start(Program<?, ?> prog) throws EvaluationException {
+		this.prog = prog;
+		for (int i = 0; i < backends.length; ++i) {
+			SmtLibSolver backend = makeBackend.apply(solverNames.get(i));
+			backend.start(prog);
+			backends[i] = backend;
+		}
+	}
+
+	@Override
+	public SmtResult check(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		QueryShape shape = QueryShape.of(conjuncts, shapesByConjunct);
+		ShapeStats stats = statsByShape.computeIfAbsent(shape, k -> new ShapeStats(backends.length));
+		int favorite = stats.predictWinner();
+		if (favorite < 0) {
+			return race(conjuncts, getModel, timeout, stats, -1);
+		}
+		if (!acquire(favorite)) {
+			return race(conjuncts, getModel, timeout, stats, favorite);
+		}
+		SmtResult res;
+		try {
+			res = backends[favorite].check(conjuncts, getModel, timeout);
+		} catch (EvaluationException | RuntimeException e) {
+			restart(favorite, null);
+			if (backends.length == 1) {
+				throw e;
+			}
+			// The favorite crashed; see if anyone else can answer
+			return race(conjuncts, getModel, timeout, stats, favorite);
+		}
+		permits[favorite].release();
+		if (Configuration.timeSmt) {
+			Configuration.recordPortfolioCall(solverNames.get(favorite), false);
+		}
+		if (!res.status.equals(SmtStatus.UNKNOWN)) {
+			stats.recordWin(favorite);
+			return res;
+		}
+		if (backends.length == 1) {
+			return res;
+		}
+		// The favorite has had its chance; see if anyone else can do better
+		try {
+			SmtResult other = race(conjuncts, getModel, timeout, stats, favorite);
+			return other.status.equals(SmtStatus.UNKNOWN) ? res : other;
+		} catch (EvaluationException e) {
+			return res;
+		}
+	}
+
+	/**
+	 * Races the query on every backend except <code>skip</code> (which can be
+	 * -1). The permits of the backends are taken in order, so that concurrent
+	 * races cannot deadlock.
+	 */
+	private SmtResult race(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout, ShapeStats stats,
+			int skip) throws EvaluationException {
+		ExecutorCompletionService<Pair<Integer, SmtResult>> ecs = new ExecutorCompletionService<>(exec);
+		List<Future<Pair<Integer, SmtResult>>> futures = new ArrayList<>();
+		SmtResult unknown = null;
+		EvaluationException exn = null;
+		int winner = -1;
+		SmtResult res = null;
+		try {
+			int entrants = 0;
+			for (int i = 0; i < backends.length; ++i) {
+				if (i == skip || !acquire(i)) {
+					futures.add(null);
+					continue;
+				}
+				int j = i;
+				futures.add(ecs.submit(() -> new Pair<>(j, backends[j].check(conjuncts, getModel, timeout))));
+				entrants++;
+			}
+			if (entrants == 0) {
+				throw new EvaluationException("No solver left in portfolio to answer query");
+			}
+			for (int n = 0; n < entrants && winner < 0; ++n) {
+				try {
+					Pair<Integer, SmtResult> p = ecs.take().get();
+					if (p.snd().status.equals(SmtStatus.UNKNOWN)) {
+						unknown = p.snd();
+					} else {
+						winner = p.fst();
+						res = p.snd();
+					}
+				} catch (InterruptedException e) {
+					throw new EvaluationException(e);
+				} catch (ExecutionException e) {
+					if (exn == null) {
+						Throwable cause = e.getCause();
+						exn = cause instanceof EvaluationException ? (EvaluationException) cause
+								: new EvaluationException(cause);
+					}
+				}
+			}
+		} finally {
+			for (int i = 0; i < futures.size(); ++i) {
+				Future<Pair<Integer, SmtResult>> fut = futures.get(i);
+				if (fut == null) {
+					continue;
+				}
+				if (!fut.isDone()) {
+					cancel(i, fut);
+				} else if (failed(fut)) {
+					restart(i, null);
+				} else {
+					permits[i].release();
+				}
+			}
+		}
+		if (Configuration.timeSmt) {
+			Configuration.recordPortfolioCall(winner < 0 ? null : solverNames.get(winner), true);
+		}
+		if (winner >= 0) {
+			stats.recordWin(winner);
+			return res;
+		}
+		if (unknown != null) {
+			return unknown;
+		}
+		throw exn;
+	}
+
+	/**
+	 * Kills the backend out from under the call <code>fut</code> and restarts
+	 * it in the background.
+	 */
+	private void cancel(int i, Future<?> fut) {
+		backends[i].kill();
+		restart(i, fut);
+	}
+
+	/**
+	 * Restarts backend <code>i</code> in the background once the call
+	 * <code>fut</code> (which can be null) has returned, handing back its permit
+	 * once it is ready. A backend that cannot be restarted drops out of the
+	 * portfolio.
+	 */
+	private void restart(int i, Future<?> fut) {
+		SmtLibSolver backend = backends[i];
+		exec.submit(() -> {
+			if (fut != null) {
+				try {
+					fut.get();
+				} catch (InterruptedException | ExecutionException e) {
+					// Expected: we just killed the process out from under it
+				}
+			}
+			try {
+				backend.destroy();
+				backend.start(prog);
+			} catch (Throwable e) {
+				restartFailures.set(i, e);
+				System.err.println(
+						"WARNING: Could not restart solver " + solverNames.get(i) + " in portfolio:\n" + e.getMessage());
+			} finally {
+				permits[i].release();
+			}
+			return null;
+		});
+	}
+
+	private static boolean failed(Future<?> fut) {
+		try {
+			fut.get();
+			return false;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Waits for the permit of backend <code>i</code>; returns false (without
+	 * holding the permit) if the backend has dropped out.
+	 */
+	private boolean acquire(int i) throws EvaluationException {
+		try {
+			permits[i].acquire();
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		}
+		if (restartFailures.get(i) != null) {
+			permits[i].release();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void kill() {
+		for (SmtLibSolver backend : backends) {
+			if (backend != null) {
+				backend.kill();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void destroy() {
+		exec.shutdownNow();
+		for (int i = 0; i < backends.length; ++i) {
+			if (backends[i] != null && restartFailures.get(i) == null) {
+				backends[i].destroy();
+			}
+		}
+	}
+
+	private static class ShapeStats {
+
+		private final int[] wins;
+		private int total;
+		private int predictions;
+
+		public ShapeStats(int numBackends) {
+			wins = new int[numBackends];
+		}
+
+		public synchronized void recordWin(int backend) {
+			wins[backend]++;
+			total++;
+		}
+
+		public synchronized int predictWinner() {
+			if (total < minSamplesBeforePredicting) {
+				return -1;
+			}
+			if (++predictions % exploreInterval == 0) {
+				return -1;
+			}
+			for (int i = 0; i < wins.length; ++i) {
+				if (wins[i] >= dominanceThreshold * total) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+	}
+
+}
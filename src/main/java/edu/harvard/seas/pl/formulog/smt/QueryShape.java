@@ -0,0 +1,138 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.util.LruCache;
+
+/**
+ * A coarse summary of a query: the non-variable constructor symbols it uses
+ * (which capture the theories involved), plus the (log-scale) number of
+ * conjuncts and distinct subterms.
+ */
+final class QueryShape {
+
+	private final Set<ConstructorSymbol> symbols;
+	private final int numConjunctsBucket;
+	private final int size;
+	private final int sizeBucket;
+
+	public QueryShape(Collection<SmtLibTerm> conjuncts) {
+		symbols = new HashSet<>();
+		Set<Term> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (SmtLibTerm conjunct : conjuncts) {
+			collect(conjunct, seen);
+		}
+		numConjunctsBucket = log2(conjuncts.size());
+		size = seen.size();
+		sizeBucket = log2(size);
+	}
+
+	private QueryShape(Set<ConstructorSymbol> symbols, int numConjuncts, int size) {
+		this.symbols = symbols;
+		numConjunctsBucket = log2(numConjuncts);
+		this.size = size;
+		sizeBucket = log2(size);
+	}
+
+	/**
+	 * Summarizes a query from the summaries of its conjuncts, which are looked
+	 * up in (or else added to) <code>byConjunct</code>; this way, only the
+	 * conjuncts that have not been seen recently are walked. Subterms shared
+	 * between conjuncts are counted once for each of them.
+	 */
+	public static QueryShape of(Collection<SmtLibTerm> conjuncts, LruCache<SmtLibTerm, QueryShape> byConjunct) {
+		Set<ConstructorSymbol> symbols = new HashSet<>();
+		int size = 0;
+		for (SmtLibTerm conjunct : conjuncts) {
+			QueryShape shape = byConjunct.get(conjunct);
+			if (shape == null) {
+				shape = new QueryShape(Collections.singletonList(conjunct));
+				byConjunct.put(conjunct, shape);
+			}
+			symbols.addAll(shape.symbols);
+			size += shape.size;
+		}
+		return new QueryShape(symbols, conjuncts.size(), size);
+	}
+
+	/**
+	 * The number of distinct subterms in the query (counted as described in
+	 * {@link #of} for shapes built that way).
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void collect(Term t, Set<Term> seen) {
+		if (!seen.add(t) || !(t instanceof Constructor) || t instanceof SolverVariable) {
+			return;
+		}
+		Constructor c = (Constructor) t;
+		symbols.add(c.getSymbol());
+		for (Term arg : c.getArgs()) {
+			collect(arg, seen);
+		}
+	}
+
+	private static int log2(int n) {
+		return 31 - Integer.numberOfLeadingZeros(n);
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + numConjunctsBucket;
+		result = prime * result + sizeBucket;
+		result = prime * result + symbols.hashCode();
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		QueryShape other = (QueryShape) obj;
+		if (numConjunctsBucket != other.numConjunctsBucket)
+			return false;
+		if (sizeBucket != other.sizeBucket)
+			return false;
+		if (!symbols.equals(other.symbols))
+			return false;
+		return true;
+	}
+
+}
@@ -20,56 +20,372 @@ package edu.harvard.seas.pl.formulog.smt;
  * #L%
  */
 
-
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
 import java.util.function.Supplier;
 
+import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.Program;
 import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 
 public class QueueSmtManager implements SmtLibSolver {
 
-	private final ArrayBlockingQueue<SmtLibSolver> solvers;
+	private static final int batchSize = Configuration.smtBatchSize;
+
+	/*
+	 * Drains that no caller is waiting to run are run here, and not in the
+	 * common pool, since a drain blocks on the solver for as long as it takes to
+	 * answer the queries.
+	 */
+	private static final ExecutorService drainer = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "smt-queue-drainer");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final int maxSize;
 	private final Supplier<SmtLibSolver> maker;
+	private volatile Program<?, ?> prog;
+
+	/*
+	 * The fields below are guarded by the waiters. Idle solvers are handed out
+	 * most recently used first, so that surplus solvers stay at the front of the
+	 * queue until they are retired.
+	 */
+	private final Deque<CompletableFuture<SmtLibSolver>> waiters = new ArrayDeque<>();
+	private final Deque<IdleSolver> idle = new ArrayDeque<>();
+	private final Set<SmtLibSolver> live = new HashSet<>();
+	private final Deque<PendingQuery> pending = new ArrayDeque<>();
+	private int starting;
+	private boolean destroyed;
+	private ScheduledFuture<?> retirement;
 
 	public QueueSmtManager(int size, Supplier<SmtLibSolver> maker) {
 		if (size <= 0) {
 			throw new IllegalArgumentException("Cannot have non-positive number of solvers.");
 		}
-		solvers = new ArrayBlockingQueue<>(size);
+		maxSize = size;
 		this.maker = maker;
 	}
 
 	@Override
 	public SmtResult check(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout)
 			throws EvaluationException {
+		if (batchSize > 1) {
+			CompletableFuture<SmtResult> fut = submit(new SmtQuery(conjuncts, getModel, timeout));
+			drain();
+			try {
+				awaitCompletion(fut);
+				return fut.get();
+			} catch (InterruptedException e) {
+				throw new EvaluationException(e);
+			} catch (ExecutionException e) {
+				throw new EvaluationException(e.getCause());
+			}
+		}
+		long waitStart = 0;
+		if (Configuration.timeSmt) {
+			waitStart = System.nanoTime();
+		}
 		SmtLibSolver solver;
 		try {
-			solver = solvers.take();
+			CompletableFuture<SmtLibSolver> fut = acquire();
+			awaitCompletion(fut);
+			solver = fut.get();
 		} catch (InterruptedException e) {
 			throw new EvaluationException(e);
+		} catch (ExecutionException e) {
+			throw new EvaluationException(e.getCause());
+		}
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtWaitTime(System.nanoTime() - waitStart);
+		}
+		try {
+			return solver.check(conjuncts, getModel, timeout);
+		} finally {
+			release(solver);
+		}
+	}
+
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> conjuncts, boolean getModel,
+			int timeout) {
+		if (batchSize > 1) {
+			CompletableFuture<SmtResult> fut = submit(new SmtQuery(conjuncts, getModel, timeout));
+			drainer.execute(this::drain);
+			return fut;
+		}
+		return acquire().thenCompose(solver -> solver.checkAsync(conjuncts, getModel, timeout)
+				.whenComplete((res, exn) -> release(solver)));
+	}
+
+	/*
+	 * Waits for the future as a managed block, so that an evaluation thread of
+	 * a fork-join pool that waits here for a solver (or for another thread to
+	 * send its query) is made up for by the pool.
+	 */
+	private static void awaitCompletion(CompletableFuture<?> fut) throws InterruptedException {
+		ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+
+			@Override
+			public boolean block() throws InterruptedException {
+				try {
+					fut.get();
+				} catch (ExecutionException e) {
+					// Reported by the caller
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() {
+				return fut.isDone();
+			}
+
+		});
+	}
+
+	private CompletableFuture<SmtResult> submit(SmtQuery q) {
+		PendingQuery pq = new PendingQuery(q);
+		synchronized (waiters) {
+			pending.add(pq);
+		}
+		return pq.result;
+	}
+
+	/*
+	 * When batching, queries wait in the pending queue instead of waiting for a
+	 * solver. Whichever thread gets hold of an idle solver sends it the queries
+	 * that have piled up, a batch at a time, until there are none left.
+	 */
+	private void drain() {
+		while (true) {
+			SmtLibSolver solver;
+			List<PendingQuery> batch = new ArrayList<>();
+			synchronized (waiters) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				IdleSolver s = idle.pollLast();
+				if (s == null) {
+					// The thread using the busy solver(s) will get to the queries
+					if (ElasticPools.enabled && starting == 0) {
+						startSolver();
+					}
+					return;
+				}
+				solver = s.solver;
+				while (batch.size() < batchSize && !pending.isEmpty()) {
+					PendingQuery pq = pending.poll();
+					batch.add(pq);
+					if (pq.query.getModel) {
+						break;
+					}
+				}
+			}
+			List<SmtQuery> queries = new ArrayList<>();
+			for (PendingQuery pq : batch) {
+				queries.add(pq.query);
+			}
+			List<SmtResult> results = new ArrayList<>();
+			Throwable failure = null;
+			try {
+				solver.checkBatch(queries, results);
+			} catch (EvaluationException | RuntimeException e) {
+				failure = e;
+			}
+			// The queries answered before a failure keep their answers
+			for (int i = 0; i < batch.size(); ++i) {
+				PendingQuery pq = batch.get(i);
+				if (i < results.size()) {
+					pq.result.complete(results.get(i));
+				} else {
+					pq.result.completeExceptionally(failure);
+				}
+			}
+			synchronized (waiters) {
+				if (destroyed) {
+					live.remove(solver);
+					solver.destroy();
+					return;
+				}
+				idle.addLast(new IdleSolver(solver, System.nanoTime()));
+			}
+		}
+	}
+
+	private CompletableFuture<SmtLibSolver> acquire() {
+		synchronized (waiters) {
+			IdleSolver s = idle.pollLast();
+			if (s != null) {
+				if (ElasticPools.enabled && idle.size() + starting < ElasticPools.spares) {
+					startSolver();
+				}
+				return CompletableFuture.completedFuture(s.solver);
+			}
+			CompletableFuture<SmtLibSolver> fut = new CompletableFuture<>();
+			waiters.add(fut);
+			// Every call that has to wait is a reason to grow the pool
+			if (ElasticPools.enabled && starting < waiters.size()) {
+				startSolver();
+			}
+			return fut;
+		}
+	}
+
+	private void release(SmtLibSolver solver) {
+		CompletableFuture<SmtLibSolver> waiter;
+		synchronized (waiters) {
+			if (destroyed) {
+				live.remove(solver);
+				solver.destroy();
+				return;
+			}
+			waiter = waiters.poll();
+			if (waiter == null) {
+				idle.addLast(new IdleSolver(solver, System.nanoTime()));
+				if (!pending.isEmpty()) {
+					// A solver has just started up with queries waiting for it
+					drainer.execute(this::drain);
+				}
+				return;
+			}
+		}
+		// Hand the solver directly to the longest-waiting asynchronous call
+		waiter.complete(solver);
+	}
+
+	/*
+	 * Must be called while holding the waiters.
+	 */
+	private void startSolver() {
+		if (live.size() + starting >= maxSize) {
+			return;
+		}
+		starting++;
+		ElasticPools.startInBackground(() -> {
+			SmtLibSolver solver = new SelfHealingSolver(maker);
+			try {
+				solver.start(prog);
+			} catch (EvaluationException e) {
+				startFailed(e);
+				return;
+			}
+			synchronized (waiters) {
+				starting--;
+				live.add(solver);
+			}
+			release(solver);
+		});
+	}
+
+	private void startFailed(EvaluationException e) {
+		List<CompletableFuture<SmtLibSolver>> doomed = new ArrayList<>();
+		synchronized (waiters) {
+			starting--;
+			// If there is no solver to wait for, fail the waiting calls
+			if (live.isEmpty() && starting == 0) {
+				doomed.addAll(waiters);
+				waiters.clear();
+			}
+		}
+		for (CompletableFuture<SmtLibSolver> waiter : doomed) {
+			waiter.completeExceptionally(e);
+		}
+	}
+
+	private void retireIdleSolvers() {
+		List<SmtLibSolver> retired = new ArrayList<>();
+		synchronized (waiters) {
+			long now = System.nanoTime();
+			for (Iterator<IdleSolver> it = idle.iterator(); it.hasNext();) {
+				IdleSolver s = it.next();
+				if (!ElasticPools.isExpired(s.lastUsed, now)) {
+					break;
+				}
+				it.remove();
+				live.remove(s.solver);
+				retired.add(s.solver);
+			}
+		}
+		for (SmtLibSolver solver : retired) {
+			solver.destroy();
 		}
-		SmtResult res = solver.check(conjuncts, getModel, timeout);
-		solvers.add(solver);
-		return res;
 	}
 
 	@Override
 	public void start(Program<?, ?> prog) throws EvaluationException {
-		while (solvers.remainingCapacity() > 0) {
-			SmtLibSolver solver = maker.get();
+		this.prog = prog;
+		if (ElasticPools.enabled) {
+			synchronized (waiters) {
+				for (int i = 0; i < Math.max(1, ElasticPools.spares); ++i) {
+					startSolver();
+				}
+				retirement = ElasticPools.scheduleRetirement(this::retireIdleSolvers);
+			}
+			return;
+		}
+		for (int i = 0; i < maxSize; ++i) {
+			SmtLibSolver solver = new SelfHealingSolver(maker);
 			solver.start(prog);
-			solvers.add(solver);
+			synchronized (waiters) {
+				live.add(solver);
+				idle.add(new IdleSolver(solver, System.nanoTime()));
+			}
 		}
 	}
 
 	@Override
 	public void destroy() {
-		for (SmtLibSolver solver : solvers) {
-			solver.destroy();
+		List<IdleSolver> toDestroy;
+		synchronized (waiters) {
+			destroyed = true;
+			if (retirement != null) {
+				retirement.cancel(false);
+			}
+			toDestroy = new ArrayList<>(idle);
+			idle.clear();
+		}
+		// Solvers that are in use are destroyed when they are released
+		for (IdleSolver s : toDestroy) {
+			s.solver.destroy();
+		}
+	}
+
+	private static class PendingQuery {
+
+		public final SmtQuery query;
+		public final CompletableFuture<SmtResult> result = new CompletableFuture<>();
+
+		public PendingQuery(SmtQuery query) {
+			this.query = query;
 		}
+
+	}
+
+	private static class IdleSolver {
+
+		public final SmtLibSolver solver;
+		public final long lastUsed;
+
+		public IdleSolver(SmtLibSolver solver, long lastUsed) {
+			this.solver = solver;
+			this.lastUsed = lastUsed;
+		}
+
 	}
 
 }
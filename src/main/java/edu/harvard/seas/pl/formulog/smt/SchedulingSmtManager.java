@@ -0,0 +1,278 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.util.Collection;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.util.LruCache;
+
+/**
+ * Decides the order in which queries get one of the solvers of a pool, instead
+ * of serving them first come, first served. The cost of a query is estimated
+ * from how long earlier queries of the same {@link QueryShape} took to solve.
+ * Waiting queries are ordered by their arrival time plus their estimated cost,
+ * so that cheap queries go first but no query waits forever.
+ * 
+ * Queries estimated to take longer than <code>smtExpensiveQueryMs</code> are
+ * sent to a separate pool of solvers, if there is one, so that they do not
+ * hold up the main pool. With <code>smtAdaptiveTimeouts</code>, a query whose
+ * shape has always been solved quickly is given a timeout that is a multiple
+ * of the longest time that shape has taken so far (if that is shorter than its
+ * own timeout); a shape stops being treated this way once such a query comes
+ * back unknown. Such an unknown is marked as
+ * {@link SmtResult#timeoutTightened}, so that it is not memoized.
+ * 
+ * Statistics are kept for the most recently seen shapes only.
+ */
+public class SchedulingSmtManager implements SmtLibSolver {
+
+	private static final double newSampleWeight = 0.25;
+	private static final int minSamplesBeforeTightening = 16;
+	private static final int tightTimeoutFactor = 8;
+	private static final int minTightTimeout = 100;
+	private static final int maxShapes = 4096;
+	private static final int maxConjuncts = 1 << 16;
+
+	private final SmtLibSolver main;
+	private final int slots;
+	private final SmtLibSolver expensive;
+	private final double expensiveThreshold = Configuration.smtExpensiveQueryMs;
+	private final LruCache<QueryShape, ShapeStats> statsByShape = new LruCache<>(maxShapes);
+	private final LruCache<SmtLibTerm, QueryShape> shapesByConjunct = new LruCache<>(maxConjuncts);
+
+	/*
+	 * The fields below are guarded by the waiting queue.
+	 */
+	private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+	private int busy;
+	private long nextSeq;
+
+	/**
+	 * Schedules queries for <code>main</code>, a pool of <code>slots</code>
+	 * solvers, sending expensive ones to <code>expensive</code> (which may be
+	 * null).
+	 */
+	public SchedulingSmtManager(SmtLibSolver main, int slots, SmtLibSolver expensive) {
+		if (slots <= 0) {
+			throw new IllegalArgumentException("Cannot have non-positive number of solvers.");
+		}
+		this.main = main;
+		this.slots = slots;
+		this.expensive = expensive;
+	}
+
+	@Override
+	public void start(Program<?, ?> prog) throws EvaluationException {
+		main.start(prog);
+		if (expensive != null) {
+			expensive.start(prog);
+		}
+	}
+
+	@Override
+	public SmtResult check(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		ShapeStats stats = statsFor(conjuncts);
+		double cost = stats.estimate();
+		int tightTimeout = stats.tightTimeout(timeout);
+		if (expensive != null && cost >= expensiveThreshold) {
+			record(true, tightTimeout);
+			return run(expensive, stats, conjuncts, getModel, timeout, tightTimeout);
+		}
+		record(false, tightTimeout);
+		try {
+			acquire(cost).get();
+		} catch (InterruptedException e) {
+			throw new EvaluationException(e);
+		} catch (ExecutionException e) {
+			throw new EvaluationException(e.getCause());
+		}
+		try {
+			return run(main, stats, conjuncts, getModel, timeout, tightTimeout);
+		} finally {
+			release();
+		}
+	}
+
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> conjuncts, boolean getModel,
+			int timeout) {
+		ShapeStats stats = statsFor(conjuncts);
+		double cost = stats.estimate();
+		int tightTimeout = stats.tightTimeout(timeout);
+		if (expensive != null && cost >= expensiveThreshold) {
+			record(true, tightTimeout);
+			return runAsync(expensive, stats, conjuncts, getModel, timeout, tightTimeout);
+		}
+		record(false, tightTimeout);
+		return acquire(cost).thenCompose(v -> runAsync(main, stats, conjuncts, getModel, timeout, tightTimeout)
+				.whenComplete((res, exn) -> release()));
+	}
+
+	private ShapeStats statsFor(Collection<SmtLibTerm> conjuncts) {
+		QueryShape shape = QueryShape.of(conjuncts, shapesByConjunct);
+		return statsByShape.computeIfAbsent(shape, k -> new ShapeStats());
+	}
+
+	private SmtResult run(SmtLibSolver solver, ShapeStats stats, Collection<SmtLibTerm> conjuncts,
+			boolean getModel, int timeout, int tightTimeout) throws EvaluationException {
+		long start = System.nanoTime();
+		SmtResult res = solver.check(conjuncts, getModel, Math.min(timeout, tightTimeout));
+		stats.record(System.nanoTime() - start, res.status, tightTimeout < timeout);
+		return markTightened(res, timeout, tightTimeout);
+	}
+
+	private CompletableFuture<SmtResult> runAsync(SmtLibSolver solver, ShapeStats stats,
+			Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout, int tightTimeout) {
+		long start = System.nanoTime();
+		return solver.checkAsync(conjuncts, getModel, Math.min(timeout, tightTimeout)).thenApply(res -> {
+			stats.record(System.nanoTime() - start, res.status, tightTimeout < timeout);
+			return markTightened(res, timeout, tightTimeout);
+		});
+	}
+
+	private static SmtResult markTightened(SmtResult res, int timeout, int tightTimeout) {
+		if (tightTimeout >= timeout) {
+			return res;
+		}
+		return new SmtResult(res.status, res.model, res.solverId, res.taskId, true);
+	}
+
+	private void record(boolean expensive, int tightTimeout) {
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtScheduling(expensive, tightTimeout < Integer.MAX_VALUE);
+		}
+	}
+
+	private CompletableFuture<Void> acquire(double cost) {
+		synchronized (waiting) {
+			if (busy < slots) {
+				busy++;
+				return CompletableFuture.completedFuture(null);
+			}
+			Ticket t = new Ticket(System.nanoTime() / 1e6 + cost, nextSeq++);
+			waiting.add(t);
+			return t.fut;
+		}
+	}
+
+	private void release() {
+		Ticket next;
+		synchronized (waiting) {
+			next = waiting.poll();
+			if (next == null) {
+				busy--;
+				return;
+			}
+		}
+		// The slot passes straight to the next query
+		next.fut.complete(null);
+	}
+
+	@Override
+	public void kill() {
+		main.kill();
+		if (expensive != null) {
+			expensive.kill();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		main.destroy();
+		if (expensive != null) {
+			expensive.destroy();
+		}
+	}
+
+	private static class Ticket implements Comparable<Ticket> {
+
+		public final double priority;
+		public final long seq;
+		public final CompletableFuture<Void> fut = new CompletableFuture<>();
+
+		public Ticket(double priority, long seq) {
+			this.priority = priority;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Ticket other) {
+			int cmp = Double.compare(priority, other.priority);
+			return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+		}
+
+	}
+
+	private static class ShapeStats {
+
+		private int samples;
+		private double avgMs;
+		private double maxDefinitiveMs;
+		private boolean tighteningFailed;
+
+		/**
+		 * The expected solving time (in milliseconds) of a query of this shape;
+		 * shapes that have not been seen yet are assumed to be cheap.
+		 */
+		public synchronized double estimate() {
+			return avgMs;
+		}
+
+		/**
+		 * The timeout to use instead of the requested one (if it is shorter), or
+		 * Integer.MAX_VALUE if the requested one should be kept.
+		 */
+		public synchronized int tightTimeout(int timeout) {
+			if (!Configuration.smtAdaptiveTimeouts || tighteningFailed || samples < minSamplesBeforeTightening) {
+				return Integer.MAX_VALUE;
+			}
+			double t = Math.max(minTightTimeout, tightTimeoutFactor * maxDefinitiveMs);
+			return t < timeout ? (int) t : Integer.MAX_VALUE;
+		}
+
+		public synchronized void record(long nanos, SmtStatus status, boolean tightened) {
+			double ms = nanos / 1e6;
+			avgMs = samples == 0 ? ms : (1 - newSampleWeight) * avgMs + newSampleWeight * ms;
+			samples++;
+			if (status.equals(SmtStatus.UNKNOWN)) {
+				if (tightened) {
+					tighteningFailed = true;
+					if (Configuration.timeSmt) {
+						Configuration.recordSmtTightenedUnknown();
+					}
+				}
+			} else {
+				maxDefinitiveMs = Math.max(maxDefinitiveMs, ms);
+			}
+		}
+
+	}
+
+}
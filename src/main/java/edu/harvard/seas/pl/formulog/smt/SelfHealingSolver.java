@@ -0,0 +1,251 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+
+/**
+ * Supervises a solver on behalf of a solver pool. A call with a timeout of its
+ * own is given a wall-clock deadline enforced from the Java side (shortly after
+ * that timeout), so that a wedged solver cannot block a thread forever; calls
+ * without a timeout only get one if <code>smtDeadline</code> is set. A call
+ * that overruns its deadline has its solver killed and replaced by a fresh one
+ * (which repeats the declarations for the program), and is answered with
+ * unknown, as if the solver had timed out. A call whose solver fails for some
+ * other reason (e.g., its process crashed) is retried on a fresh solver.
+ */
+public class SelfHealingSolver implements SmtLibSolver {
+
+	// Give solvers a chance to enforce the timeout they have been given
+	// themselves before the watchdog steps in
+	private static final int deadlineGrace = 1000;
+
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "smt-watchdog");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Supplier<SmtLibSolver> maker;
+	private volatile SmtLibSolver inner;
+	private Program<?, ?> prog;
+
+	public SelfHealingSolver(Supplier<SmtLibSolver> maker) {
+		this.maker = maker;
+	}
+
+	@Override
+	public synchronized void start(Program<?, ?> prog) throws EvaluationException {
+		this.prog = prog;
+		SmtLibSolver solver = maker.get();
+		solver.start(prog);
+		inner = solver;
+	}
+
+	@Override
+	public SmtResult check(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout)
+			throws EvaluationException {
+		for (int attempt = 0;; ++attempt) {
+			SmtLibSolver solver = inner;
+			AtomicBoolean timedOut = new AtomicBoolean();
+			ScheduledFuture<?> alarm = setAlarm(solver, deadlineFor(timeout), timedOut);
+			SmtResult res;
+			try {
+				res = solver.check(conjuncts, getModel, timeout);
+			} catch (EvaluationException e) {
+				cancelAlarm(alarm);
+				res = recover(solver, e, timedOut.get(), attempt);
+				if (res == null) {
+					continue;
+				}
+				return res;
+			}
+			cancelAlarm(alarm);
+			if (timedOut.get()) {
+				// The alarm went off just as the call finished
+				restart(solver, true);
+			}
+			return res;
+		}
+	}
+
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout) {
+		return checkAsync(conjuncts, getModel, timeout, 0);
+	}
+
+	private CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout,
+			int attempt) {
+		SmtLibSolver solver = inner;
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> alarm = setAlarm(solver, deadlineFor(timeout), timedOut);
+		return solver.checkAsync(conjuncts, getModel, timeout).handle((res, exn) -> {
+			cancelAlarm(alarm);
+			try {
+				if (exn == null) {
+					if (timedOut.get()) {
+						restart(solver, true);
+					}
+					return CompletableFuture.completedFuture(res);
+				}
+				SmtResult res2 = recover(solver, unwrap(exn), timedOut.get(), attempt);
+				if (res2 != null) {
+					return CompletableFuture.completedFuture(res2);
+				}
+				return checkAsync(conjuncts, getModel, timeout, attempt + 1);
+			} catch (EvaluationException e) {
+				throw new CompletionException(e);
+			}
+		}).thenCompose(fut -> fut);
+	}
+
+	@Override
+	public void checkBatch(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+		long deadline = 0;
+		for (SmtQuery q : queries) {
+			long d = deadlineFor(q.timeout);
+			if (d <= 0) {
+				deadline = 0;
+				break;
+			}
+			deadline += d;
+		}
+		SmtLibSolver solver = inner;
+		AtomicBoolean timedOut = new AtomicBoolean();
+		ScheduledFuture<?> alarm = setAlarm(solver, deadline, timedOut);
+		int base = results.size();
+		try {
+			solver.checkBatch(queries, results);
+		} catch (EvaluationException e) {
+			cancelAlarm(alarm);
+			restart(solver, timedOut.get());
+			if (timedOut.get()) {
+				// The solver was stuck on the first unanswered query
+				results.add(new SmtResult(SmtStatus.UNKNOWN, null, -1, -1));
+			}
+			// Fall back to checking the other unanswered queries one at a time,
+			// each with its own deadline and retries
+			SmtLibSolver.super.checkBatch(queries.subList(results.size() - base, queries.size()), results);
+			return;
+		}
+		cancelAlarm(alarm);
+		if (timedOut.get()) {
+			restart(solver, true);
+		}
+	}
+
+	private static Throwable unwrap(Throwable exn) {
+		if (exn instanceof CompletionException && exn.getCause() != null) {
+			return exn.getCause();
+		}
+		return exn;
+	}
+
+	/**
+	 * Replaces a solver whose call failed with <code>exn</code>, and returns the
+	 * result to give for the call, or null if the call should be retried. A call
+	 * that overran its deadline would most likely overrun it again, so it is
+	 * not retried.
+	 */
+	private SmtResult recover(SmtLibSolver solver, Throwable exn, boolean timedOut, int attempt)
+			throws EvaluationException {
+		restart(solver, timedOut);
+		if (timedOut) {
+			return new SmtResult(SmtStatus.UNKNOWN, null, -1, -1);
+		}
+		if (attempt < Configuration.smtMaxRetries) {
+			return null;
+		}
+		if (exn instanceof EvaluationException) {
+			throw (EvaluationException) exn;
+		}
+		throw new EvaluationException(exn);
+	}
+
+	/*
+	 * Returns the number of milliseconds a query with the given timeout may
+	 * take, or 0 if there is no limit (i.e., the query has no timeout of its own
+	 * and smtDeadline is not set).
+	 */
+	private static long deadlineFor(int timeout) {
+		long deadline = Configuration.smtDeadline;
+		if (timeout >= 0 && timeout < Integer.MAX_VALUE) {
+			long t = (long) timeout + deadlineGrace;
+			deadline = deadline > 0 ? Math.min(deadline, t) : t;
+		}
+		return deadline;
+	}
+
+	private ScheduledFuture<?> setAlarm(SmtLibSolver solver, long deadline, AtomicBoolean timedOut) {
+		if (deadline <= 0) {
+			return null;
+		}
+		return watchdog.schedule(() -> {
+			timedOut.set(true);
+			solver.kill();
+		}, deadline, TimeUnit.MILLISECONDS);
+	}
+
+	private static void cancelAlarm(ScheduledFuture<?> alarm) {
+		if (alarm != null) {
+			alarm.cancel(false);
+		}
+	}
+
+	private synchronized void restart(SmtLibSolver solver, boolean timedOut) throws EvaluationException {
+		if (inner != solver) {
+			// Someone else has already replaced it
+			return;
+		}
+		if (Configuration.timeSmt) {
+			Configuration.recordSmtRestart(timedOut);
+		}
+		solver.destroy();
+		SmtLibSolver fresh = maker.get();
+		fresh.start(prog);
+		inner = fresh;
+	}
+
+	@Override
+	public void kill() {
+		inner.kill();
+	}
+
+	@Override
+	public void destroy() {
+		inner.destroy();
+	}
+
+}
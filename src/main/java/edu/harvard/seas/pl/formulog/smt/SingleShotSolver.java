@@ -33,6 +33,14 @@ public class SingleShotSolver extends AbstractSmtLibSolver {
 
 	private Program<?, ?> prog;
 
+	public SingleShotSolver() {
+		super();
+	}
+
+	public SingleShotSolver(String solverName) {
+		super(solverName);
+	}
+
 	@Override
 	protected Pair<Collection<SolverVariable>, Collection<SolverVariable>> makeAssertions(Collection<SmtLibTerm> assertions)
 			throws EvaluationException {
@@ -0,0 +1,64 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Thrown (instead of blocking) by an SMT call made from a thread that has
+ * opted into asynchronous SMT calls, when the result of the call is not yet
+ * available. The evaluator catching it is expected to retry the computation
+ * that made the call once the future has completed, at which point the result
+ * is available without waiting.
+ */
+public class SmtCallPendingException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<Boolean> enabled = ThreadLocal.withInitial(() -> false);
+
+	private final transient CompletableFuture<?> future;
+
+	public SmtCallPendingException(CompletableFuture<?> future) {
+		// Thrown on the fast path, so skip filling in the stack trace
+		super(null, null, false, false);
+		this.future = future;
+	}
+
+	public CompletableFuture<?> getFuture() {
+		return future;
+	}
+
+	/**
+	 * Sets whether SMT calls made by the current thread may throw this
+	 * exception; returns the previous setting.
+	 */
+	public static boolean setEnabled(boolean enable) {
+		boolean old = enabled.get();
+		enabled.set(enable);
+		return old;
+	}
+
+	public static boolean isEnabled() {
+		return enabled.get();
+	}
+
+}
@@ -122,16 +122,16 @@ public class SmtLibParser {
 		skipRestOfSExp(t);
 	}
 
-	private static enum TermType {
+	static enum TermType {
 		BV32, BV64, FP32, FP64, STRING, ADT
 	}
 
-	private AlgebraicDataType stripSymType(AlgebraicDataType symType) {
+	static AlgebraicDataType stripSymType(AlgebraicDataType symType) {
 		assert symType.getSymbol().equals(BuiltInTypeSymbol.SYM_TYPE);
 		return (AlgebraicDataType) symType.getTypeArgs().get(0);
 	}
 
-	private boolean shouldRecord(AlgebraicDataType type) throws SmtLibParseException {
+	static boolean shouldRecord(AlgebraicDataType type) throws SmtLibParseException {
 		Set<Symbol> seen = new HashSet<>();
 		boolean ok = shouldRecord1(type, seen);
 		for (Type arg : type.getTypeArgs()) {
@@ -142,11 +142,11 @@ public class SmtLibParser {
 		return ok;
 	}
 
-	private static void die(String msg) throws SmtLibParseException {
+	static void die(String msg) throws SmtLibParseException {
 		throw new SmtLibParseException("INTERNAL ERROR: " + msg);
 	}
 
-	private boolean shouldRecord1(AlgebraicDataType type, Set<Symbol> seen) throws SmtLibParseException {
+	private static boolean shouldRecord1(AlgebraicDataType type, Set<Symbol> seen) throws SmtLibParseException {
 		TypeSymbol sym = type.getSymbol();
 		if (!seen.add(sym)) {
 			return true;
@@ -195,7 +195,7 @@ public class SmtLibParser {
 		return ok;
 	}
 
-	private TermType getTermType(AlgebraicDataType type) throws SmtLibParseException {
+	static TermType getTermType(AlgebraicDataType type) throws SmtLibParseException {
 		TypeSymbol sym = type.getSymbol();
 		if (sym instanceof BuiltInTypeSymbol) {
 			switch ((BuiltInTypeSymbol) sym) {
@@ -25,6 +25,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -34,10 +35,12 @@ import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jgrapht.Graph;
 import org.jgrapht.alg.connectivity.KosarajuStrongConnectivityInspector;
@@ -48,6 +51,7 @@ import org.jgrapht.traverse.TopologicalOrderIterator;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
 import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
 import edu.harvard.seas.pl.formulog.ast.Expr;
 import edu.harvard.seas.pl.formulog.ast.Primitive;
@@ -55,16 +59,18 @@ import edu.harvard.seas.pl.formulog.ast.Program;
 import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
 import edu.harvard.seas.pl.formulog.ast.Term;
 import edu.harvard.seas.pl.formulog.ast.Terms.TermVisitor;
-import edu.harvard.seas.pl.formulog.ast.Terms.TermVisitorExn;
 import edu.harvard.seas.pl.formulog.ast.Var;
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 import edu.harvard.seas.pl.formulog.smt.SmtLibParser.SmtLibParseException;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.BuiltInTypeSymbol;
 import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
 import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbolType;
 import edu.harvard.seas.pl.formulog.symbols.Symbol;
 import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
 import edu.harvard.seas.pl.formulog.symbols.TypeSymbol;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.BuiltInConstructorSymbolBase;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedConstructorSymbol;
 import edu.harvard.seas.pl.formulog.types.FunctorType;
 import edu.harvard.seas.pl.formulog.types.TypeChecker;
 import edu.harvard.seas.pl.formulog.types.Types;
@@ -82,31 +88,74 @@ public class SmtLibShim {
 
 	private static final boolean recordTime = Configuration.timeSmt;
 
+	/*
+	 * Terms are hash-consed and the same formulas show up in many queries (and
+	 * on many solvers), so remember how each asserted formula (and each shared
+	 * subformula) is serialized, and splice that text in wherever the formula
+	 * occurs again. This is shared by all shims: the serialization of a term
+	 * does not depend on the solver it is sent to.
+	 * 
+	 * The cache is split into two generations of up to half the capacity each.
+	 * New entries go into the young generation; once it is full, it becomes the
+	 * old generation and the previous old one is dropped. A hit in the old
+	 * generation moves the entry back into the young one, so formulas that keep
+	 * coming up survive while the rest age out.
+	 */
+	private static volatile Map<SmtLibTerm, SerializedTerm> youngSerializations = new ConcurrentHashMap<>();
+	private static volatile Map<SmtLibTerm, SerializedTerm> oldSerializations = new ConcurrentHashMap<>();
+	private static final Object serializationCacheLock = new Object();
+	private static final int serializationCacheCap = Configuration.smtSerialCacheSize;
+	private static final boolean shareSubterms = Configuration.smtShareSubterms;
+
 	private final BufferedReader in;
 	private PrintWriter out;
 	private final Map<SolverVariable, String> declaredSymbols = new HashMap<>();
 	private final Deque<Set<SolverVariable>> symbolsByStackPos = new ArrayDeque<>();
 	private final Map<String, SolverVariable> symbolLookup = new HashMap<>();
 	private PrintWriter log;
+	private final String solverName;
 	private Iterator<Pair<ConstructorSymbol, Type>> typeAnnotations;
+	private boolean printingDetached;
+	private final Map<SmtLibTerm, String> definedTerms = new HashMap<>();
+	private final Deque<Set<SmtLibTerm>> definitionsByStackPos = new ArrayDeque<>();
+	private int nextDefinitionId;
+	private int binderDepth;
 
 	private SymbolManager symbolManager;
-	private final List<String> declarations = new ArrayList<>();
+	private DeclarationTable declarations;
+	private boolean lazyDeclarations;
+	private final Set<Declaration> madeDeclarations = new HashSet<>();
+	private final Deque<Set<Declaration>> declarationsByStackPos = new ArrayDeque<>();
+
+	/*
+	 * Gathering the declarations for a program means walking all of its types,
+	 * so the result is shared by all the shims for the same program.
+	 */
+	private static Program<?, ?> declarationsProg;
+	private static boolean declarationsDeclareAdts;
+	private static DeclarationTable declarationsForProg;
 
 	public SmtLibShim(Reader in, Writer out) {
 		this(in, out, null);
 	}
 
 	public SmtLibShim(Reader in, Writer out, Writer log) {
+		this(in, out, log, Configuration.smtSolver);
+	}
+
+	public SmtLibShim(Reader in, Writer out, Writer log, String solverName) {
 		this.in = in != null ? new BufferedReader(in) : null;
+		this.solverName = solverName;
 		this.out = new PrintWriter(out);
 		this.log = log != null ? new PrintWriter(log) : null;
 		symbolsByStackPos.add(new HashSet<>());
+		definitionsByStackPos.add(new HashSet<>());
+		declarationsByStackPos.add(new HashSet<>());
 	}
 
 	public void initialize(Program<?, ?> prog, boolean declareAdts) {
 		symbolManager = prog.getSymbolManager();
-		new DeclarationGatherer(declareAdts).go(prog);
+		declarations = gatherDeclarations(prog, declareAdts);
 		if (Configuration.smtCheckSuccess) {
 			println("(set-option :print-success true)");
 		}
@@ -136,32 +185,289 @@ public class SmtLibShim {
 	}
 
 	public void makeAssertion(SmtLibTerm assertion) throws EvaluationException {
+		makeAssertion(null, assertion);
+	}
+
+	/**
+	 * Asserts that the (Boolean) solver variable <code>guard</code> implies
+	 * <code>assertion</code>. Unlike asserting the implication itself, this lets
+	 * the serialization of <code>assertion</code> be reused across guards.
+	 */
+	public void makeGuardedAssertion(SolverVariable guard, SmtLibTerm assertion) throws EvaluationException {
+		makeAssertion(guard, assertion);
+	}
+
+	private void makeAssertion(SolverVariable guard, SmtLibTerm assertion) throws EvaluationException {
 		long start = 0;
 		long end = 0;
 		if (recordTime) {
 			start = System.nanoTime();
 		}
-		declareSymbols(assertion);
+		SerializedTerm ser = serialize(assertion);
 		if (recordTime) {
 			end = System.nanoTime();
-			Configuration.recordSmtDeclTime(end - start);
+			Configuration.recordSmtInferTime(end - start);
 			start = end;
 		}
-		typeAnnotations = new MiniTypeInferer().inferTypes(assertion).iterator();
+		if (guard != null) {
+			declareSymbol(guard);
+		}
+		if (lazyDeclarations) {
+			for (Symbol sym : ser.symbols) {
+				makeDeclaration(declarations.bySymbol.get(sym));
+			}
+		}
+		for (SolverVariable x : ser.vars) {
+			declareSymbol(x);
+		}
+		List<SmtLibTerm> defs = null;
+		if (shareSubterms) {
+			defs = findSubtermsToDefine(assertion);
+			if (defs != null) {
+				defineSubterms(defs);
+			}
+		}
 		if (recordTime) {
 			end = System.nanoTime();
-			Configuration.recordSmtInferTime(end - start);
+			Configuration.recordSmtDeclTime(end - start);
 			start = end;
 		}
 		print("(assert ");
-		assertion.toSmtLib(this);
+		if (ser.text != null && defs == null) {
+			if (guard != null) {
+				print("(=> ");
+				print(guard);
+				print(" ");
+			}
+			print(ser.text);
+			if (guard != null) {
+				print(")");
+			}
+		} else {
+			// Either the term needs its context to be typed, so it could not be
+			// serialized on its own, or it refers to shared definitions
+			SmtLibTerm t = assertion;
+			if (guard != null) {
+				Term[] args = { guard, assertion };
+				t = (SmtLibTerm) Constructors.make(BuiltInConstructorSymbol.SMT_IMP, args);
+			}
+			typeAnnotations = new MiniTypeInferer().inferTypes(t).iterator();
+			print(t);
+			assert !typeAnnotations.hasNext() : typeAnnotations.next();
+		}
 		println(")");
 		checkSuccess();
 		if (recordTime) {
 			end = System.nanoTime();
 			Configuration.recordSmtSerialTime(end - start);
 		}
-		assert !typeAnnotations.hasNext() : typeAnnotations.next();
+	}
+
+	private static SerializedTerm lookupSerialization(SmtLibTerm t) {
+		SerializedTerm ser = youngSerializations.get(t);
+		if (ser == null) {
+			ser = oldSerializations.get(t);
+			if (ser != null) {
+				cacheSerialization(t, ser);
+			}
+		}
+		return ser;
+	}
+
+	private static void cacheSerialization(SmtLibTerm t, SerializedTerm ser) {
+		if (serializationCacheCap <= 0) {
+			return;
+		}
+		Map<SmtLibTerm, SerializedTerm> young = youngSerializations;
+		young.put(t, ser);
+		if (young.size() >= (serializationCacheCap + 1) / 2) {
+			synchronized (serializationCacheLock) {
+				if (youngSerializations == young) {
+					oldSerializations = young;
+					youngSerializations = new ConcurrentHashMap<>();
+				}
+			}
+		}
+	}
+
+	private SerializedTerm serialize(SmtLibTerm t) {
+		SerializedTerm ser = lookupSerialization(t);
+		if (ser != null) {
+			return ser;
+		}
+		List<SolverVariable> vars = new ArrayList<>(collectSolverVariables(t));
+		MiniTypeInferer inferer = new MiniTypeInferer();
+		List<Pair<ConstructorSymbol, Type>> annotations = inferer.inferTypes(t);
+		Type type = inferer.getRootType();
+		String text = null;
+		String sort = null;
+		if (isGround(annotations) && Types.getTypeVars(type).isEmpty()) {
+			sort = stringifyType(type);
+			StringWriter sw = new StringWriter();
+			PrintWriter oldOut = out;
+			PrintWriter oldLog = log;
+			Iterator<Pair<ConstructorSymbol, Type>> oldAnnotations = typeAnnotations;
+			boolean oldDetached = printingDetached;
+			out = new PrintWriter(sw);
+			log = null;
+			printingDetached = true;
+			try {
+				typeAnnotations = annotations.iterator();
+				t.toSmtLib(this);
+				assert !typeAnnotations.hasNext() : typeAnnotations.next();
+			} finally {
+				out = oldOut;
+				log = oldLog;
+				typeAnnotations = oldAnnotations;
+				printingDetached = oldDetached;
+			}
+			text = sw.toString();
+		}
+		ser = new SerializedTerm(text, sort, vars, annotations, collectSymbols(t, annotations));
+		cacheSerialization(t, ser);
+		return ser;
+	}
+
+	/**
+	 * Returns the SMT-LIB sort of <code>t</code>, or null if it cannot be typed
+	 * on its own. Unlike {@link #serialize(SmtLibTerm)}, this neither prints
+	 * the term nor caches anything for it.
+	 */
+	private String sortOf(SmtLibTerm t) {
+		SerializedTerm ser = lookupSerialization(t);
+		if (ser != null) {
+			return ser.sort;
+		}
+		MiniTypeInferer inferer = new MiniTypeInferer();
+		List<Pair<ConstructorSymbol, Type>> annotations = inferer.inferTypes(t);
+		Type type = inferer.getRootType();
+		if (isGround(annotations) && Types.getTypeVars(type).isEmpty()) {
+			return stringifyType(type);
+		}
+		return null;
+	}
+
+	/*
+	 * Unification can only refine type variables, so if every annotation is
+	 * already ground when the term is typed on its own, the term is typed the
+	 * same way in any context.
+	 */
+	private static boolean isGround(List<Pair<ConstructorSymbol, Type>> annotations) {
+		for (Pair<ConstructorSymbol, Type> p : annotations) {
+			if (!Types.getTypeVars(p.snd()).isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the subterms of <code>t</code> (children before parents) that
+	 * occur more than once and should be emitted as definitions, or null if
+	 * printing <code>t</code> would neither introduce nor use a definition.
+	 */
+	private List<SmtLibTerm> findSubtermsToDefine(SmtLibTerm t) {
+		Map<SmtLibTerm, Integer> refCounts = new HashMap<>();
+		List<SmtLibTerm> postOrder = new ArrayList<>();
+		boolean usesDefinitions = countReferences(t, refCounts, postOrder);
+		List<SmtLibTerm> defs = new ArrayList<>();
+		for (SmtLibTerm sub : postOrder) {
+			if (refCounts.get(sub) > 1 && sortOf(sub) != null) {
+				defs.add(sub);
+			}
+		}
+		if (defs.isEmpty() && !usesDefinitions) {
+			return null;
+		}
+		return defs;
+	}
+
+	private boolean countReferences(Term t, Map<SmtLibTerm, Integer> refCounts, List<SmtLibTerm> postOrder) {
+		if (!(t instanceof Constructor) || t instanceof SolverVariable) {
+			return false;
+		}
+		Constructor c = (Constructor) t;
+		if (c.getArgs().length == 0) {
+			return false;
+		}
+		SmtLibTerm st = (SmtLibTerm) t;
+		Integer n = refCounts.get(st);
+		refCounts.put(st, n == null ? 1 : n + 1);
+		if (definedTerms.containsKey(st)) {
+			return true;
+		}
+		if (n != null) {
+			return false;
+		}
+		boolean usesDefinitions = false;
+		// Subterms of a binder might mention the bound variable, so they cannot
+		// be lifted out of it
+		if (!isBinder(c.getSymbol())) {
+			for (Term arg : c.getArgs()) {
+				usesDefinitions |= countReferences(arg, refCounts, postOrder);
+			}
+		}
+		postOrder.add(st);
+		return usesDefinitions;
+	}
+
+	private static boolean isBinder(ConstructorSymbol sym) {
+		if (sym instanceof ParameterizedConstructorSymbol) {
+			return ((ParameterizedConstructorSymbol) sym).getBase().equals(BuiltInConstructorSymbolBase.SMT_LET);
+		}
+		return sym.equals(BuiltInConstructorSymbol.SMT_EXISTS) || sym.equals(BuiltInConstructorSymbol.SMT_FORALL);
+	}
+
+	private void defineSubterms(List<SmtLibTerm> defs) throws EvaluationException {
+		for (SmtLibTerm t : defs) {
+			SerializedTerm ser = serialize(t);
+			String name = "d" + nextDefinitionId++;
+			print("(define-fun " + name + " () " + ser.sort + " ");
+			typeAnnotations = ser.annotations.iterator();
+			// Print the term itself, but refer to any definitions of its subterms
+			t.toSmtLib(this);
+			assert !typeAnnotations.hasNext() : typeAnnotations.next();
+			println(")");
+			checkSuccess();
+			definedTerms.put(t, name);
+			definitionsByStackPos.getLast().add(t);
+		}
+	}
+
+	private static class SerializedTerm {
+
+		/**
+		 * The SMT-LIB representation of the term, or null if it cannot be typed
+		 * on its own.
+		 */
+		public final String text;
+		/**
+		 * The SMT-LIB sort of the term, or null if it cannot be typed on its own.
+		 */
+		public final String sort;
+		/**
+		 * The solver variables in the term, in the order they should be declared.
+		 */
+		public final List<SolverVariable> vars;
+		/**
+		 * The type annotations consumed when printing the term.
+		 */
+		public final List<Pair<ConstructorSymbol, Type>> annotations;
+		/**
+		 * The constructor and type symbols the term mentions, which might need to
+		 * be declared before the term can be sent to a solver.
+		 */
+		public final Set<Symbol> symbols;
+
+		public SerializedTerm(String text, String sort, List<SolverVariable> vars,
+				List<Pair<ConstructorSymbol, Type>> annotations, Set<Symbol> symbols) {
+			this.text = text;
+			this.sort = sort;
+			this.vars = vars;
+			this.annotations = annotations;
+			this.symbols = symbols;
+		}
+
 	}
 
 	public void reset() throws EvaluationException {
@@ -169,6 +475,12 @@ public class SmtLibShim {
 		symbolLookup.clear();
 		symbolsByStackPos.clear();
 		symbolsByStackPos.add(new HashSet<>());
+		definedTerms.clear();
+		definitionsByStackPos.clear();
+		definitionsByStackPos.add(new HashSet<>());
+		madeDeclarations.clear();
+		declarationsByStackPos.clear();
+		declarationsByStackPos.add(new HashSet<>());
 		println("(reset)");
 		checkSuccess();
 	}
@@ -183,6 +495,8 @@ public class SmtLibShim {
 		println("(push 1)");
 		checkSuccess();
 		symbolsByStackPos.addLast(new HashSet<>());
+		definitionsByStackPos.addLast(new HashSet<>());
+		declarationsByStackPos.addLast(new HashSet<>());
 	}
 
 	public void pop() throws EvaluationException {
@@ -197,6 +511,10 @@ public class SmtLibShim {
 				String s = declaredSymbols.remove(x);
 				symbolLookup.remove(s);
 			}
+			for (SmtLibTerm t : definitionsByStackPos.removeLast()) {
+				definedTerms.remove(t);
+			}
+			madeDeclarations.removeAll(declarationsByStackPos.removeLast());
 		}
 	}
 
@@ -206,11 +524,28 @@ public class SmtLibShim {
 
 	public SmtStatus checkSatAssuming(Collection<SolverVariable> onVars, Collection<SolverVariable> offVars,
 			int timeout) throws EvaluationException {
+		sendCheckSatAssuming(onVars, offVars, timeout);
+		return readCheckSatResult();
+	}
+
+	public void sendCheckSatAssuming(Collection<SolverVariable> onVars, Collection<SolverVariable> offVars,
+			int timeout) throws EvaluationException {
+		writeCheckSatAssuming(onVars, offVars, timeout);
+		flush();
+	}
+
+	/**
+	 * Like {@link #sendCheckSatAssuming(Collection, Collection, int)}, but
+	 * without flushing, so that several commands can be sent to the solver at
+	 * once.
+	 */
+	public void writeCheckSatAssuming(Collection<SolverVariable> onVars, Collection<SolverVariable> offVars,
+			int timeout) throws EvaluationException {
 		if (timeout < 0) {
 			System.err.println("Warning: negative timeout provided to solver - ignored");
 			timeout = Integer.MAX_VALUE;
 		}
-		if (Configuration.smtSolver.equals("z3")) {
+		if (solverName.equals("z3")) {
 			println("(set-option :timeout " + timeout + ")");
 			checkSuccess();
 		}
@@ -229,7 +564,9 @@ public class SmtLibShim {
 			}
 			println("))");
 		}
-		flush();
+	}
+
+	public SmtStatus readCheckSatResult() throws EvaluationException {
 		String result;
 		try {
 			result = in.readLine();
@@ -255,8 +592,16 @@ public class SmtLibShim {
 	}
 
 	public Map<SolverVariable, Term> getModel() throws EvaluationException {
+		sendGetModel();
+		return readModel();
+	}
+
+	public void sendGetModel() {
 		println("(get-model)");
 		flush();
+	}
+
+	public Map<SolverVariable, Term> readModel() throws EvaluationException {
 		try {
 			return parseModel();
 		} catch (IOException e) {
@@ -267,6 +612,9 @@ public class SmtLibShim {
 	}
 
 	public Map<SolverVariable, Term> parseModel() throws EvaluationException, IOException, SmtLibParseException {
+		if (Configuration.smtLazyModels) {
+			return new SmtModelReader(symbolManager, symbolLookup).getModel(in);
+		}
 		SmtLibParser p = new SmtLibParser(symbolManager, symbolLookup);
 		return p.getModel(in);
 	}
@@ -302,11 +650,62 @@ public class SmtLibShim {
 	public void print(SolverVariable x) {
 		String s = declaredSymbols.get(x);
 		if (s == null) {
-			throw new NoSuchElementException(x.toString());
+			if (!printingDetached) {
+				throw new NoSuchElementException(x.toString());
+			}
+			// Variables get declared before the serialized term is sent
+			s = toSmtSymbol(x);
 		}
 		print(s);
 	}
 
+	/**
+	 * Prints a subterm of the term being serialized, referring to the
+	 * definition of the subterm if there is one. When serializing a term on its
+	 * own, the cached text of a subterm is spliced in instead of printing the
+	 * subterm again.
+	 */
+	public void print(SmtLibTerm t) {
+		if (binderDepth > 0) {
+			t.toSmtLib(this);
+			return;
+		}
+		SerializedTerm ser;
+		if (printingDetached) {
+			ser = lookupSerialization(t);
+			if (ser == null || ser.text == null) {
+				t.toSmtLib(this);
+				return;
+			}
+			print(ser.text);
+		} else {
+			String name = definedTerms.get(t);
+			if (name == null) {
+				t.toSmtLib(this);
+				return;
+			}
+			print(name);
+			ser = serialize(t);
+		}
+		// Skip the annotations that printing the term would have consumed
+		for (int i = ser.annotations.size(); i > 0; --i) {
+			typeAnnotations.next();
+		}
+	}
+
+	/**
+	 * Like {@link #print(SmtLibTerm)}, for a subterm in the scope of a bound
+	 * variable.
+	 */
+	public void printUnderBinder(SmtLibTerm t) {
+		binderDepth++;
+		try {
+			t.toSmtLib(this);
+		} finally {
+			binderDepth--;
+		}
+	}
+
 	public void print(Symbol sym) {
 		print(stringifySymbol(sym));
 	}
@@ -328,8 +727,23 @@ public class SmtLibShim {
 		return "x" + x.getId();
 	}
 
-	private void declareSymbols(SmtLibTerm t) throws EvaluationException {
-		t.accept(new TermVisitorExn<Void, Void, EvaluationException>() {
+	private void declareSymbol(SolverVariable var) throws EvaluationException {
+		if (!declaredSymbols.containsKey(var)) {
+			String s = toSmtSymbol(var);
+			declaredSymbols.put(var, s);
+			symbolLookup.put(s, var);
+			symbolsByStackPos.getLast().add(var);
+			print("(declare-fun " + s + " () ");
+			FunctorType ft = (FunctorType) var.getSymbol().getCompileTimeType();
+			print(stringifyType(ft.getRetType()));
+			println(")");
+			checkSuccess();
+		}
+	}
+
+	private static Set<SolverVariable> collectSolverVariables(SmtLibTerm t) {
+		Set<SolverVariable> vars = new LinkedHashSet<>();
+		t.accept(new TermVisitor<Void, Void>() {
 
 			@Override
 			public Void visit(Var t, Void in) {
@@ -337,20 +751,9 @@ public class SmtLibShim {
 			}
 
 			@Override
-			public Void visit(Constructor c, Void in) throws EvaluationException {
+			public Void visit(Constructor c, Void in) {
 				if (c instanceof SolverVariable) {
-					SolverVariable var = (SolverVariable) c;
-					if (!declaredSymbols.containsKey(var)) {
-						String s = toSmtSymbol(var);
-						declaredSymbols.put(var, s);
-						symbolLookup.put(s, var);
-						symbolsByStackPos.getLast().add(var);
-						print("(declare-fun " + s + " () ");
-						FunctorType ft = (FunctorType) var.getSymbol().getCompileTimeType();
-						print(stringifyType(ft.getRetType()));
-						println(")");
-						checkSuccess();
-					}
+					vars.add((SolverVariable) c);
 					return null;
 				}
 				for (Term arg : c.getArgs()) {
@@ -370,36 +773,139 @@ public class SmtLibShim {
 			}
 
 		}, null);
+		return vars;
+	}
+
+	/**
+	 * From now on, declare sorts and uninterpreted functions only once an
+	 * assertion mentions them, instead of all at once in
+	 * {@link #makeDeclarations()}.
+	 */
+	public void declareLazily() {
+		lazyDeclarations = true;
 	}
 
 	public void makeDeclarations() {
+		if (lazyDeclarations) {
+			return;
+		}
 		long start = 0;
 		if (Configuration.timeSmt) {
 			start = System.nanoTime();
 		}
-		for (String decl : declarations) {
-			println(decl);
-			try {
-				checkSuccess();
-			} catch (EvaluationException e) {
-				System.err.println("WARNING: solver rejected declaration:\n" + decl + "\n" + e.getMessage());
-			}
+		for (Declaration decl : declarations.all) {
+			makeDeclaration(decl);
 		}
 		if (Configuration.timeSmt) {
 			Configuration.recordSmtDeclGlobalsTime(System.nanoTime() - start);
 		}
 	}
 
+	private void makeDeclaration(Declaration decl) {
+		if (decl == null || madeDeclarations.contains(decl)) {
+			return;
+		}
+		for (Declaration dep : decl.deps) {
+			makeDeclaration(dep);
+		}
+		println(decl.text);
+		try {
+			checkSuccess();
+		} catch (EvaluationException e) {
+			System.err.println("WARNING: solver rejected declaration:\n" + decl.text + "\n" + e.getMessage());
+		}
+		madeDeclarations.add(decl);
+		declarationsByStackPos.getLast().add(decl);
+	}
+
+	private static Set<Symbol> collectSymbols(SmtLibTerm t, List<Pair<ConstructorSymbol, Type>> annotations) {
+		Set<Symbol> syms = new HashSet<>();
+		for (Pair<ConstructorSymbol, Type> p : annotations) {
+			syms.addAll(extractTypeSymbols(p.snd()));
+		}
+		t.accept(new TermVisitor<Void, Void>() {
+
+			@Override
+			public Void visit(Var t, Void in) {
+				throw new AssertionError("impossible");
+			}
+
+			@Override
+			public Void visit(Constructor c, Void in) {
+				ConstructorSymbol sym = c.getSymbol();
+				if (syms.add(sym)) {
+					FunctorType ft = sym.getCompileTimeType();
+					for (Type ty : ft.getArgTypes()) {
+						syms.addAll(extractTypeSymbols(ty));
+					}
+					syms.addAll(extractTypeSymbols(ft.getRetType()));
+				}
+				for (Term arg : c.getArgs()) {
+					arg.accept(this, in);
+				}
+				return null;
+			}
+
+			@Override
+			public Void visit(Primitive<?> p, Void in) {
+				return null;
+			}
+
+			@Override
+			public Void visit(Expr expr, Void in) {
+				throw new AssertionError("impossible");
+			}
+
+		}, null);
+		return syms;
+	}
+
+	private DeclarationTable gatherDeclarations(Program<?, ?> prog, boolean declareAdts) {
+		synchronized (SmtLibShim.class) {
+			if (declarationsProg != prog || declarationsDeclareAdts != declareAdts) {
+				declarationsForProg = new DeclarationGatherer(declareAdts).go(prog);
+				declarationsProg = prog;
+				declarationsDeclareAdts = declareAdts;
+			}
+			return declarationsForProg;
+		}
+	}
+
+	private static class Declaration {
+
+		public final String text;
+		public final List<Declaration> deps = new ArrayList<>();
+
+		public Declaration(String text) {
+			this.text = text;
+		}
+
+	}
+
+	private static class DeclarationTable {
+
+		/**
+		 * The declarations in an order in which they can be made.
+		 */
+		public final List<Declaration> all = new ArrayList<>();
+		/**
+		 * The declaration of each declared type symbol and uninterpreted function.
+		 */
+		public final Map<Symbol, Declaration> bySymbol = new HashMap<>();
+
+	}
+
 	private class DeclarationGatherer {
 
 		private final ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		private final boolean declareAdts;
+		private final DeclarationTable table = new DeclarationTable();
 
 		public DeclarationGatherer(boolean declareAdts) {
 			this.declareAdts = declareAdts;
 		}
 
-		public void go(Program<?, ?> prog) {
+		public DeclarationTable go(Program<?, ?> prog) {
 			PrintWriter tmpLog = log;
 			log = null;
 			PrintWriter tmpOut = out;
@@ -408,12 +914,30 @@ public class SmtLibShim {
 			declareUninterpretedFunctions(prog.getUninterpretedFunctionSymbols());
 			out = tmpOut;
 			log = tmpLog;
+			return table;
 		}
 
-		private void pushDeclaration() {
+		/*
+		 * Records the declaration just printed for the given symbols, which
+		 * depends on the declarations of the type symbols mentioned by the given
+		 * types (which have already been recorded).
+		 */
+		private void pushDeclaration(Collection<? extends Symbol> syms, Collection<Type> mentioned) {
 			flush();
-			declarations.add(baos.toString());
+			Declaration decl = new Declaration(baos.toString());
 			baos.reset();
+			for (Type type : mentioned) {
+				for (TypeSymbol other : extractTypeSymbols(type)) {
+					Declaration dep = table.bySymbol.get(other);
+					if (dep != null && !decl.deps.contains(dep)) {
+						decl.deps.add(dep);
+					}
+				}
+			}
+			for (Symbol sym : syms) {
+				table.bySymbol.put(sym, decl);
+			}
+			table.all.add(decl);
 		}
 
 		private void declareUninterpretedFunctions(Set<ConstructorSymbol> funcs) {
@@ -427,7 +951,9 @@ public class SmtLibShim {
 					}
 				}
 				print(") " + stringifyType(ft.getRetType()) + ")");
-				pushDeclaration();
+				List<Type> mentioned = new ArrayList<>(ft.getArgTypes());
+				mentioned.add(ft.getRetType());
+				pushDeclaration(Collections.singleton(func), mentioned);
 			}
 		}
 
@@ -458,7 +984,7 @@ public class SmtLibShim {
 		private void declareUninterpretedSort(TypeSymbol sort) {
 			assert sort.isUninterpretedSort();
 			print("(declare-sort " + stringifySymbol(sort) + " " + sort.getArity() + ")");
-			pushDeclaration();
+			pushDeclaration(Collections.singleton(sort), Collections.emptyList());
 		}
 
 		private void declareAdtSorts(Set<TypeSymbol> sorts) {
@@ -469,11 +995,16 @@ public class SmtLibShim {
 				print("(" + stringifySymbol(sym) + " " + sym.getArity() + ") ");
 			}
 			print(") (");
+			List<Type> mentioned = new ArrayList<>();
 			for (TypeSymbol sym : sorts) {
-				declareAdtSort(AlgebraicDataType.makeWithFreshArgs(sym));
+				AlgebraicDataType type = AlgebraicDataType.makeWithFreshArgs(sym);
+				declareAdtSort(type);
+				for (ConstructorScheme c : type.getConstructors()) {
+					mentioned.addAll(c.getTypeArgs());
+				}
 			}
 			print("))");
-			pushDeclaration();
+			pushDeclaration(sorts, mentioned);
 		}
 
 		private void declareAdtSort(AlgebraicDataType type) {
@@ -578,6 +1109,38 @@ public class SmtLibShim {
 		}, null);
 	}
 
+	private static Set<TypeSymbol> extractTypeSymbols(Type type) {
+		Set<TypeSymbol> syms = new HashSet<>();
+		type.accept(new TypeVisitor<Void, Void>() {
+
+			@Override
+			public Void visit(TypeVar typeVar, Void in) {
+				return null;
+			}
+
+			@Override
+			public Void visit(AlgebraicDataType algebraicType, Void in) {
+				syms.add(algebraicType.getSymbol());
+				for (Type typeArg : algebraicType.getTypeArgs()) {
+					typeArg.accept(this, in);
+				}
+				return null;
+			}
+
+			@Override
+			public Void visit(OpaqueType opaqueType, Void in) {
+				throw new AssertionError("impossible");
+			}
+
+			@Override
+			public Void visit(TypeIndex typeIndex, Void in) {
+				return null;
+			}
+
+		}, null);
+		return syms;
+	}
+
 	private class SortDependencyFinder {
 
 		private final DedupWorkList<TypeSymbol> w = new DedupWorkList<>();
@@ -619,38 +1182,6 @@ public class SmtLibShim {
 			return g;
 		}
 
-		private Set<TypeSymbol> extractTypeSymbols(Type type) {
-			Set<TypeSymbol> syms = new HashSet<>();
-			type.accept(new TypeVisitor<Void, Void>() {
-
-				@Override
-				public Void visit(TypeVar typeVar, Void in) {
-					return null;
-				}
-
-				@Override
-				public Void visit(AlgebraicDataType algebraicType, Void in) {
-					syms.add(algebraicType.getSymbol());
-					for (Type typeArg : algebraicType.getTypeArgs()) {
-						typeArg.accept(this, in);
-					}
-					return null;
-				}
-
-				@Override
-				public Void visit(OpaqueType opaqueType, Void in) {
-					throw new AssertionError("impossible");
-				}
-
-				@Override
-				public Void visit(TypeIndex typeIndex, Void in) {
-					return null;
-				}
-
-			}, null);
-			return syms;
-		}
-
 		private boolean isDeclarableTypeSymbol(TypeSymbol sym) {
 			if (sym.isAlias()) {
 				return false;
@@ -687,12 +1218,14 @@ public class SmtLibShim {
 
 		private final Deque<Pair<Type, Type>> constraints = new ArrayDeque<>();
 		private final Map<TypeVar, Type> subst = new HashMap<>();
+		private Type rootType;
 
 		public List<Pair<ConstructorSymbol, Type>> inferTypes(Term t) {
 			constraints.clear();
 			subst.clear();
 			List<Pair<ConstructorSymbol, Type>> types = inferTypes1(t);
 			unifyConstraints();
+			rootType = TypeChecker.simplify(rootType.applySubst(subst));
 			List<Pair<ConstructorSymbol, Type>> types2 = new ArrayList<>();
 			for (Pair<ConstructorSymbol, Type> p : types) {
 				types2.add(new Pair<>(p.fst(), TypeChecker.simplify(p.snd().applySubst(subst))));
@@ -700,9 +1233,17 @@ public class SmtLibShim {
 			return types2;
 		}
 
+		/**
+		 * Returns the type of the term most recently passed to
+		 * {@link #inferTypes(Term)}.
+		 */
+		public Type getRootType() {
+			return rootType;
+		}
+
 		private List<Pair<ConstructorSymbol, Type>> inferTypes1(Term t) {
 			List<Pair<ConstructorSymbol, Type>> types = new ArrayList<>();
-			t.accept(new TermVisitor<Void, Type>() {
+			rootType = t.accept(new TermVisitor<Void, Type>() {
 
 				@Override
 				public Type visit(Var t, Void in) {
@@ -21,7 +21,10 @@ package edu.harvard.seas.pl.formulog.smt;
  */
 
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import edu.harvard.seas.pl.formulog.ast.Program;
 import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
@@ -33,6 +36,48 @@ public interface SmtLibSolver {
 	
 	SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) throws EvaluationException;
 
+	default CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> t, boolean getModel, int timeout) {
+		CompletableFuture<SmtResult> fut = new CompletableFuture<>();
+		try {
+			fut.complete(check(t, getModel, timeout));
+		} catch (EvaluationException e) {
+			fut.completeExceptionally(e);
+		}
+		return fut;
+	}
+
+	/**
+	 * Checks several independent queries, returning their results in order.
+	 * Solvers that can should send the queries together instead of waiting for
+	 * each result before sending the next query.
+	 */
+	default List<SmtResult> checkBatch(List<SmtQuery> queries) throws EvaluationException {
+		List<SmtResult> results = new ArrayList<>();
+		checkBatch(queries, results);
+		return results;
+	}
+
+	/**
+	 * Like {@link #checkBatch(List)}, except that the results are appended to
+	 * <code>results</code> as they become known. If the call fails, the results
+	 * already appended are those of a prefix of the queries, and stand; only
+	 * the remaining queries need to be asked again.
+	 */
+	default void checkBatch(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+		for (SmtQuery q : queries) {
+			results.add(check(q.conjuncts, q.getModel, q.timeout));
+		}
+	}
+
+	/**
+	 * Forcibly stops any external solver process behind this solver, without
+	 * waiting for a call in progress to finish; that call (if any) fails with
+	 * an exception. The solver cannot be used again until it has been replaced
+	 * or restarted.
+	 */
+	default void kill() {
+	}
+
 	void destroy();
 
 }
@@ -0,0 +1,596 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static edu.harvard.seas.pl.formulog.smt.SmtLibParser.die;
+import static edu.harvard.seas.pl.formulog.smt.SmtLibParser.getTermType;
+import static edu.harvard.seas.pl.formulog.smt.SmtLibParser.shouldRecord;
+import static edu.harvard.seas.pl.formulog.smt.SmtLibParser.stripSymType;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.Constructors.SolverVariable;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.eval.UncheckedEvaluationException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibParser.SmtLibParseException;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
+import edu.harvard.seas.pl.formulog.types.FunctorType;
+import edu.harvard.seas.pl.formulog.types.Types.AlgebraicDataType;
+import edu.harvard.seas.pl.formulog.types.Types.AlgebraicDataType.ConstructorScheme;
+import edu.harvard.seas.pl.formulog.types.Types.Type;
+
+/**
+ * Reads a model printed in response to <code>(get-model)</code> in a single
+ * pass over the solver's output, without tokenizing it into strings. Only the
+ * positions of the values of the variables we know about are recorded; a value
+ * is parsed into a term the first time it is looked up in the returned map
+ * (e.g., by <code>query_model</code>), and is then kept.
+ * 
+ * Since the values are not parsed up front, the returned maps compare equal
+ * when they bind the same variables to the same (whitespace-normalized) solver
+ * output, rather than when they bind them to the same terms, and never compare
+ * equal to other kinds of map. (A model read this way is never empty, and the
+ * only other models made while <code>smtLazyModels</code> is set are empty.)
+ * Their hash codes are computed from the same normalized text, so they can be
+ * hash-consed by {@link edu.harvard.seas.pl.formulog.ast.Model} without parsing
+ * any values. A value that cannot be parsed is reported as an
+ * {@link UncheckedEvaluationException} by whichever map operation first reads
+ * it; {@link edu.harvard.seas.pl.formulog.ast.Model#lookup} turns it into a
+ * checked exception, and rule evaluation reports it as an error in the rule.
+ */
+public class SmtModelReader {
+
+	private final SymbolManager symbolManager;
+	private final Map<String, SolverVariable> variables;
+
+	public SmtModelReader(SymbolManager symbolManager, Map<String, SolverVariable> variables) {
+		this.symbolManager = symbolManager;
+		this.variables = variables;
+	}
+
+	public Map<SolverVariable, Term> getModel(Reader r) throws IOException, SmtLibParseException {
+		Cursor c = new Cursor(readSExp(r));
+		c.expect('(');
+		int ch = c.skipSpace();
+		if (ch != '(' && ch != ')') {
+			String head = c.symbol();
+			if (!head.equals("model")) {
+				throw new SmtLibParseException("Expected a model, but found: " + new String(c.buf).trim());
+			}
+		}
+		List<Binding> entries = new ArrayList<>();
+		while (c.skipSpace() != ')') {
+			c.expect('(');
+			String head = c.symbol();
+			if (!head.equals("define-fun") || c.skipSpace() == '-') {
+				// Skip quantified formulas, declarations, and solver-internal definitions
+				c.skipRest();
+				continue;
+			}
+			String id = c.symbol();
+			// Skip args and type
+			c.skipSExp();
+			c.skipSExp();
+			SolverVariable x = variables.get(id);
+			if (x != null) {
+				FunctorType ft = (FunctorType) x.getSymbol().getCompileTimeType();
+				AlgebraicDataType type = stripSymType((AlgebraicDataType) ft.getRetType());
+				if (shouldRecord(type)) {
+					c.skipSpace();
+					int start = c.pos;
+					c.skipSExp();
+					entries.add(new Binding(x, type, start, c.pos));
+				}
+			}
+			c.skipRest();
+		}
+		if (entries.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		return new LazyModel(symbolManager, c.buf, entries);
+	}
+
+	/**
+	 * Reads the characters of the next s-expression, plus the end of line after
+	 * it. Characters are read one at a time so that nothing past the model is
+	 * taken from the reader.
+	 */
+	private static char[] readSExp(Reader r) throws IOException, SmtLibParseException {
+		char[] buf = new char[1024];
+		int len = 0;
+		int depth = 0;
+		boolean started = false;
+		int quote = 0;
+		while (!started || depth > 0 || quote != 0) {
+			int ch = r.read();
+			if (ch < 0) {
+				throw new SmtLibParseException("Unexpected EOF.");
+			}
+			if (len == buf.length) {
+				buf = Arrays.copyOf(buf, len * 2);
+			}
+			buf[len++] = (char) ch;
+			if (quote != 0) {
+				if (quote == ';' ? ch == '\n' : ch == quote) {
+					quote = 0;
+				}
+				continue;
+			}
+			switch (ch) {
+			case '(':
+				depth++;
+				started = true;
+				break;
+			case ')':
+				depth--;
+				break;
+			case '"':
+			case '|':
+			case ';':
+				quote = ch;
+				break;
+			}
+		}
+		// Remove EOL
+		r.read();
+		return Arrays.copyOf(buf, len);
+	}
+
+	private static class Binding {
+
+		final SolverVariable var;
+		final AlgebraicDataType type;
+		final int start;
+		final int end;
+
+		Binding(SolverVariable var, AlgebraicDataType type, int start, int end) {
+			this.var = var;
+			this.type = type;
+			this.start = start;
+			this.end = end;
+		}
+
+	}
+
+	private static class LazyModel extends AbstractMap<SolverVariable, Term> {
+
+		private final SymbolManager symbolManager;
+		private final char[] text;
+		private final Binding[] entries;
+		private final Term[] vals;
+		private final Map<SolverVariable, Integer> index = new HashMap<>();
+		private final String key;
+
+		LazyModel(SymbolManager symbolManager, char[] text, List<Binding> entries) {
+			this.symbolManager = symbolManager;
+			this.text = text;
+			this.entries = entries.toArray(new Binding[0]);
+			this.vals = new Term[this.entries.length];
+			for (int i = 0; i < this.entries.length; ++i) {
+				index.put(this.entries[i].var, i);
+			}
+			key = makeKey();
+		}
+
+		private String makeKey() {
+			Binding[] sorted = entries.clone();
+			Arrays.sort(sorted, (e1, e2) -> Integer.compare(e1.var.getId(), e2.var.getId()));
+			StringBuilder sb = new StringBuilder();
+			for (Binding e : sorted) {
+				sb.append(e.var.getId()).append('=');
+				boolean space = false;
+				boolean quoted = false;
+				for (int i = e.start; i < e.end; ++i) {
+					char ch = text[i];
+					if (!quoted && Character.isWhitespace(ch)) {
+						space = true;
+						continue;
+					}
+					if (space && ch != ')' && sb.charAt(sb.length() - 1) != '(') {
+						sb.append(' ');
+					}
+					space = false;
+					if (ch == '"' || ch == '|') {
+						quoted = !quoted;
+					}
+					sb.append(ch);
+				}
+				sb.append(';');
+			}
+			return sb.toString();
+		}
+
+		private synchronized Term value(int i) {
+			Term t = vals[i];
+			if (t == null) {
+				Binding e = entries[i];
+				try {
+					t = new ValueParser(symbolManager, new Cursor(text, e.start)).parse(e.type);
+				} catch (SmtLibParseException | RuntimeException exn) {
+					throw new UncheckedEvaluationException(
+							"Problem parsing solver output for " + e.var + ": " + exn.getMessage());
+				}
+				vals[i] = t;
+			}
+			return t;
+		}
+
+		@Override
+		public Term get(Object k) {
+			Integer i = index.get(k);
+			return i == null ? null : value(i);
+		}
+
+		@Override
+		public boolean containsKey(Object k) {
+			return index.containsKey(k);
+		}
+
+		@Override
+		public int size() {
+			return entries.length;
+		}
+
+		@Override
+		public Set<Map.Entry<SolverVariable, Term>> entrySet() {
+			return new AbstractSet<Map.Entry<SolverVariable, Term>>() {
+
+				@Override
+				public Iterator<Map.Entry<SolverVariable, Term>> iterator() {
+					return new Iterator<Map.Entry<SolverVariable, Term>>() {
+
+						int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < entries.length;
+						}
+
+						@Override
+						public Map.Entry<SolverVariable, Term> next() {
+							int j = i++;
+							return new SimpleImmutableEntry<>(entries[j].var, value(j));
+						}
+
+					};
+				}
+
+				@Override
+				public int size() {
+					return entries.length;
+				}
+
+			};
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			// Not the value-based equality of AbstractMap, which would disagree
+			// with the key-based hash code
+			return o instanceof LazyModel && key.equals(((LazyModel) o).key);
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode();
+		}
+
+	}
+
+	private static class ValueParser {
+
+		private final SymbolManager symbolManager;
+		private final Cursor c;
+
+		ValueParser(SymbolManager symbolManager, Cursor c) {
+			this.symbolManager = symbolManager;
+			this.c = c;
+		}
+
+		Term parse(AlgebraicDataType type) throws SmtLibParseException {
+			switch (getTermType(type)) {
+			case ADT:
+				return parseADTTerm(type);
+			case BV32:
+				return I32.make((int) c.bits());
+			case BV64:
+				return I64.make(c.bits());
+			case FP32: {
+				float val;
+				c.expect('(');
+				if (c.symbol().equals("fp")) {
+					long bits = c.bits() << 31;
+					bits |= c.bits() << 23;
+					bits |= c.bits();
+					val = Float.intBitsToFloat((int) bits);
+				} else {
+					val = (float) parseSpecialFP();
+				}
+				c.skipRest();
+				return FP32.make(val);
+			}
+			case FP64: {
+				double val;
+				c.expect('(');
+				if (c.symbol().equals("fp")) {
+					long bits = c.bits() << 63;
+					bits |= c.bits() << 52;
+					bits |= c.bits();
+					val = Double.longBitsToDouble(bits);
+				} else {
+					val = parseSpecialFP();
+				}
+				c.skipRest();
+				return FP64.make(val);
+			}
+			case STRING:
+				return parseString();
+			}
+			die("unexpected term type: " + getTermType(type));
+			return null;
+		}
+
+		private double parseSpecialFP() throws SmtLibParseException {
+			String s = c.symbol();
+			switch (s) {
+			case "NaN":
+				return Double.NaN;
+			case "+oo":
+				return Double.POSITIVE_INFINITY;
+			case "-oo":
+				return Double.NEGATIVE_INFINITY;
+			case "+zero":
+				return +0.0;
+			case "-zero":
+				return -0.0;
+			}
+			throw new SmtLibParseException("Unexpected floating point value: " + s);
+		}
+
+		private Term parseString() throws SmtLibParseException {
+			c.expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char ch = c.next();
+				if (ch == '"') {
+					// Z3 uses "" to represent "
+					if (c.peek() != '"') {
+						break;
+					}
+					c.next();
+					sb.append('\\');
+				}
+				sb.append(ch);
+			}
+			return StringTerm.make(sb.toString());
+		}
+
+		private Term parseADTTerm(AlgebraicDataType type) throws SmtLibParseException {
+			boolean paren = c.skipSpace() == '(';
+			if (paren) {
+				c.next();
+			}
+			String id = c.symbol();
+			if (paren && id.equals("as")) {
+				Term term = parseADTTerm(type);
+				c.skipRest();
+				return term;
+			}
+			if (id.equals("true")) {
+				return BoolTerm.mkTrue();
+			}
+			if (id.equals("false")) {
+				return BoolTerm.mkFalse();
+			}
+			ConstructorSymbol sym = (ConstructorSymbol) symbolManager.lookupSymbol(id);
+			Term[] args = Terms.emptyArray();
+			if (sym.getArity() > 0) {
+				List<Type> argTypes = null;
+				for (ConstructorScheme cs : type.getConstructors()) {
+					if (cs.getSymbol().equals(sym)) {
+						argTypes = cs.getTypeArgs();
+						break;
+					}
+				}
+				assert argTypes != null;
+				args = new Term[argTypes.size()];
+				int i = 0;
+				for (Type ty : argTypes) {
+					args[i] = parse((AlgebraicDataType) ty);
+					++i;
+				}
+				c.skipRest();
+			}
+			return Constructors.make(sym, args);
+		}
+
+	}
+
+	private static class Cursor {
+
+		final char[] buf;
+		int pos;
+
+		Cursor(char[] buf) {
+			this(buf, 0);
+		}
+
+		Cursor(char[] buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		int peek() {
+			return pos < buf.length ? buf[pos] : -1;
+		}
+
+		char next() throws SmtLibParseException {
+			if (pos >= buf.length) {
+				throw new SmtLibParseException("Unexpected end of model.");
+			}
+			return buf[pos++];
+		}
+
+		/**
+		 * Skips whitespace and comments, and returns the next character (without
+		 * consuming it).
+		 */
+		int skipSpace() {
+			while (pos < buf.length) {
+				char ch = buf[pos];
+				if (ch == ';') {
+					while (pos < buf.length && buf[pos] != '\n') {
+						pos++;
+					}
+				} else if (Character.isWhitespace(ch)) {
+					pos++;
+				} else {
+					return ch;
+				}
+			}
+			return -1;
+		}
+
+		void expect(char expected) throws SmtLibParseException {
+			skipSpace();
+			char found = next();
+			if (found != expected) {
+				throw new SmtLibParseException("Tried to consume \"" + expected + "\", but found \"" + found + "\".");
+			}
+		}
+
+		String symbol() throws SmtLibParseException {
+			skipSpace();
+			if (peek() == '|') {
+				int start = ++pos;
+				while (next() != '|') {
+					// do nothing
+				}
+				return new String(buf, start, pos - start - 1);
+			}
+			int start = pos;
+			while (pos < buf.length && !isDelimiter(buf[pos])) {
+				pos++;
+			}
+			if (pos == start) {
+				throw new SmtLibParseException("Expected a symbol, but found \"" + (char) peek() + "\".");
+			}
+			return new String(buf, start, pos - start);
+		}
+
+		/**
+		 * Reads a bit-vector literal in either hexadecimal (<code>#x...</code>) or
+		 * binary (<code>#b...</code>) notation.
+		 */
+		long bits() throws SmtLibParseException {
+			expect('#');
+			char radix = next();
+			if (radix != 'x' && radix != 'b') {
+				throw new SmtLibParseException("Unexpected bit-vector literal: #" + radix);
+			}
+			int shift = radix == 'x' ? 4 : 1;
+			long bits = 0;
+			while (pos < buf.length && !isDelimiter(buf[pos])) {
+				int digit = Character.digit(buf[pos++], 1 << shift);
+				if (digit < 0) {
+					throw new SmtLibParseException("Malformed bit-vector literal.");
+				}
+				bits = (bits << shift) | digit;
+			}
+			return bits;
+		}
+
+		void skipSExp() throws SmtLibParseException {
+			int ch = skipSpace();
+			if (ch == '(') {
+				pos++;
+				skipRest();
+			} else if (ch == '"' || ch == '|') {
+				pos++;
+				skipQuoted((char) ch);
+			} else {
+				symbol();
+			}
+		}
+
+		/**
+		 * Skips past the parenthesis that closes the current s-expression.
+		 */
+		void skipRest() throws SmtLibParseException {
+			int depth = 0;
+			while (depth >= 0) {
+				char ch = next();
+				switch (ch) {
+				case '(':
+					depth++;
+					break;
+				case ')':
+					depth--;
+					break;
+				case '"':
+				case '|':
+					skipQuoted(ch);
+					break;
+				case ';':
+					pos--;
+					skipSpace();
+					break;
+				}
+			}
+		}
+
+		private void skipQuoted(char quote) throws SmtLibParseException {
+			while (next() != quote) {
+				// do nothing
+			}
+		}
+
+		private static boolean isDelimiter(char ch) {
+			return Character.isWhitespace(ch) || ch == '(' || ch == ')' || ch == '"' || ch == '|' || ch == ';';
+		}
+
+	}
+
+}
@@ -0,0 +1,44 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+
+public class SmtQuery {
+
+	public final Collection<SmtLibTerm> conjuncts;
+	public final boolean getModel;
+	public final int timeout;
+
+	public SmtQuery(Collection<SmtLibTerm> conjuncts, boolean getModel, int timeout) {
+		this.conjuncts = conjuncts;
+		this.getModel = getModel;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "SmtQuery [conjuncts=" + conjuncts + ", getModel=" + getModel + ", timeout=" + timeout + "]";
+	}
+
+}
@@ -29,12 +29,31 @@ public class SmtResult {
 	public final Model model;
 	public final int solverId;
 	public final int taskId;
+	/**
+	 * Whether the solver was given a shorter timeout than the one asked for. An
+	 * unknown result found this way says nothing about the query under its own
+	 * timeout, and so should not be memoized.
+	 */
+	public final boolean timeoutTightened;
 	
 	public SmtResult(SmtStatus status, Model model, int solverId, int taskId) {
+		this(status, model, solverId, taskId, false);
+	}
+
+	public SmtResult(SmtStatus status, Model model, int solverId, int taskId, boolean timeoutTightened) {
 		this.status = status;
 		this.model = model;
 		this.solverId = solverId;
 		this.taskId = taskId;
+		this.timeoutTightened = timeoutTightened;
+	}
+
+	/**
+	 * Whether this is an unknown result that would not necessarily be
+	 * reproduced by asking again with the requested timeout.
+	 */
+	public boolean isProvisional() {
+		return timeoutTightened && status == SmtStatus.UNKNOWN;
 	}
 
 	@Override
@@ -45,6 +64,7 @@ public class SmtResult {
 		result = prime * result + solverId;
 		result = prime * result + ((status == null) ? 0 : status.hashCode());
 		result = prime * result + taskId;
+		result = prime * result + (timeoutTightened ? 1231 : 1237);
 		return result;
 	}
 
@@ -68,13 +88,15 @@ public class SmtResult {
 			return false;
 		if (taskId != other.taskId)
 			return false;
+		if (timeoutTightened != other.timeoutTightened)
+			return false;
 		return true;
 	}
 
 	@Override
 	public String toString() {
 		return "SmtResult [status=" + status + ", model=" + model + ", solverId=" + solverId + ", taskId=" + taskId
-				+ "]";
+				+ ", timeoutTightened=" + timeoutTightened + "]";
 	}
 
 }
@@ -0,0 +1,219 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.Terms;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.GlobalSymbolManager;
+import edu.harvard.seas.pl.formulog.symbols.Symbol;
+import edu.harvard.seas.pl.formulog.symbols.SymbolManager;
+import edu.harvard.seas.pl.formulog.symbols.TypeSymbol;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.Param;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParamKind;
+import edu.harvard.seas.pl.formulog.types.Types.AlgebraicDataType;
+import edu.harvard.seas.pl.formulog.types.Types.Type;
+import edu.harvard.seas.pl.formulog.types.Types.TypeIndex;
+import edu.harvard.seas.pl.formulog.types.Types.TypeVar;
+
+/**
+ * Reads back a trace written by {@link TracingSolver}, rebuilding its terms
+ * against the symbols of the (re-loaded) traced program.
+ */
+public class SmtTraceReader implements Closeable {
+
+	private final BufferedReader in;
+	private final SymbolManager symbolManager;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final List<Term> terms = new ArrayList<>();
+	private final Map<Integer, Term> dummies = new HashMap<>();
+	private int lineNo;
+
+	public SmtTraceReader(Reader in, SymbolManager symbolManager) {
+		this.in = new BufferedReader(in);
+		this.symbolManager = symbolManager;
+	}
+
+	/**
+	 * Returns the next call in the trace, or null at the end of the trace.
+	 */
+	public Call next() throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNo++;
+			if (line.isEmpty()) {
+				continue;
+			}
+			try {
+				JsonNode node = mapper.readTree(line);
+				if (node.has("def")) {
+					define(node);
+				} else if (node.has("call")) {
+					return makeCall(node);
+				}
+			} catch (RuntimeException e) {
+				throw new IOException("Malformed SMT trace at line " + lineNo + ": " + e.getMessage(), e);
+			}
+		}
+		return null;
+	}
+
+	private Call makeCall(JsonNode node) {
+		List<SmtQuery> queries = new ArrayList<>();
+		List<SmtStatus> statuses = new ArrayList<>();
+		for (JsonNode q : node.get("queries")) {
+			List<SmtLibTerm> conjuncts = new ArrayList<>();
+			for (JsonNode id : q.get("conjuncts")) {
+				conjuncts.add((SmtLibTerm) terms.get(id.asInt()));
+			}
+			queries.add(new SmtQuery(conjuncts, q.get("getModel").asBoolean(), q.get("timeout").asInt()));
+			String status = q.get("status").asText();
+			statuses.add(status.equals("ERROR") ? null : SmtStatus.valueOf(status));
+		}
+		return new Call(node.get("call").asText(), node.get("thread").asLong(), node.get("start").asLong(),
+				node.get("end").asLong(), queries, statuses);
+	}
+
+	private void define(JsonNode node) {
+		int id = node.get("def").asInt();
+		if (id != terms.size()) {
+			throw new IllegalArgumentException("definition " + id + " is out of order");
+		}
+		terms.add(decodeTerm(node));
+	}
+
+	private Term decodeTerm(JsonNode node) {
+		if (node.has("args")) {
+			ConstructorSymbol sym = decodeSymbol(node);
+			JsonNode argIds = node.get("args");
+			Term[] args = new Term[argIds.size()];
+			for (int i = 0; i < args.length; ++i) {
+				args[i] = terms.get(argIds.get(i).asInt());
+			}
+			return Constructors.make(sym, args);
+		} else if (node.has("i32")) {
+			return I32.make(node.get("i32").asInt());
+		} else if (node.has("i64")) {
+			return I64.make(node.get("i64").asLong());
+		} else if (node.has("fp32")) {
+			return FP32.make(Float.intBitsToFloat(node.get("fp32").asInt()));
+		} else if (node.has("fp64")) {
+			return FP64.make(Double.longBitsToDouble(node.get("fp64").asLong()));
+		} else if (node.has("string")) {
+			return StringTerm.make(node.get("string").asText());
+		} else if (node.has("bool")) {
+			return BoolTerm.mk(node.get("bool").asBoolean());
+		} else if (node.has("dummy")) {
+			int key = node.get("dummy").asInt();
+			return dummies.computeIfAbsent(key, Terms::makeDummyTerm);
+		}
+		throw new IllegalArgumentException("unrecognized term " + node);
+	}
+
+	private ConstructorSymbol decodeSymbol(JsonNode node) {
+		if (node.has("tuple")) {
+			return GlobalSymbolManager.lookupTupleSymbol(node.get("tuple").asInt());
+		}
+		String name = node.get("sym").asText();
+		List<Param> params = new ArrayList<>();
+		if (node.has("params")) {
+			for (JsonNode p : node.get("params")) {
+				params.add(new Param(decodeType(p.get("type")), ParamKind.valueOf(p.get("kind").asText())));
+			}
+		}
+		Symbol sym = symbolManager.lookupSymbol(name, params);
+		if (!(sym instanceof ConstructorSymbol)) {
+			throw new IllegalArgumentException("symbol " + name + " is not a constructor");
+		}
+		return (ConstructorSymbol) sym;
+	}
+
+	private Type decodeType(JsonNode node) {
+		if (node.has("var")) {
+			return TypeVar.get(node.get("var").asText());
+		} else if (node.has("index")) {
+			return TypeIndex.make(node.get("index").asInt());
+		}
+		String name = node.get("type").asText();
+		TypeSymbol sym;
+		if (name.startsWith("tuple_type$")) {
+			sym = GlobalSymbolManager.lookupTupleTypeSymbol(Integer.parseInt(name.substring("tuple_type$".length())));
+		} else {
+			sym = (TypeSymbol) symbolManager.lookupSymbol(name);
+		}
+		List<Type> args = new ArrayList<>();
+		for (JsonNode arg : node.get("args")) {
+			args.add(decodeType(arg));
+		}
+		return AlgebraicDataType.make(sym, args);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	public static class Call {
+
+		public final String kind;
+		public final long thread;
+		public final long start;
+		public final long end;
+		public final List<SmtQuery> queries;
+		/**
+		 * The recorded status of each query (null if the traced call failed).
+		 */
+		public final List<SmtStatus> statuses;
+
+		private Call(String kind, long thread, long start, long end, List<SmtQuery> queries,
+				List<SmtStatus> statuses) {
+			this.kind = kind;
+			this.thread = thread;
+			this.start = start;
+			this.end = end;
+			this.queries = queries;
+			this.statuses = statuses;
+		}
+
+	}
+
+}
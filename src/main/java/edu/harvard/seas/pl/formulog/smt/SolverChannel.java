@@ -0,0 +1,261 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The output side of an external solver process, as seen through the
+ * {@link SolverChannelSelector}. A pump thread copies whatever the solver
+ * writes into a pipe, and the selector thread moves it from there into this
+ * channel's buffer; readers consume the buffer either synchronously (as a
+ * {@link Reader}) or by first waiting on a future that completes once a full
+ * response is buffered.
+ */
+public class SolverChannel extends Reader {
+
+	private static final AtomicInteger pumpCnt = new AtomicInteger();
+
+	private final InputStream in;
+	private final Pipe pipe;
+	private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+	private final CharBuffer chars = CharBuffer.allocate(8192);
+
+	private final StringBuilder buf = new StringBuilder();
+	private int pos;
+	private boolean closed;
+	private ResponseWaiter waiter;
+
+	SolverChannel(Process process) throws IOException {
+		this.in = process.getInputStream();
+		pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		Thread pump = new Thread(this::pump, "formulog-smt-pump-" + pumpCnt.getAndIncrement());
+		pump.setDaemon(true);
+		pump.start();
+	}
+
+	Pipe.SourceChannel getSource() {
+		return pipe.source();
+	}
+
+	private void pump() {
+		byte[] b = new byte[8192];
+		try (Pipe.SinkChannel sink = pipe.sink()) {
+			int n;
+			while ((n = in.read(b)) > 0) {
+				ByteBuffer bb = ByteBuffer.wrap(b, 0, n);
+				while (bb.hasRemaining()) {
+					sink.write(bb);
+				}
+			}
+		} catch (IOException e) {
+			// Either the process or this channel is gone; either way, we are done
+		}
+	}
+
+	/**
+	 * Returns a future that completes once a full line of output is buffered
+	 * (or the channel has closed).
+	 */
+	public CompletableFuture<Void> awaitLine() {
+		return await(new ResponseWaiter(false));
+	}
+
+	/**
+	 * Returns a future that completes once a full, newline-terminated
+	 * S-expression is buffered (or the channel has closed).
+	 */
+	public CompletableFuture<Void> awaitSExp() {
+		return await(new ResponseWaiter(true));
+	}
+
+	private CompletableFuture<Void> await(ResponseWaiter w) {
+		synchronized (this) {
+			assert waiter == null : "Only one response can be awaited at a time";
+			if (!w.scan(buf, pos) && !closed) {
+				waiter = w;
+				return w.future;
+			}
+		}
+		w.future.complete(null);
+		return w.future;
+	}
+
+	/**
+	 * Called by the selector thread once the pipe is readable: moves the
+	 * available output into the buffer. Returns false once the end of the
+	 * output has been reached.
+	 */
+	boolean readReady() {
+		try {
+			if (pipe.source().read(bytes) < 0) {
+				append(true);
+				return false;
+			}
+			append(false);
+			return true;
+		} catch (IOException e) {
+			append(true);
+			return false;
+		}
+	}
+
+	private void append(boolean eof) {
+		ResponseWaiter ready = null;
+		synchronized (this) {
+			bytes.flip();
+			decoder.decode(bytes, chars, eof);
+			bytes.compact();
+			chars.flip();
+			buf.append(chars);
+			chars.clear();
+			if (eof) {
+				closed = true;
+			}
+			if (waiter != null && (waiter.scan(buf, pos) || closed)) {
+				ready = waiter;
+				waiter = null;
+			}
+			notifyAll();
+		}
+		if (ready != null) {
+			ready.future.complete(null);
+		}
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		synchronized (this) {
+			while (pos == buf.length() && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			int avail = buf.length() - pos;
+			if (avail == 0) {
+				return -1;
+			}
+			int n = Math.min(avail, len);
+			buf.getChars(pos, pos + n, cbuf, off);
+			pos += n;
+			if (pos == buf.length()) {
+				buf.setLength(0);
+				pos = 0;
+			}
+			return n;
+		}
+	}
+
+	@Override
+	public void close() {
+		ResponseWaiter w;
+		synchronized (this) {
+			closed = true;
+			w = waiter;
+			waiter = null;
+			notifyAll();
+		}
+		if (w != null) {
+			w.future.complete(null);
+		}
+		try {
+			pipe.source().close();
+		} catch (IOException e) {
+			// Nothing left to do
+		}
+	}
+
+	/**
+	 * Incrementally scans the buffer for the end of a response, so that a large
+	 * response arriving in many chunks is only scanned once.
+	 */
+	private static class ResponseWaiter {
+
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private final boolean sexp;
+		private int scanned;
+		private int depth;
+		private boolean started;
+		private boolean inString;
+		private boolean inQuotedSymbol;
+		private boolean inComment;
+
+		public ResponseWaiter(boolean sexp) {
+			this.sexp = sexp;
+		}
+
+		public boolean scan(CharSequence s, int start) {
+			for (int i = Math.max(start, scanned); i < s.length(); ++i) {
+				char c = s.charAt(i);
+				scanned = i + 1;
+				if (!sexp) {
+					if (c == '\n') {
+						return true;
+					}
+					continue;
+				}
+				if (inString) {
+					inString = c != '"';
+				} else if (inQuotedSymbol) {
+					inQuotedSymbol = c != '|';
+				} else if (inComment) {
+					inComment = c != '\n';
+				} else if (c == '"') {
+					inString = true;
+				} else if (c == '|') {
+					inQuotedSymbol = true;
+				} else if (c == ';') {
+					inComment = true;
+				} else if (c == '(') {
+					depth++;
+					started = true;
+				} else if (c == ')') {
+					depth--;
+				} else if (c == '\n') {
+					if (started && depth == 0) {
+						return true;
+					}
+				} else if (!Character.isWhitespace(c) && depth == 0) {
+					// Not an S-expression after all (e.g., a bare error message)
+					started = true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+}
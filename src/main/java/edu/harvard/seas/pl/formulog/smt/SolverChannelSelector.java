@@ -0,0 +1,108 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that services the output of every registered solver
+ * process. The pipes of a {@link Process} are not selectable channels, so the
+ * output of each process is copied into an NIO {@link java.nio.channels.Pipe}
+ * by a pump thread that does nothing but block on the process; this thread
+ * waits on a {@link Selector} for any of those pipes to become readable, and
+ * decodes and buffers what arrives.
+ */
+public class SolverChannelSelector {
+
+	private static volatile SolverChannelSelector instance;
+
+	private final Selector selector;
+	private final Queue<SolverChannel> pending = new ConcurrentLinkedQueue<>();
+
+	private SolverChannelSelector() throws IOException {
+		selector = Selector.open();
+		Thread thread = new Thread(this::run, "formulog-smt-selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static SolverChannelSelector get() {
+		if (instance == null) {
+			synchronized (SolverChannelSelector.class) {
+				if (instance == null) {
+					try {
+						instance = new SolverChannelSelector();
+					} catch (IOException e) {
+						throw new AssertionError("Could not open selector for solver output:\n" + e);
+					}
+				}
+			}
+		}
+		return instance;
+	}
+
+	public SolverChannel register(Process process) throws IOException {
+		SolverChannel ch = new SolverChannel(process);
+		// Registering blocks while the selector is selecting, so leave it to
+		// the selector thread
+		pending.add(ch);
+		selector.wakeup();
+		return ch;
+	}
+
+	public void unregister(SolverChannel ch) {
+		// Closing the pipe also cancels its selection key
+		ch.close();
+	}
+
+	private void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				throw new AssertionError("Selector for solver output failed:\n" + e);
+			}
+			SolverChannel ch;
+			while ((ch = pending.poll()) != null) {
+				try {
+					ch.getSource().register(selector, SelectionKey.OP_READ, ch);
+				} catch (IOException e) {
+					// Already unregistered
+					ch.close();
+				}
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (key.isValid() && !((SolverChannel) key.attachment()).readReady()) {
+					key.cancel();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StandInProcessFactory implements ExternalSolverProcessFactory {
+
+	private static final String[] forwardedProps = { "smtStandInAnswers", "smtStandInRules", "smtStandInRecorded",
+			"smtStandInLatency" };
+
+	private static StandInProcessFactory instance;
+
+	private final List<String> command = new ArrayList<>();
+
+	private StandInProcessFactory() {
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (String prop : forwardedProps) {
+			String val = System.getProperty(prop);
+			if (val != null) {
+				command.add("-D" + prop + "=" + val);
+			}
+		}
+		command.add(StandInSolver.class.getName());
+	}
+
+	public static StandInProcessFactory get() {
+		if (instance == null) {
+			synchronized (StandInProcessFactory.class) {
+				if (instance == null) {
+					instance = new StandInProcessFactory();
+				}
+			}
+		}
+		return instance;
+	}
+
+	@Override
+	public Process newProcess(boolean incremental) throws IOException {
+		return new ProcessBuilder(command).redirectErrorStream(true).start();
+	}
+
+}
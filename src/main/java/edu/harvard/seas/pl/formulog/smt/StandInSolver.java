@@ -0,0 +1,579 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * A deterministic stand-in for an SMT solver, run as an external process by
+ * {@link StandInProcessFactory}. It does no solving, but tracks the
+ * declarations, definitions, and assertions that {@link SmtLibShim} sends it
+ * closely enough to tell which assertions a check is about. Each check is
+ * answered by the first of these that applies:
+ * <ol>
+ * <li>the answer recorded for the same query in the solver logs given by the
+ * <code>smtStandInRecorded</code> property (as written with
+ * <code>debugSmt</code>);</li>
+ * <li>the first rule in the <code>smtStandInRules</code> file whose pattern
+ * occurs in the query;</li>
+ * <li>the next of the answers given by the <code>smtStandInAnswers</code>
+ * property, which are used in turn (by default, always <code>sat</code>).</li>
+ * </ol>
+ * Queries are compared in a normal form: the relevant assertions with shared
+ * definitions expanded, sorted, and with solver variables renamed to
+ * <code>v0</code>, <code>v1</code>, and so on in order of appearance. Models
+ * give every bit-vector and floating-point variable in scope the value zero.
+ * Each check can be delayed by the number of milliseconds given by the
+ * <code>smtStandInLatency</code> property (either a number or a range
+ * <code>MIN-MAX</code>, sampled with a fixed seed).
+ */
+public final class StandInSolver {
+
+	private static final Pattern variable = Pattern.compile("[xd]\\d+");
+	private static final Pattern guarded = Pattern.compile("\\(\\s*assert\\s+\\(\\s*=>\\s+x\\d+\\s");
+
+	private final Reader in;
+	private final PrintWriter out;
+	private final Map<String, String> recorded;
+	private final List<Rule> rules;
+	private final List<String> answers;
+	private final int minLatency;
+	private final int maxLatency;
+	private final Random random = new Random(0);
+	private final Deque<Scope> scopes = new ArrayDeque<>();
+	private int nextAnswer;
+	private boolean printSuccess;
+
+	private StandInSolver(Reader in, PrintWriter out, Map<String, String> recorded, List<Rule> rules,
+			List<String> answers, int minLatency, int maxLatency) {
+		this.in = in;
+		this.out = out;
+		this.recorded = recorded;
+		this.rules = rules;
+		this.answers = answers;
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+		scopes.push(new Scope());
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> answers = new ArrayList<>();
+		String prop = System.getProperty("smtStandInAnswers");
+		if (prop != null) {
+			for (String answer : prop.split(",")) {
+				answers.add(answer.trim());
+			}
+		}
+		if (answers.isEmpty()) {
+			answers.add("sat");
+		}
+		List<Rule> rules = Collections.emptyList();
+		prop = System.getProperty("smtStandInRules");
+		if (prop != null) {
+			rules = loadRules(new File(prop));
+		}
+		Map<String, String> recorded = Collections.emptyMap();
+		prop = System.getProperty("smtStandInRecorded");
+		if (prop != null) {
+			recorded = loadRecorded(new File(prop));
+		}
+		int minLatency = 0;
+		int maxLatency = 0;
+		prop = System.getProperty("smtStandInLatency");
+		if (prop != null) {
+			String[] range = prop.split("-");
+			minLatency = Integer.parseInt(range[0].trim());
+			maxLatency = range.length > 1 ? Integer.parseInt(range[1].trim()) : minLatency;
+		}
+		Reader in = new BufferedReader(new InputStreamReader(System.in));
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+		new StandInSolver(in, out, recorded, rules, answers, minLatency, maxLatency).run();
+	}
+
+	private static List<Rule> loadRules(File file) throws IOException {
+		List<Rule> rules = new ArrayList<>();
+		try (BufferedReader r = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] parts = line.split("\\s+", 2);
+				if (parts.length != 2) {
+					throw new IOException("Malformed stand-in solver rule: " + line);
+				}
+				rules.add(new Rule(parts[0], Pattern.compile(parts[1])));
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Runs the given solver logs through a stand-in, pairing the normal form of
+	 * each query with the result logged for it.
+	 */
+	private static Map<String, String> loadRecorded(File file) throws IOException {
+		Map<String, String> recorded = new HashMap<>();
+		File[] logs = file.isDirectory() ? file.listFiles((dir, name) -> name.endsWith(".smt2"))
+				: new File[] { file };
+		if (logs == null) {
+			throw new IOException("Cannot read recorded stand-in solver answers from " + file);
+		}
+		Arrays.sort(logs);
+		for (File log : logs) {
+			try (Reader r = new BufferedReader(new FileReader(log))) {
+				StandInSolver s = new StandInSolver(r, null, null, null, null, 0, 0);
+				Deque<String> pending = new ArrayDeque<>();
+				String cmd;
+				while ((cmd = s.readCommand(true)) != null) {
+					if (cmd.startsWith(";")) {
+						String comment = cmd.substring(1).trim();
+						if (comment.startsWith("result:") && !pending.isEmpty()) {
+							recorded.put(pending.poll(), comment.substring("result:".length()).trim());
+						}
+						continue;
+					}
+					String name = commandName(cmd);
+					if (name.equals("check-sat") || name.equals("check-sat-assuming")) {
+						pending.add(s.normalizeQuery(cmd));
+					} else {
+						s.updateState(name, cmd);
+					}
+				}
+			}
+		}
+		return recorded;
+	}
+
+	private void run() throws IOException {
+		String cmd;
+		while ((cmd = readCommand(false)) != null) {
+			if (!respond(cmd)) {
+				break;
+			}
+			out.flush();
+		}
+		out.flush();
+	}
+
+	private boolean respond(String cmd) {
+		String name = commandName(cmd);
+		switch (name) {
+		case "exit":
+			return false;
+		case "check-sat":
+		case "check-sat-assuming":
+			out.println(answer(cmd));
+			break;
+		case "get-model":
+			printModel();
+			break;
+		default:
+			updateState(name, cmd);
+			if (printSuccess) {
+				out.println("success");
+			}
+		}
+		return true;
+	}
+
+	private String answer(String cmd) {
+		String query = normalizeQuery(cmd);
+		String answer = recorded.get(query);
+		if (answer == null) {
+			for (Rule rule : rules) {
+				if (rule.pattern.matcher(query).find()) {
+					answer = rule.answer;
+					break;
+				}
+			}
+		}
+		if (answer == null) {
+			answer = answers.get(nextAnswer);
+			nextAnswer = (nextAnswer + 1) % answers.size();
+		}
+		int latency = minLatency + (maxLatency > minLatency ? random.nextInt(maxLatency - minLatency + 1) : 0);
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return answer;
+	}
+
+	private void printModel() {
+		out.println("(model");
+		for (Scope scope : scopes) {
+			for (Map.Entry<String, String> e : scope.vars.entrySet()) {
+				String zero = zeroOf(e.getValue());
+				if (zero != null) {
+					out.println("  (define-fun " + e.getKey() + " () " + e.getValue() + " " + zero + ")");
+				}
+			}
+		}
+		out.println(")");
+	}
+
+	private static String zeroOf(String sort) {
+		String[] parts = sort.replaceAll("[()]", " ").trim().split("\\s+");
+		if (parts.length == 3 && parts[0].equals("_") && parts[1].equals("BitVec")) {
+			int width = Integer.parseInt(parts[2]);
+			if (width % 4 == 0) {
+				return "#x" + String.join("", Collections.nCopies(width / 4, "0"));
+			}
+		} else if (parts.length == 4 && parts[0].equals("_") && parts[1].equals("FloatingPoint")) {
+			return "(_ +zero " + parts[2] + " " + parts[3] + ")";
+		}
+		return null;
+	}
+
+	private void updateState(String name, String cmd) {
+		switch (name) {
+		case "set-option":
+			if (cmd.matches("\\(\\s*set-option\\s+:print-success\\s+true\\s*\\)")) {
+				printSuccess = true;
+			}
+			break;
+		case "push":
+			for (int i = numArg(cmd); i > 0; --i) {
+				scopes.push(new Scope());
+			}
+			break;
+		case "pop":
+			for (int i = numArg(cmd); i > 0 && scopes.size() > 1; --i) {
+				scopes.pop();
+			}
+			break;
+		case "reset":
+		case "reset-assertions":
+			scopes.clear();
+			scopes.push(new Scope());
+			break;
+		case "declare-fun":
+		case "declare-const": {
+			List<String> parts = splitSExp(cmd);
+			// Only constants are interesting (they might be in models)
+			if (parts.size() == 4 && parts.get(2).equals("()") && variable.matcher(parts.get(1)).matches()) {
+				scopes.peek().vars.put(parts.get(1), parts.get(3));
+			} else if (parts.size() == 3 && variable.matcher(parts.get(1)).matches()) {
+				scopes.peek().vars.put(parts.get(1), parts.get(2));
+			}
+			break;
+		}
+		case "define-fun": {
+			List<String> parts = splitSExp(cmd);
+			if (parts.size() == 5 && variable.matcher(parts.get(1)).matches()) {
+				scopes.peek().defs.put(parts.get(1), expand(parts.get(4)));
+			}
+			break;
+		}
+		case "assert": {
+			// Assertions are kept without their guard (if any), so that the same
+			// query looks the same whether or not it was guarded
+			List<String> parts = splitSExp(expand(cmd));
+			String guard = null;
+			String body = parts.get(1);
+			if (guarded.matcher(cmd).lookingAt()) {
+				List<String> imp = splitSExp(body);
+				guard = imp.get(1);
+				body = imp.get(2);
+			}
+			scopes.peek().assertions.add(new Assertion(guard, body));
+			break;
+		}
+		default:
+			// Nothing to keep track of
+		}
+	}
+
+	/**
+	 * Returns the normal form of the query made by the given check command: the
+	 * unguarded assertions in scope and the guarded ones enabled by the
+	 * command, followed by the command's assumptions.
+	 */
+	private String normalizeQuery(String cmd) {
+		Set<String> on = new HashSet<>();
+		List<String> parts = new ArrayList<>();
+		if (commandName(cmd).equals("check-sat-assuming")) {
+			List<String> assumptions = splitSExp(splitSExp(cmd).get(1));
+			for (String lit : assumptions) {
+				if (variable.matcher(lit).matches()) {
+					on.add(lit);
+				}
+			}
+		}
+		for (Scope scope : scopes) {
+			for (Assertion a : scope.assertions) {
+				if (a.guard == null || on.contains(a.guard)) {
+					parts.add(a.text);
+				}
+			}
+		}
+		// Sort by the shape of each assertion, then number the variables
+		// across all of them
+		Map<String, String> shapes = new HashMap<>();
+		for (String part : parts) {
+			shapes.put(part, renameVariables(part, new LinkedHashMap<>()));
+		}
+		parts.sort((a, b) -> {
+			int cmp = shapes.get(a).compareTo(shapes.get(b));
+			return cmp != 0 ? cmp : a.compareTo(b);
+		});
+		return renameVariables(String.join("\n", parts), new LinkedHashMap<>());
+	}
+
+	/**
+	 * Replaces the names of shared definitions in the given text with the
+	 * definitions themselves.
+	 */
+	private String expand(String text) {
+		return mapSymbols(text, sym -> {
+			for (Scope scope : scopes) {
+				String def = scope.defs.get(sym);
+				if (def != null) {
+					return def;
+				}
+			}
+			return sym;
+		});
+	}
+
+	private static String renameVariables(String text, Map<String, String> names) {
+		return mapSymbols(text, sym -> {
+			if (!variable.matcher(sym).matches()) {
+				return sym;
+			}
+			return names.computeIfAbsent(sym, k -> "v" + names.size());
+		});
+	}
+
+	private static boolean isSymbolChar(char c) {
+		return Character.isLetterOrDigit(c) || "~!@$%^&*_-+=<>.?/#:'".indexOf(c) >= 0;
+	}
+
+	/**
+	 * Applies the given function to each simple symbol in the text, leaving
+	 * string literals and quoted symbols alone.
+	 */
+	private static String mapSymbols(String text, Function<String, String> f) {
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '|') {
+				int j = text.indexOf(c, i + 1);
+				j = j < 0 ? text.length() : j + 1;
+				sb.append(text, i, j);
+				i = j;
+			} else if (isSymbolChar(c)) {
+				int j = i;
+				while (j < text.length() && isSymbolChar(text.charAt(j))) {
+					j++;
+				}
+				sb.append(f.apply(text.substring(i, j)));
+				i = j;
+			} else {
+				sb.append(c);
+				i++;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits an s-expression into its top-level elements.
+	 */
+	private static List<String> splitSExp(String sexp) {
+		List<String> parts = new ArrayList<>();
+		int depth = 0;
+		int start = -1;
+		for (int i = 1; i < sexp.length() - 1; ++i) {
+			char c = sexp.charAt(i);
+			if (c == '"' || c == '|') {
+				int j = sexp.indexOf(c, i + 1);
+				if (start < 0) {
+					start = i;
+				}
+				i = j < 0 ? sexp.length() - 2 : j;
+			} else if (c == '(') {
+				if (depth++ == 0 && start < 0) {
+					start = i;
+				}
+			} else if (c == ')') {
+				if (--depth == 0) {
+					parts.add(sexp.substring(start, i + 1));
+					start = -1;
+				}
+			} else if (Character.isWhitespace(c)) {
+				if (depth == 0 && start >= 0) {
+					parts.add(sexp.substring(start, i));
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+		if (start >= 0) {
+			parts.add(sexp.substring(start, sexp.length() - 1).trim());
+		}
+		return parts;
+	}
+
+	private static int numArg(String cmd) {
+		List<String> parts = splitSExp(cmd);
+		return parts.size() > 1 ? Integer.parseInt(parts.get(1)) : 1;
+	}
+
+	private static String commandName(String cmd) {
+		int i = 1;
+		while (i < cmd.length() && Character.isWhitespace(cmd.charAt(i))) {
+			i++;
+		}
+		int j = i;
+		while (j < cmd.length() && !Character.isWhitespace(cmd.charAt(j)) && cmd.charAt(j) != '('
+				&& cmd.charAt(j) != ')') {
+			j++;
+		}
+		return cmd.substring(i, j);
+	}
+
+	/**
+	 * Reads the next top-level s-expression, skipping whitespace; returns null
+	 * at the end of the input. Top-level comments are skipped, unless asked for
+	 * (in which case they are returned, starting with a semicolon).
+	 */
+	private String readCommand(boolean keepComments) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int depth = 0;
+		int c;
+		while ((c = in.read()) != -1) {
+			if (depth == 0 && c != '(') {
+				if (c == ';') {
+					String comment = skipComment();
+					if (keepComments) {
+						return ";" + comment;
+					}
+				}
+				continue;
+			}
+			sb.append((char) c);
+			switch (c) {
+			case '(':
+				depth++;
+				break;
+			case ')':
+				if (--depth == 0) {
+					return sb.toString();
+				}
+				break;
+			case ';':
+				sb.setLength(sb.length() - 1);
+				skipComment();
+				break;
+			case '"':
+				readUntil('"', sb);
+				break;
+			case '|':
+				readUntil('|', sb);
+				break;
+			}
+		}
+		return null;
+	}
+
+	private String skipComment() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private void readUntil(char end, StringBuilder sb) throws IOException {
+		int c;
+		while ((c = in.read()) != -1) {
+			sb.append((char) c);
+			if (c == end) {
+				return;
+			}
+		}
+	}
+
+	private static class Scope {
+
+		final Map<String, String> vars = new LinkedHashMap<>();
+		final Map<String, String> defs = new HashMap<>();
+		final List<Assertion> assertions = new ArrayList<>();
+
+	}
+
+	private static class Assertion {
+
+		final String guard;
+		final String text;
+
+		Assertion(String guard, String text) {
+			this.guard = guard;
+			this.text = text;
+		}
+
+	}
+
+	private static class Rule {
+
+		final String answer;
+		final Pattern pattern;
+
+		Rule(String answer, Pattern pattern) {
+			this.answer = answer;
+			this.pattern = pattern;
+		}
+
+	}
+
+}
@@ -0,0 +1,391 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Constructor;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.GlobalSymbolManager.TupleSymbol;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.Param;
+import edu.harvard.seas.pl.formulog.symbols.parameterized.ParameterizedSymbol;
+import edu.harvard.seas.pl.formulog.types.Types.AlgebraicDataType;
+import edu.harvard.seas.pl.formulog.types.Types.Type;
+import edu.harvard.seas.pl.formulog.types.Types.TypeIndex;
+import edu.harvard.seas.pl.formulog.types.Types.TypeVar;
+
+/**
+ * Records every query sent to the wrapped solver in a JSON-lines trace, which
+ * can be replayed later by {@link edu.harvard.seas.pl.formulog.SmtReplay}.
+ * 
+ * Each term is written once, as a <code>def</code> line whose arguments refer
+ * to earlier definitions by id; a <code>call</code> line then lists, for each
+ * query of a check, the ids of its conjuncts along with the query flags and the
+ * status the solver returned.
+ * 
+ * Calls are handed off to a background thread that writes the trace, so that
+ * tracing does not make the calling threads wait on each other. That thread
+ * only remembers the ids of recently written terms; a term that has not come
+ * up in a while is simply defined again, under a new id.
+ */
+public class TracingSolver implements SmtLibSolver {
+
+	private static final int maxRememberedTerms = 1 << 16;
+	private static final int maxPendingCalls = 1 << 12;
+	private static final CallRecord endOfTrace = new CallRecord(null, null, null, 0, 0, 0);
+
+	private final SmtLibSolver inner;
+	private final String file;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final long startTime = System.nanoTime();
+	private final BlockingQueue<CallRecord> pending = new LinkedBlockingQueue<>(maxPendingCalls);
+	private volatile boolean closed;
+	private Thread writer;
+
+	/*
+	 * The fields below are only used by the writer thread (once it has been
+	 * started).
+	 */
+	private final Map<Term, Integer> ids = new LinkedHashMap<Term, Integer>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Term, Integer> eldest) {
+			return size() > maxRememberedTerms;
+		}
+
+	};
+	private Writer out;
+	private int nextId;
+
+	public TracingSolver(SmtLibSolver inner, String file) {
+		this.inner = inner;
+		this.file = file;
+	}
+
+	@Override
+	public void start(Program<?, ?> prog) throws EvaluationException {
+		try {
+			synchronized (this) {
+				out = new BufferedWriter(new FileWriter(file));
+				ObjectNode header = mapper.createObjectNode();
+				header.put("trace", 1);
+				header.put("solver", Configuration.smtSolver);
+				header.put("strategy", Configuration.smtStrategy.toString());
+				header.put("started", System.currentTimeMillis());
+				writeLine(header);
+				writer = new Thread(this::writeCalls, "formulog-smt-trace");
+				writer.setDaemon(true);
+				writer.start();
+			}
+		} catch (IOException e) {
+			throw new EvaluationException("Could not create SMT trace " + file + ":\n" + e);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				close();
+			}
+
+		});
+		inner.start(prog);
+	}
+
+	@Override
+	public SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) throws EvaluationException {
+		long start = now();
+		try {
+			SmtResult res = inner.check(t, getModel, timeout);
+			record("check", Collections.singletonList(new SmtQuery(t, getModel, timeout)),
+					Collections.singletonList(res), start);
+			return res;
+		} catch (EvaluationException e) {
+			record("check", Collections.singletonList(new SmtQuery(t, getModel, timeout)), null, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> t, boolean getModel, int timeout) {
+		long start = now();
+		long thread = Thread.currentThread().getId();
+		List<SmtQuery> qs = Collections.singletonList(new SmtQuery(t, getModel, timeout));
+		return inner.checkAsync(t, getModel, timeout).whenComplete((res, exn) -> {
+			record("async", qs, res == null ? null : Collections.singletonList(res), start, thread);
+		});
+	}
+
+	@Override
+	public void checkBatch(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+		long start = now();
+		int base = results.size();
+		try {
+			inner.checkBatch(queries, results);
+			record("batch", queries, new ArrayList<>(results.subList(base, results.size())), start);
+		} catch (EvaluationException e) {
+			record("batch", queries, null, start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void kill() {
+		inner.kill();
+	}
+
+	@Override
+	public void destroy() {
+		inner.destroy();
+		close();
+	}
+
+	private long now() {
+		return (System.nanoTime() - startTime) / 1000;
+	}
+
+	private void record(String kind, List<SmtQuery> queries, List<SmtResult> results, long start) {
+		record(kind, queries, results, start, Thread.currentThread().getId());
+	}
+
+	private void record(String kind, List<SmtQuery> queries, List<SmtResult> results, long start, long thread) {
+		if (closed) {
+			return;
+		}
+		try {
+			pending.put(new CallRecord(kind, queries, results, start, now(), thread));
+		} catch (InterruptedException e) {
+			// Drop the call from the trace, but let the caller see the interrupt
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeCalls() {
+		while (true) {
+			CallRecord r;
+			try {
+				r = pending.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (r == endOfTrace) {
+				break;
+			}
+			if (out != null) {
+				write(r);
+			}
+		}
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				System.err.println("WARNING: Unable to close SMT trace: " + e.getMessage());
+			}
+			out = null;
+		}
+	}
+
+	private void write(CallRecord r) {
+		try {
+			ObjectNode call = mapper.createObjectNode();
+			call.put("call", r.kind);
+			call.put("thread", r.thread);
+			call.put("start", r.start);
+			call.put("end", r.end);
+			List<SmtQuery> queries = r.queries;
+			List<SmtResult> results = r.results;
+			ArrayNode qs = call.putArray("queries");
+			for (int i = 0; i < queries.size(); ++i) {
+				SmtQuery q = queries.get(i);
+				ObjectNode node = qs.addObject();
+				ArrayNode conjuncts = node.putArray("conjuncts");
+				for (SmtLibTerm conjunct : q.conjuncts) {
+					conjuncts.add(define(conjunct));
+				}
+				node.put("getModel", q.getModel);
+				node.put("timeout", q.timeout);
+				node.put("status", results == null ? "ERROR" : results.get(i).status.toString());
+			}
+			writeLine(call);
+		} catch (IOException e) {
+			System.err.println("WARNING: Unable to write SMT trace (" + e.getMessage() + "); tracing stopped");
+			out = null;
+		}
+	}
+
+	private int define(Term t) throws IOException {
+		Integer id = ids.get(t);
+		if (id != null) {
+			return id;
+		}
+		// Arguments are defined first, so that definitions only refer to earlier ones
+		ArrayNode args = null;
+		if (t instanceof Constructor) {
+			args = mapper.createArrayNode();
+			for (Term arg : ((Constructor) t).getArgs()) {
+				args.add(define(arg));
+			}
+		}
+		ObjectNode node = mapper.createObjectNode();
+		id = nextId++;
+		node.put("def", id);
+		if (t instanceof Constructor) {
+			ConstructorSymbol sym = ((Constructor) t).getSymbol();
+			if (sym instanceof TupleSymbol) {
+				node.put("tuple", sym.getArity());
+			} else if (sym instanceof ParameterizedSymbol) {
+				ParameterizedSymbol psym = (ParameterizedSymbol) sym;
+				node.put("sym", psym.getBase().toString());
+				ArrayNode params = node.putArray("params");
+				for (Param p : psym.getArgs()) {
+					ObjectNode param = params.addObject();
+					param.put("kind", p.getKind().toString());
+					param.set("type", encodeType(p.getType()));
+				}
+			} else {
+				node.put("sym", sym.toString());
+			}
+			node.set("args", args);
+		} else if (t instanceof I32) {
+			node.put("i32", ((I32) t).getVal());
+		} else if (t instanceof I64) {
+			node.put("i64", ((I64) t).getVal());
+		} else if (t instanceof FP32) {
+			node.put("fp32", Float.floatToRawIntBits(((FP32) t).getVal()));
+		} else if (t instanceof FP64) {
+			node.put("fp64", Double.doubleToRawLongBits(((FP64) t).getVal()));
+		} else if (t instanceof StringTerm) {
+			node.put("string", ((StringTerm) t).getVal());
+		} else if (t instanceof BoolTerm) {
+			node.put("bool", ((BoolTerm) t).getVal());
+		} else {
+			// Placeholder terms, such as the keys of fresh solver variables
+			node.put("dummy", t.getId());
+		}
+		ids.put(t, id);
+		writeLine(node);
+		return id;
+	}
+
+	private ObjectNode encodeType(Type type) {
+		ObjectNode node = mapper.createObjectNode();
+		if (type instanceof TypeVar) {
+			node.put("var", type.toString());
+		} else if (type instanceof TypeIndex) {
+			node.put("index", ((TypeIndex) type).getIndex());
+		} else if (type instanceof AlgebraicDataType) {
+			AlgebraicDataType adt = (AlgebraicDataType) type;
+			node.put("type", adt.getSymbol().toString());
+			ArrayNode args = node.putArray("args");
+			for (Type arg : adt.getTypeArgs()) {
+				args.add(encodeType(arg));
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot trace type " + type);
+		}
+		return node;
+	}
+
+	private void writeLine(ObjectNode node) throws IOException {
+		out.write(mapper.writeValueAsString(node));
+		out.write('\n');
+	}
+
+	/**
+	 * Waits for the calls recorded so far to be written, and closes the trace.
+	 */
+	private synchronized void close() {
+		if (closed || writer == null) {
+			return;
+		}
+		closed = true;
+		boolean interrupted = false;
+		while (true) {
+			try {
+				pending.put(endOfTrace);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class CallRecord {
+
+		public final String kind;
+		public final List<SmtQuery> queries;
+		public final List<SmtResult> results;
+		public final long start;
+		public final long end;
+		public final long thread;
+
+		public CallRecord(String kind, List<SmtQuery> queries, List<SmtResult> results, long start, long end,
+				long thread) {
+			this.kind = kind;
+			this.queries = queries;
+			this.results = results;
+			this.start = start;
+			this.end = end;
+			this.thread = thread;
+		}
+
+	}
+
+}
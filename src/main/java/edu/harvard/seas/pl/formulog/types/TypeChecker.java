@@ -23,6 +23,7 @@ package edu.harvard.seas.pl.formulog.types;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
@@ -33,8 +34,9 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import edu.harvard.seas.pl.formulog.Configuration;
 import edu.harvard.seas.pl.formulog.ast.BasicRule;
@@ -101,16 +103,22 @@ public class TypeChecker {
 		if (outputProgram != null) {
 			return outputProgram;
 		}
-		ExecutorService exec = Executors.newFixedThreadPool(Configuration.parallelism);
-		Map<RelationSymbol, Set<Term[]>> newFacts = typeCheckFacts(exec);
-		Map<FunctionSymbol, FunctionDef> newFuncs = typeCheckFunctions(exec);
+		ExecutorService exec = new ForkJoinPool(Configuration.parallelism);
+		Map<RelationSymbol, Set<Term[]>> newFacts;
+		Map<FunctionSymbol, FunctionDef> newFuncs;
+		Map<RelationSymbol, Set<BasicRule>> newRules;
 		FunctionDefManager dm = prog.getFunctionCallFactory().getDefManager();
-		for (FunctionDef func : newFuncs.values()) {
-			dm.reregister(func);
+		try {
+			newFacts = typeCheckFacts(exec, prog.getFactSymbols());
+			newFuncs = typeCheckFunctions(exec);
+			for (FunctionDef func : newFuncs.values()) {
+				dm.reregister(func);
+			}
+			newRules = typeCheckRules(exec);
+		} finally {
+			exec.shutdown();
 		}
-		Map<RelationSymbol, Set<BasicRule>> newRules = typeCheckRules(exec);
 		UserPredicate newQuery = typeCheckQuery();
-		exec.shutdown();
 		outputProgram = new WellTypedProgram() {
 
 			@Override
@@ -189,6 +197,24 @@ public class TypeChecker {
 		return outputProgram;
 	}
 
+	/**
+	 * Type checks the current facts of the given relations in place. This is
+	 * for facts that are added to a program after it has been type checked, such
+	 * as the external facts loaded for each run of a batch.
+	 */
+	public void typeCheckFacts(Collection<RelationSymbol> syms) throws TypeException {
+		ExecutorService exec = new ForkJoinPool(Configuration.parallelism);
+		try {
+			for (Map.Entry<RelationSymbol, Set<Term[]>> e : typeCheckFacts(exec, syms).entrySet()) {
+				Set<Term[]> facts = prog.getFacts(e.getKey());
+				facts.clear();
+				facts.addAll(e.getValue());
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+
 	private UserPredicate typeCheckQuery() throws TypeException {
 		if (prog.hasQuery()) {
 			TypeCheckerContext ctx = new TypeCheckerContext();
@@ -197,77 +223,121 @@ public class TypeChecker {
 		return null;
 	}
 
-	private static <K, V> Map<K, V> mapFromFutures(Map<K, Future<V>> futures) throws TypeException {
-		try {
-			return Util.fillMapWithFutures(futures, new HashMap<>());
-		} catch (InterruptedException | ExecutionException e) {
-			throw new TypeException(e);
+	/**
+	 * Runs a batch of independent type-checking tasks and returns their results
+	 * in order. If some tasks fail, the error that is reported is the one whose
+	 * task has the least key (with ties broken by position), so that which error
+	 * is reported does not depend on how the tasks happened to be scheduled. Keys
+	 * are only computed for failed tasks.
+	 */
+	private static <T> List<T> runAll(ExecutorService exec, List<Callable<T>> tasks, List<Supplier<String>> keys)
+			throws TypeException {
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(exec.submit(task));
+		}
+		List<T> results = new ArrayList<>(tasks.size());
+		TypeException error = null;
+		String errorKey = null;
+		for (int i = 0; i < futures.size(); ++i) {
+			try {
+				results.add(futures.get(i).get());
+			} catch (InterruptedException e) {
+				throw new TypeException(e);
+			} catch (ExecutionException e) {
+				String key = keys.get(i).get();
+				if (error == null || key.compareTo(errorKey) < 0) {
+					Throwable cause = e.getCause();
+					error = cause instanceof TypeException ? (TypeException) cause : new TypeException(cause);
+					errorKey = key;
+				}
+			}
+		}
+		if (error != null) {
+			throw error;
 		}
+		return results;
 	}
 
-	private Map<RelationSymbol, Set<Term[]>> typeCheckFacts(ExecutorService exec) throws TypeException {
-		Map<RelationSymbol, Future<Set<Term[]>>> futures = new HashMap<>();
-		for (RelationSymbol sym : prog.getFactSymbols()) {
-			Future<Set<Term[]>> fut = exec.submit(new Callable<Set<Term[]>>() {
-
-				@Override
-				public Set<Term[]> call() throws Exception {
-					Set<Term[]> s = new HashSet<>();
+	/**
+	 * Type checks facts in chunks of {@link Configuration#taskSize}, so that a
+	 * relation with many facts is spread across threads.
+	 */
+	private Map<RelationSymbol, Set<Term[]>> typeCheckFacts(ExecutorService exec, Collection<RelationSymbol> factSyms)
+			throws TypeException {
+		List<RelationSymbol> syms = new ArrayList<>();
+		List<Callable<List<Term[]>>> tasks = new ArrayList<>();
+		List<Supplier<String>> keys = new ArrayList<>();
+		for (RelationSymbol sym : factSyms) {
+			for (Iterable<Term[]> chunk : Util.splitIterable(prog.getFacts(sym), Configuration.taskSize)) {
+				List<Term[]> facts = new ArrayList<>();
+				chunk.forEach(facts::add);
+				syms.add(sym);
+				tasks.add(() -> {
+					List<Term[]> l = new ArrayList<>(facts.size());
 					TypeCheckerContext ctx = new TypeCheckerContext();
-					for (Term[] args : prog.getFacts(sym)) {
-						s.add(ctx.typeCheckFact(sym, args));
+					for (Term[] args : facts) {
+						l.add(ctx.typeCheckFact(sym, args));
 					}
-					return s;
-				}
-
-			});
-			futures.put(sym, fut);
+					return l;
+				});
+				keys.add(() -> sym.toString());
+			}
+		}
+		List<List<Term[]>> results = runAll(exec, tasks, keys);
+		Map<RelationSymbol, Set<Term[]>> m = new HashMap<>();
+		for (RelationSymbol sym : factSyms) {
+			m.put(sym, new HashSet<>());
 		}
-		return mapFromFutures(futures);
+		for (int i = 0; i < results.size(); ++i) {
+			m.get(syms.get(i)).addAll(results.get(i));
+		}
+		return m;
 	}
 
+	/**
+	 * Type checks each rule as its own task, since rules can be checked
+	 * independently once the types of functions are fixed.
+	 */
 	private Map<RelationSymbol, Set<BasicRule>> typeCheckRules(ExecutorService exec) throws TypeException {
-		Map<RelationSymbol, Future<Set<BasicRule>>> futures = new HashMap<>();
+		List<RelationSymbol> syms = new ArrayList<>();
+		List<Callable<BasicRule>> tasks = new ArrayList<>();
+		List<Supplier<String>> keys = new ArrayList<>();
 		for (RelationSymbol sym : prog.getRuleSymbols()) {
-			Future<Set<BasicRule>> fut = exec.submit(new Callable<Set<BasicRule>>() {
-
-				@Override
-				public Set<BasicRule> call() throws Exception {
-					Set<BasicRule> s = new HashSet<>();
-					for (BasicRule r : prog.getRules(sym)) {
-						TypeCheckerContext ctx = new TypeCheckerContext();
-						s.add(ctx.typeCheckRule(r));
-					}
-					return s;
-				}
-
-			});
-			futures.put(sym, fut);
+			for (BasicRule r : prog.getRules(sym)) {
+				syms.add(sym);
+				tasks.add(() -> new TypeCheckerContext().typeCheckRule(r));
+				keys.add(() -> sym + "\t" + r);
+			}
+		}
+		List<BasicRule> results = runAll(exec, tasks, keys);
+		Map<RelationSymbol, Set<BasicRule>> m = new HashMap<>();
+		for (RelationSymbol sym : prog.getRuleSymbols()) {
+			m.put(sym, new HashSet<>());
+		}
+		for (int i = 0; i < results.size(); ++i) {
+			m.get(syms.get(i)).add(results.get(i));
 		}
-		return mapFromFutures(futures);
+		return m;
 	}
 
 	private Map<FunctionSymbol, FunctionDef> typeCheckFunctions(ExecutorService exec) throws TypeException {
-		Map<FunctionSymbol, Future<FunctionDef>> futures = new HashMap<>();
+		List<Callable<FunctionDef>> tasks = new ArrayList<>();
+		List<Supplier<String>> keys = new ArrayList<>();
 		List<FunctionDef> nonUserFunctions = new ArrayList<>();
 		for (FunctionSymbol sym : prog.getFunctionSymbols()) {
 			FunctionDef def = prog.getDef(sym);
 			if (def instanceof UserFunctionDef) {
-				Future<FunctionDef> fut = exec.submit(new Callable<FunctionDef>() {
-
-					@Override
-					public FunctionDef call() throws Exception {
-						TypeCheckerContext ctx = new TypeCheckerContext();
-						return ctx.typeCheckFunction((UserFunctionDef) def);
-					}
-
-				});
-				futures.put(sym, fut);
+				tasks.add(() -> new TypeCheckerContext().typeCheckFunction((UserFunctionDef) def));
+				keys.add(() -> sym.toString());
 			} else {
 				nonUserFunctions.add(def);
 			}
 		}
-		Map<FunctionSymbol, FunctionDef> m = mapFromFutures(futures);
+		Map<FunctionSymbol, FunctionDef> m = new HashMap<>();
+		for (FunctionDef def : runAll(exec, tasks, keys)) {
+			m.put(def.getSymbol(), def);
+		}
 		for (FunctionDef def : nonUserFunctions) {
 			m.put(def.getSymbol(), def);
 		}
@@ -20,6 +20,8 @@ package edu.harvard.seas.pl.formulog.util;
  * #L%
  */
 
+import java.util.concurrent.CompletableFuture;
+
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 
 
@@ -28,6 +30,12 @@ public interface CountingFJP {
 	void externallyAddTask(AbstractFJPTask w);
 
 	void recursivelyAddTask(AbstractFJPTask w);
+
+	/**
+	 * Adds a task that only becomes runnable once the given future has completed
+	 * (normally or not); the pool does not count as finished until it has run.
+	 */
+	void addTaskAfter(CompletableFuture<?> trigger, AbstractFJPTask w);
 	
 	void reportTaskCompletion();
 
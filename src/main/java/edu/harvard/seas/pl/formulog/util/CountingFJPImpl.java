@@ -21,6 +21,7 @@ package edu.harvard.seas.pl.formulog.util;
  */
 
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.ForkJoinWorkerThread;
@@ -67,6 +68,18 @@ public class CountingFJPImpl implements CountingFJP {
 		}
 	}
 
+	public void addTaskAfter(CompletableFuture<?> trigger, AbstractFJPTask w) {
+		taskCount.incrementAndGet();
+		trigger.whenComplete((v, e) -> {
+			try {
+				exec.execute(w);
+			} catch (RejectedExecutionException exn) {
+				// The task will never run, so it will never report its completion
+				reportTaskCompletion();
+			}
+		});
+	}
+
 	public void reportTaskCompletion() {
 		if (taskCount.decrementAndGet() == 0) {
 			synchronized (taskCount) {
@@ -0,0 +1,75 @@
+package edu.harvard.seas.pl.formulog.util;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A thread-safe map holding at most a fixed number of entries; once it is
+ * full, adding an entry evicts the least recently used one.
+ */
+public class LruCache<K, V> {
+
+	private final Map<K, V> m;
+
+	public LruCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cannot have non-positive capacity.");
+		}
+		m = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+
+		};
+	}
+
+	public synchronized V get(K key) {
+		return m.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		m.put(key, value);
+	}
+
+	public synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> f) {
+		return m.computeIfAbsent(key, f);
+	}
+
+	public synchronized void remove(K key) {
+		m.remove(key);
+	}
+
+	public synchronized void clear() {
+		m.clear();
+	}
+
+	public synchronized int size() {
+		return m.size();
+	}
+
+}
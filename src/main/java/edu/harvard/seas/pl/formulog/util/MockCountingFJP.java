@@ -22,6 +22,7 @@ package edu.harvard.seas.pl.formulog.util;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
 
 import edu.harvard.seas.pl.formulog.eval.EvaluationException;
 
@@ -40,6 +41,12 @@ public class MockCountingFJP implements CountingFJP {
 		workItems.addLast(w);
 	}
 
+	public synchronized void addTaskAfter(CompletableFuture<?> trigger, AbstractFJPTask w) {
+		// Everything runs on one thread anyway, so just wait here
+		trigger.handle((v, e) -> null).join();
+		workItems.addLast(w);
+	}
+
 	public synchronized final void blockUntilFinished() {
 		while (!workItems.isEmpty() && !hasFailed()) {
 			AbstractFJPTask task = workItems.removeLast();
@@ -20,7 +20,6 @@ package edu.harvard.seas.pl.formulog.util;
  * #L%
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -79,12 +78,7 @@ public final class Util {
 	}
 
 	public static void printSortedFacts(Iterable<UserPredicate> facts, PrintStream out) {
-		Util.iterableToList(facts).stream().map(a -> {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			PrintStream ps = new PrintStream(baos);
-			ps.print(a);
-			return baos.toString();
-		}).sorted().forEach(s -> out.println(s));
+		Util.iterableToList(facts).parallelStream().map(String::valueOf).sorted().forEachOrdered(out::println);
 	}
 
 	public static <K, V> Map<K, V> fillMapWithFutures(Map<K, Future<V>> futures, Map<K, V> m)
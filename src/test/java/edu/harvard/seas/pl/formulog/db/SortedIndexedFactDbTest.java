@@ -0,0 +1,116 @@
+package edu.harvard.seas.pl.formulog.db;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.BindingType;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.db.SortedIndexedFactDb.SortedIndexedFactDbBuilder;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+
+public class SortedIndexedFactDbTest {
+
+	private static final BindingType b = BindingType.BOUND;
+	private static final BindingType f = BindingType.FREE;
+
+	private final RelationSymbol sym;
+	private final SortedIndexedFactDb db;
+	private final int byFirst;
+	private final int bySecond;
+
+	public SortedIndexedFactDbTest() throws Exception {
+		BasicProgram p = new Parser().parse(new StringReader("input r(i32, i32).\n"));
+		sym = (RelationSymbol) p.getSymbolManager().lookupSymbol("r");
+		SortedIndexedFactDbBuilder dbb = new SortedIndexedFactDbBuilder(Collections.singleton(sym));
+		byFirst = dbb.makeIndex(sym, new BindingType[] { b, f });
+		bySecond = dbb.makeIndex(sym, new BindingType[] { f, b });
+		db = dbb.build();
+	}
+
+	private static Term[] tup(int x, int y) {
+		return new Term[] { I32.make(x), I32.make(y) };
+	}
+
+	private static List<Term[]> tups(int... xs) {
+		List<Term[]> l = new ArrayList<>();
+		for (int i = 0; i < xs.length; i += 2) {
+			l.add(tup(xs[i], xs[i + 1]));
+		}
+		return l;
+	}
+
+	private static Set<List<Term>> set(Iterable<Term[]> tups) {
+		Set<List<Term>> s = new HashSet<>();
+		for (Term[] tup : tups) {
+			s.add(Arrays.asList(tup));
+		}
+		return s;
+	}
+
+	private Set<List<Term>> lookup(int index, Term[] key) {
+		return set(db.get(sym, key, index));
+	}
+
+	@Test
+	public void testBulkLoadDropsDuplicates() {
+		db.bulkLoad(sym, tups(1, 2, 2, 1, 1, 2, 1, 3, 2, 1));
+		assertEquals(3, db.countDistinct(sym));
+		assertEquals(set(tups(1, 2, 2, 1, 1, 3)), set(db.getAll(sym)));
+		assertTrue(db.hasFact(sym, tup(1, 3)));
+	}
+
+	@Test
+	public void testBulkLoadBuildsEveryIndex() {
+		db.bulkLoad(sym, tups(1, 2, 2, 1, 1, 3, 3, 1, 1, 2));
+		assertEquals(set(tups(1, 2, 1, 3)), lookup(byFirst, tup(1, 0)));
+		assertEquals(set(tups(2, 1, 3, 1)), lookup(bySecond, tup(0, 1)));
+		assertEquals(set(tups()), lookup(byFirst, tup(4, 0)));
+		// The indices built in bulk still take single insertions
+		assertTrue(db.add(sym, tup(0, 1)));
+		assertEquals(set(tups(0, 1, 2, 1, 3, 1)), lookup(bySecond, tup(0, 1)));
+		assertEquals(set(tups(0, 1)), lookup(byFirst, tup(0, 0)));
+	}
+
+	@Test
+	public void testBulkLoadIntoNonEmptyRelationAddsTuples() {
+		assertTrue(db.add(sym, tup(5, 5)));
+		db.bulkLoad(sym, tups(5, 5, 6, 5, 6, 5));
+		assertEquals(2, db.countDistinct(sym));
+		assertEquals(set(tups(5, 5, 6, 5)), lookup(bySecond, tup(0, 5)));
+		assertEquals(set(tups(6, 5)), lookup(byFirst, tup(6, 0)));
+	}
+
+}
@@ -0,0 +1,196 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.functions.FunctionDef;
+import edu.harvard.seas.pl.formulog.functions.FunctionDefManager;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.smt.SmtCallPendingException;
+import edu.harvard.seas.pl.formulog.smt.SmtLibSolver;
+import edu.harvard.seas.pl.formulog.smt.SmtResult;
+import edu.harvard.seas.pl.formulog.smt.SmtStatus;
+import edu.harvard.seas.pl.formulog.symbols.BuiltInFunctionSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+
+/**
+ * Runs round-based evaluation with <code>smtAsyncEval</code> switched on,
+ * against a solver that answers some time after each query is made, so that
+ * rules have to be resumed once their SMT calls complete.
+ */
+public class SemiNaiveAsyncSmtTest {
+
+	private static final String rules = "output ok(i32).\n" + "ok(X) :- num(X), is_sat(`X #= X`).\n"
+			+ "output unsat(i32).\n" + "unsat(X) :- num(X), !is_sat(`X #= X`).\n";
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+	private boolean wasAsync;
+
+	@Before
+	public void enableAsync() {
+		wasAsync = RoundBasedStratumEvaluator.smtAsyncEval;
+		RoundBasedStratumEvaluator.smtAsyncEval = true;
+	}
+
+	@After
+	public void restoreAsync() {
+		RoundBasedStratumEvaluator.smtAsyncEval = wasAsync;
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Answers every query with SAT, or fails it while <code>failing</code> is
+	 * set, but only after a short delay.
+	 */
+	private class DelayedSolver implements SmtLibSolver {
+
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger pending = new AtomicInteger();
+		volatile boolean failing;
+		volatile SmtLibTerm lastQuery;
+
+		@Override
+		public void start(Program<?, ?> prog) {
+		}
+
+		@Override
+		public SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) throws EvaluationException {
+			return checkAsync(t, getModel, timeout).join();
+		}
+
+		@Override
+		public CompletableFuture<SmtResult> checkAsync(Collection<SmtLibTerm> t, boolean getModel, int timeout) {
+			calls.incrementAndGet();
+			lastQuery = t.iterator().next();
+			boolean fail = failing;
+			CompletableFuture<SmtResult> fut = new CompletableFuture<>();
+			timer.schedule(() -> {
+				if (fail) {
+					fut.completeExceptionally(new EvaluationException("solver crashed"));
+				} else {
+					fut.complete(new SmtResult(SmtStatus.SATISFIABLE, null, 0, 0));
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+			if (!fut.isDone()) {
+				pending.incrementAndGet();
+			}
+			return fut;
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+	private SemiNaiveEvaluation setup(String facts, SmtLibSolver solver) throws Exception {
+		String prog = "input num(i32).\n" + facts + rules;
+		BasicProgram p = new Parser().parse(new StringReader(prog), Collections.emptyList());
+		WellTypedProgram typedProg = new TypeChecker(p).typeCheck();
+		SemiNaiveEvaluation eval = SemiNaiveEvaluation.setup(typedProg, 2, false);
+		getDefManager(eval).loadBuiltInFunctions(solver);
+		return eval;
+	}
+
+	private static FunctionDefManager getDefManager(SemiNaiveEvaluation eval) {
+		return eval.getInputProgram().getFunctionCallFactory().getDefManager();
+	}
+
+	private static Set<String> result(SemiNaiveEvaluation eval, String rel) {
+		RelationSymbol sym = (RelationSymbol) eval.getInputProgram().getSymbolManager().lookupSymbol(rel);
+		Set<String> s = new TreeSet<>();
+		for (UserPredicate p : eval.getResult().getAll(sym)) {
+			s.add(p.toString());
+		}
+		return s;
+	}
+
+	@Test(timeout = 60000)
+	public void testPendingCallsAreResumed() throws Exception {
+		DelayedSolver solver = new DelayedSolver();
+		SemiNaiveEvaluation eval = setup("num(1).\nnum(2).\nnum(3).\n", solver);
+		eval.run();
+		assertTrue("No SMT call was left pending", solver.pending.get() > 0);
+		assertEquals(new TreeSet<>(Arrays.asList("ok(1)", "ok(2)", "ok(3)")), result(eval, "ok"));
+		assertEquals(Collections.emptySet(), result(eval, "unsat"));
+	}
+
+	@Test(timeout = 60000)
+	public void testFailedCallIsReportedAndForgotten() throws Exception {
+		DelayedSolver solver = new DelayedSolver();
+		solver.failing = true;
+		SemiNaiveEvaluation eval = setup("num(1).\n", solver);
+		try {
+			eval.run();
+			fail("The solver failure was not reported");
+		} catch (EvaluationException e) {
+			// expected
+		}
+		// Making the same query again should reach the solver, rather than
+		// finding the failure in the memo
+		solver.failing = false;
+		int calls = solver.calls.get();
+		FunctionDef isSat = getDefManager(eval).lookup(BuiltInFunctionSymbol.IS_SAT);
+		Term[] args = { solver.lastQuery };
+		boolean wasEnabled = SmtCallPendingException.setEnabled(true);
+		try {
+			Term res;
+			try {
+				res = isSat.evaluate(args);
+			} catch (SmtCallPendingException e) {
+				e.getFuture().join();
+				res = isSat.evaluate(args);
+			}
+			assertEquals(BoolTerm.mkTrue(), res);
+		} finally {
+			SmtCallPendingException.setEnabled(wasEnabled);
+		}
+		assertEquals(calls + 1, solver.calls.get());
+	}
+
+}
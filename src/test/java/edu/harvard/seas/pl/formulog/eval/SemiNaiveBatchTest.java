@@ -0,0 +1,143 @@
+package edu.harvard.seas.pl.formulog.eval;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.ast.UserPredicate;
+import edu.harvard.seas.pl.formulog.parsing.Parser;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+import edu.harvard.seas.pl.formulog.types.TypeChecker;
+import edu.harvard.seas.pl.formulog.types.TypeException;
+import edu.harvard.seas.pl.formulog.types.WellTypedProgram;
+
+/**
+ * Evaluates one program against several sets of external facts, resetting the
+ * evaluation in between, as is done for <code>batchFactDirs</code>.
+ */
+public class SemiNaiveBatchTest {
+
+	private static final String prog = "@external\n" + "input edge(i32, i32).\n" + "edge(0, 1).\n"
+			+ "@external\n" + "input tag(i32 option).\n" + "output reach(i32, i32).\n"
+			+ "reach(X, Y) :- edge(X, Y).\n" + "reach(X, Z) :- reach(X, Y), edge(Y, Z).\n"
+			+ "output tagged(i32).\n" + "tagged(X) :- tag(some(X)).\n";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Parser parser = new Parser();
+	private final WellTypedProgram typedProg;
+	private final TypeChecker checker;
+	private final SemiNaiveEvaluation eval;
+	private final Map<RelationSymbol, List<Term[]>> hardCodedFacts = new HashMap<>();
+
+	public SemiNaiveBatchTest() throws Exception {
+		BasicProgram p = parser.parse(new StringReader(prog), Collections.emptyList());
+		typedProg = new TypeChecker(p).typeCheck();
+		checker = new TypeChecker(typedProg);
+		for (RelationSymbol sym : typedProg.getFactSymbols()) {
+			hardCodedFacts.put(sym, new ArrayList<>(typedProg.getFacts(sym)));
+		}
+		eval = SemiNaiveEvaluation.setup(typedProg, 2, false);
+	}
+
+	private Path factDir(String edges, String tags) throws IOException {
+		Path dir = tmp.newFolder().toPath();
+		Files.write(dir.resolve("edge.tsv"), edges.getBytes());
+		Files.write(dir.resolve("tag.tsv"), tags.getBytes());
+		return dir;
+	}
+
+	private void load(Path dir) throws Exception {
+		for (RelationSymbol sym : hardCodedFacts.keySet()) {
+			typedProg.getFacts(sym).clear();
+		}
+		parser.loadExternalFacts(typedProg, Collections.singletonList(dir));
+		checker.typeCheckFacts(hardCodedFacts.keySet());
+		for (Map.Entry<RelationSymbol, List<Term[]>> e : hardCodedFacts.entrySet()) {
+			typedProg.getFacts(e.getKey()).addAll(e.getValue());
+		}
+		eval.reset();
+		eval.run();
+	}
+
+	private Set<String> result(String rel) {
+		RelationSymbol sym = (RelationSymbol) typedProg.getSymbolManager().lookupSymbol(rel);
+		Set<String> s = new TreeSet<>();
+		for (UserPredicate p : eval.getResult().getAll(sym)) {
+			s.add(p.toString());
+		}
+		return s;
+	}
+
+	private static Set<String> set(String... facts) {
+		return new TreeSet<>(Arrays.asList(facts));
+	}
+
+	@Test
+	public void testRunsDoNotLeak() throws Exception {
+		Path a = factDir("1\t2\n2\t3\n", "some(1)\n");
+		Path b = factDir("5\t6\n", "none\n");
+		load(a);
+		assertEquals(set("edge(0, 1)", "edge(1, 2)", "edge(2, 3)"), result("edge"));
+		assertEquals(set("reach(0, 1)", "reach(0, 2)", "reach(0, 3)", "reach(1, 2)", "reach(1, 3)", "reach(2, 3)"),
+				result("reach"));
+		assertEquals(set("tagged(1)"), result("tagged"));
+		load(b);
+		assertEquals(set("edge(0, 1)", "edge(5, 6)"), result("edge"));
+		assertEquals(set("reach(0, 1)", "reach(5, 6)"), result("reach"));
+		assertEquals(set(), result("tagged"));
+		load(a);
+		assertEquals(set("tagged(1)"), result("tagged"));
+		assertEquals(6, result("reach").size());
+	}
+
+	@Test
+	public void testLoadedFactsAreTypeChecked() throws Exception {
+		try {
+			load(factDir("1\t2\n", "some(\"x\")\n"));
+			fail("Loaded an ill-typed fact");
+		} catch (TypeException e) {
+			// expected
+		}
+	}
+
+}
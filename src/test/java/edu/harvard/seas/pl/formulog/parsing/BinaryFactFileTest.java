@@ -0,0 +1,195 @@
+package edu.harvard.seas.pl.formulog.parsing;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.Constructors;
+import edu.harvard.seas.pl.formulog.ast.FP32;
+import edu.harvard.seas.pl.formulog.ast.FP64;
+import edu.harvard.seas.pl.formulog.ast.I32;
+import edu.harvard.seas.pl.formulog.ast.I64;
+import edu.harvard.seas.pl.formulog.ast.Model;
+import edu.harvard.seas.pl.formulog.ast.StringTerm;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.symbols.ConstructorSymbol;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
+
+public class BinaryFactFileTest {
+
+	private static final String prog = "type t = a | b(i32, string).\n"
+			+ "input r(i32, i64, fp32, fp64, string, t, (i32 * fp32) list, bool).\n"
+			+ "r(1, 2L, 1.5F, 2.5, \"x\", a, [], true).\n"
+			+ "r(-1, -2L, -1.5F, -2.5, \"\", b(3, \"y z\"), [(1, 0.25F), (2, fp32_nan)], false).\n"
+			+ "input s(string, t).\n"
+			+ "output m(model).\n";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final Parser parser = new Parser();
+	private final BasicProgram p;
+
+	public BinaryFactFileTest() throws ParseException {
+		p = parser.parse(new StringReader(prog));
+	}
+
+	private Path binFile() throws IOException {
+		return File.createTempFile("facts", BinaryFactFile.extension, tmp.getRoot()).toPath();
+	}
+
+	private RelationSymbol sym(String name) {
+		return (RelationSymbol) p.getSymbolManager().lookupSymbol(name);
+	}
+
+	private List<Term[]> roundTrip(RelationSymbol sym, List<Term[]> tuples) throws Exception {
+		Path f = binFile();
+		BinaryFactFile.write(f, sym, tuples);
+		List<Term[]> loaded = new ArrayList<>();
+		parser.loadFacts(sym, f, loaded);
+		return loaded;
+	}
+
+	private static void assertSameTuples(List<Term[]> expected, List<Term[]> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(Arrays.asList(expected.get(i)), Arrays.asList(actual.get(i)));
+		}
+	}
+
+	@Test
+	public void testAllColumnKinds() throws Exception {
+		RelationSymbol r = sym("r");
+		List<Term[]> tuples = new ArrayList<>(p.getFacts(r));
+		assertEquals(2, tuples.size());
+		assertSameTuples(tuples, roundTrip(r, tuples));
+	}
+
+	@Test
+	public void testSpecialNumbers() throws Exception {
+		RelationSymbol r = sym("r");
+		Term[] tup = p.getFacts(r).iterator().next().clone();
+		List<Term[]> tuples = new ArrayList<>();
+		for (float f : new float[] { Float.NaN, Float.POSITIVE_INFINITY, -0.0F, Float.MIN_VALUE }) {
+			Term[] t = tup.clone();
+			t[0] = I32.make(Integer.MIN_VALUE);
+			t[1] = I64.make(Long.MAX_VALUE);
+			t[2] = FP32.make(f);
+			t[3] = FP64.make((double) f);
+			tuples.add(t);
+		}
+		assertSameTuples(tuples, roundTrip(r, tuples));
+	}
+
+	@Test
+	public void testDictionarySharesEntries() throws Exception {
+		RelationSymbol s = sym("s");
+		char[] cs = new char[1000];
+		Arrays.fill(cs, 'x');
+		Term str = StringTerm.make(new String(cs));
+		Term[] first = p.getFacts(sym("r")).iterator().next();
+		List<Term[]> tuples = new ArrayList<>();
+		for (int i = 0; i < 100; ++i) {
+			tuples.add(new Term[] { str, first[5] });
+		}
+		Path f = binFile();
+		BinaryFactFile.write(f, s, tuples);
+		assertTrue("string was stored more than once: " + Files.size(f), Files.size(f) < 2000);
+		List<Term[]> loaded = new ArrayList<>();
+		parser.loadFacts(s, f, loaded);
+		assertSameTuples(tuples, loaded);
+	}
+
+	@Test
+	public void testBadMagic() throws Exception {
+		Path f = binFile();
+		Files.write(f, new byte[64]);
+		try {
+			parser.loadFacts(sym("r"), f, new ArrayList<>());
+			fail("Loaded a file with a bad magic number");
+		} catch (ParseException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Not a binary fact file"));
+		}
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		RelationSymbol r = sym("r");
+		Path f = binFile();
+		BinaryFactFile.write(f, r, new ArrayList<>(p.getFacts(r)));
+		long size = Files.size(f);
+		for (long len : new long[] { 10, 30, size / 2, size - 1 }) {
+			try (FileChannel ch = FileChannel.open(f, StandardOpenOption.WRITE)) {
+				ch.truncate(len);
+			}
+			try {
+				parser.loadFacts(r, f, new ArrayList<>());
+				fail("Loaded a file truncated to " + len + " bytes");
+			} catch (ParseException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Truncated"));
+			}
+		}
+	}
+
+	@Test
+	public void testRejectsModels() throws Exception {
+		Term[] tup = { Model.make(Collections.emptyMap()) };
+		assertFalse(BinaryFactFile.isStorable(tup[0]));
+		Path f = tmp.getRoot().toPath().resolve("m.bin");
+		try {
+			BinaryFactFile.write(f, sym("m"), Collections.singletonList(tup));
+			fail("Wrote a model to a binary fact file");
+		} catch (IllegalArgumentException e) {
+			assertFalse(Files.exists(f));
+		}
+	}
+
+	@Test
+	public void testQuotedStrings() throws Exception {
+		Term[] first = p.getFacts(sym("r")).iterator().next();
+		Term[] tup = { StringTerm.make("a \"quoted\" string"), first[5] };
+		assertSameTuples(Collections.singletonList(tup), roundTrip(sym("s"), Collections.singletonList(tup)));
+		ConstructorSymbol b = (ConstructorSymbol) p.getSymbolManager().lookupSymbol("b");
+		Term nested = Constructors.make(b, new Term[] { I32.make(3), StringTerm.make("a \"b\"") });
+		assertFalse(BinaryFactFile.isStorable(nested));
+	}
+
+}
@@ -21,16 +21,38 @@ package edu.harvard.seas.pl.formulog.parsing;
  */
 
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.harvard.seas.pl.formulog.ast.BasicProgram;
+import edu.harvard.seas.pl.formulog.ast.Term;
+import edu.harvard.seas.pl.formulog.symbols.RelationSymbol;
 
 public class ParsingTest {
 
+	private static final String factProg = "input r(i32, i64, fp32, fp64, string).\n"
+			+ "input s(i32, i32 option).\n";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
 	void test(String file) {
 		boolean isBad = file.matches("test\\d\\d\\d_bd.flg");
 		try {
@@ -167,4 +189,92 @@ public class ParsingTest {
 		test("test322_bd.flg");
 	}
 	
+	/**
+	 * Checks that loading a fact file line by line (which reads plain literals
+	 * without the ANTLR parser) gives the same facts as the ANTLR parser.
+	 */
+	void testFactFile(String rel, String tsv, int expectedFacts) throws Exception {
+		Parser parser = new Parser();
+		BasicProgram p = parser.parse(new StringReader(factProg));
+		RelationSymbol sym = (RelationSymbol) p.getSymbolManager().lookupSymbol(rel);
+		Path file = tmp.newFile(rel + ".tsv").toPath();
+		Files.write(file, tsv.getBytes());
+		List<Term[]> fast = new ArrayList<>();
+		parser.loadFacts(sym, file, fast);
+		assertEquals(expectedFacts, fast.size());
+		assertEquals(set(parser.parseFacts(sym, new StringReader(tsv))), set(fast));
+	}
+
+	@Test
+	public void testFactFileHex() throws Exception {
+		testFactFile("r", "0x7fffffff\t0x10L\t1F\t1.0\t\"\"\n0xffffffff\t0xffffffffffffffffL\t1F\t1.0\t\"\"\n", 2);
+	}
+
+	@Test
+	public void testFactFileLongSuffixes() throws Exception {
+		testFactFile("r", "1\t-42l\t1F\t1.0\t\"\"\n1\t+42L\t1F\t1.0\t\"\"\n", 2);
+	}
+
+	@Test
+	public void testFactFileSpecialFloats() throws Exception {
+		testFactFile("r", "1\t1L\tfp32_nan\tfp64_nan\t\"\"\n"
+				+ "1\t1L\tfp32_neg_infinity\tfp64_pos_infinity\t\"\"\n", 2);
+	}
+
+	@Test
+	public void testFactFileExponents() throws Exception {
+		testFactFile("r", "1\t1L\t1.5e3F\t-2.5E-3\t\"\"\n1\t1L\t.5f\t1e10\t\"\"\n1\t1L\t2e+2f\t7d\t\"\"\n", 3);
+	}
+
+	@Test
+	public void testFactFileEscapedStrings() throws Exception {
+		testFactFile("r", "1\t1L\t1F\t1.0\t\"a\\\"b\\tc\\\\\"\n1\t1L\t1F\t1.0\t\"tab\tinside\"\n", 2);
+	}
+
+	@Test
+	public void testFactFileComments() throws Exception {
+		testFactFile("r", "1 (* one *)\t1L\t1F\t1.0\t\"(* not a comment *)\"\n"
+				+ "(* two *) 2\t2L\t2F\t2.0\t\"x\" (* trailing *)\n", 2);
+	}
+
+	@Test
+	public void testFactFileNonPrimitiveColumn() throws Exception {
+		testFactFile("s", "1\tsome(2)\n0x10\tnone\n", 2);
+	}
+
+	/**
+	 * Loads the facts of <code>edge</code> from a directory holding only a
+	 * compressed fact file.
+	 */
+	void testCompressedFactFile(String dir, String suffix) throws Exception {
+		Parser parser = new Parser();
+		BasicProgram p = parser.parse(new StringReader("input edge(i32, i32).\n"));
+		RelationSymbol sym = (RelationSymbol) p.getSymbolManager().lookupSymbol("edge");
+		Path d = Paths.get(getClass().getClassLoader().getResource("compressed_facts/" + dir).toURI());
+		Path file = Parser.findTsvFile(d, "edge");
+		assertEquals("edge.tsv" + suffix, file.getFileName().toString());
+		List<Term[]> facts = new ArrayList<>();
+		parser.loadFacts(sym, file, facts);
+		assertEquals(3, facts.size());
+		assertEquals(set(parser.parseFacts(sym, new StringReader("1\t2\n3\t4\n-5\t0x10\n"))), set(facts));
+	}
+
+	private static Set<List<Term>> set(Iterable<Term[]> tups) {
+		Set<List<Term>> s = new HashSet<>();
+		for (Term[] tup : tups) {
+			s.add(Arrays.asList(tup));
+		}
+		return s;
+	}
+
+	@Test
+	public void testGzipFactFile() throws Exception {
+		testCompressedFactFile("gz", ".gz");
+	}
+
+	@Test
+	public void testZipFactFile() throws Exception {
+		testCompressedFactFile("zip", ".zip");
+	}
+
 }
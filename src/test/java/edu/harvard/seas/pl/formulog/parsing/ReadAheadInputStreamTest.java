@@ -0,0 +1,117 @@
+package edu.harvard.seas.pl.formulog.parsing;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReadAheadInputStreamTest {
+
+	private static byte[] randomBytes(int n) {
+		byte[] bytes = new byte[n];
+		new Random(0).nextBytes(bytes);
+		return bytes;
+	}
+
+	@Test(timeout = 60000)
+	public void testReadsEverythingInOrder() throws IOException {
+		// More chunks than the read-ahead queue holds, and a partial last one
+		byte[] data = randomBytes((1 << 16) * 20 + 123);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), "test")) {
+			byte[] buf = new byte[1000];
+			int n;
+			while (true) {
+				// Mix single-byte and bulk reads
+				int b = in.read();
+				if (b == -1) {
+					break;
+				}
+				out.write(b);
+				if ((n = in.read(buf, 0, buf.length)) == -1) {
+					break;
+				}
+				out.write(buf, 0, n);
+			}
+			assertEquals(-1, in.read());
+		}
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test(timeout = 60000)
+	public void testEmptyStream() throws IOException {
+		try (InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), "test")) {
+			assertEquals(-1, in.read());
+			assertEquals(-1, in.read(new byte[10], 0, 10));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testReportsError() throws IOException {
+		byte[] data = randomBytes(100);
+		InputStream failing = new InputStream() {
+
+			private int i;
+
+			@Override
+			public int read() throws IOException {
+				if (i == data.length) {
+					throw new IOException("broken");
+				}
+				return data[i++] & 0xff;
+			}
+
+		};
+		try (InputStream in = new ReadAheadInputStream(failing, "test")) {
+			byte[] buf = new byte[1000];
+			while (in.read(buf, 0, buf.length) != -1) {
+			}
+			fail("Reached the end of a broken stream");
+		} catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseStopsEndlessStream() throws IOException {
+		InputStream endless = new InputStream() {
+
+			@Override
+			public int read() {
+				return 'x';
+			}
+
+		};
+		InputStream in = new ReadAheadInputStream(endless, "test");
+		assertEquals('x', in.read());
+		in.close();
+	}
+
+}
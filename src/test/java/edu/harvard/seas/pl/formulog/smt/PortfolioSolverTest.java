@@ -0,0 +1,212 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+
+public class PortfolioSolverTest {
+
+	private static final List<SmtLibTerm> small = Arrays.asList(BoolTerm.mkTrue());
+	private static final List<SmtLibTerm> big = Arrays.asList(BoolTerm.mkTrue(), BoolTerm.mkFalse());
+	private static final int trainingRounds = 16;
+
+	/**
+	 * A backend whose answer to a query is decided by <code>behavior</code>; a
+	 * null answer means that it runs until it is killed. While
+	 * <code>crashing</code> is set, every call fails instead.
+	 */
+	private static class FakeSolver implements SmtLibSolver {
+
+		volatile Function<Collection<SmtLibTerm>, SmtStatus> behavior;
+		final AtomicInteger starts = new AtomicInteger();
+		final AtomicInteger calls = new AtomicInteger();
+		volatile CountDownLatch killed;
+		volatile boolean crashing;
+
+		FakeSolver(Function<Collection<SmtLibTerm>, SmtStatus> behavior) {
+			this.behavior = behavior;
+		}
+
+		@Override
+		public void start(Program<?, ?> prog) {
+			killed = new CountDownLatch(1);
+			starts.incrementAndGet();
+		}
+
+		@Override
+		public SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) throws EvaluationException {
+			calls.incrementAndGet();
+			if (crashing) {
+				throw new EvaluationException("crashed");
+			}
+			SmtStatus status = behavior.apply(t);
+			if (status == null) {
+				try {
+					killed.await();
+				} catch (InterruptedException e) {
+					throw new EvaluationException(e);
+				}
+				throw new EvaluationException("killed");
+			}
+			return new SmtResult(status, null, 0, 0);
+		}
+
+		@Override
+		public void kill() {
+			killed.countDown();
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+	private PortfolioSolver portfolio;
+
+	private PortfolioSolver start(FakeSolver... backends) throws EvaluationException {
+		List<FakeSolver> l = Arrays.asList(backends);
+		AtomicInteger next = new AtomicInteger();
+		portfolio = new PortfolioSolver(Arrays.asList(new String[backends.length]),
+				name -> l.get(next.getAndIncrement()));
+		portfolio.start(null);
+		return portfolio;
+	}
+
+	@After
+	public void destroy() {
+		if (portfolio != null) {
+			portfolio.destroy();
+		}
+	}
+
+	private static void awaitStarts(FakeSolver s, int n) throws InterruptedException {
+		while (s.starts.get() < n) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testRaceKillsAndRestartsLoser() throws Exception {
+		FakeSolver slow = new FakeSolver(t -> null);
+		FakeSolver fast = new FakeSolver(t -> SmtStatus.SATISFIABLE);
+		PortfolioSolver p = start(slow, fast);
+		assertEquals(SmtStatus.SATISFIABLE, p.check(small, false, -1).status);
+		awaitStarts(slow, 2);
+		assertEquals(1, fast.starts.get());
+	}
+
+	@Test(timeout = 60000)
+	public void testUnknownFromFavoriteFallsBackToRace() throws Exception {
+		FakeSolver favorite = new FakeSolver(t -> SmtStatus.SATISFIABLE);
+		FakeSolver other = new FakeSolver(t -> null);
+		PortfolioSolver p = start(favorite, other);
+		for (int i = 0; i < trainingRounds; ++i) {
+			assertEquals(SmtStatus.SATISFIABLE, p.check(small, false, -1).status);
+		}
+		favorite.behavior = t -> SmtStatus.UNKNOWN;
+		other.behavior = t -> SmtStatus.UNSATISFIABLE;
+		int calls = favorite.calls.get();
+		assertEquals(SmtStatus.UNSATISFIABLE, p.check(small, false, -1).status);
+		// The favorite is asked once, and is left out of the race that follows
+		assertEquals(calls + 1, favorite.calls.get());
+	}
+
+	@Test(timeout = 60000)
+	public void testCrashInRaceRestartsBackend() throws Exception {
+		FakeSolver crashed = new FakeSolver(t -> SmtStatus.SATISFIABLE);
+		crashed.crashing = true;
+		FakeSolver other = new FakeSolver(t -> SmtStatus.UNKNOWN);
+		PortfolioSolver p = start(crashed, other);
+		assertEquals(SmtStatus.UNKNOWN, p.check(small, false, -1).status);
+		awaitStarts(crashed, 2);
+		assertEquals(1, other.starts.get());
+	}
+
+	@Test(timeout = 60000)
+	public void testCrashedFavoriteIsRestartedAndFallsBackToRace() throws Exception {
+		FakeSolver favorite = new FakeSolver(t -> SmtStatus.SATISFIABLE);
+		FakeSolver other = new FakeSolver(t -> null);
+		PortfolioSolver p = start(favorite, other);
+		for (int i = 0; i < trainingRounds; ++i) {
+			assertEquals(SmtStatus.SATISFIABLE, p.check(small, false, -1).status);
+		}
+		favorite.crashing = true;
+		other.behavior = t -> SmtStatus.UNSATISFIABLE;
+		int calls = favorite.calls.get();
+		int starts = favorite.starts.get();
+		assertEquals(SmtStatus.UNSATISFIABLE, p.check(small, false, -1).status);
+		assertEquals(calls + 1, favorite.calls.get());
+		awaitStarts(favorite, starts + 1);
+	}
+
+	@Test(timeout = 60000)
+	public void testCallsToDifferentBackendsRunConcurrently() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		// The first backend is best at small queries, and the second at big ones
+		FakeSolver a = new FakeSolver(t -> t.size() == 1 ? SmtStatus.SATISFIABLE : null);
+		FakeSolver b = new FakeSolver(t -> t.size() == 2 ? SmtStatus.SATISFIABLE : null);
+		PortfolioSolver p = start(a, b);
+		for (int i = 0; i < trainingRounds; ++i) {
+			p.check(small, false, -1);
+			p.check(big, false, -1);
+		}
+		a.behavior = t -> {
+			entered.countDown();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				return SmtStatus.UNKNOWN;
+			}
+			return SmtStatus.SATISFIABLE;
+		};
+		CompletableFuture<SmtStatus> blocked = CompletableFuture.supplyAsync(() -> {
+			try {
+				return p.check(small, false, -1).status;
+			} catch (EvaluationException e) {
+				throw new AssertionError(e);
+			}
+		});
+		entered.await();
+		assertEquals(SmtStatus.SATISFIABLE, p.check(big, false, -1).status);
+		gate.countDown();
+		assertEquals(SmtStatus.SATISFIABLE, blocked.get(10, TimeUnit.SECONDS));
+	}
+
+}
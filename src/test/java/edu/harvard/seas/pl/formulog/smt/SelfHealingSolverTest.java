@@ -0,0 +1,214 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import edu.harvard.seas.pl.formulog.Configuration;
+import edu.harvard.seas.pl.formulog.ast.BoolTerm;
+import edu.harvard.seas.pl.formulog.ast.Program;
+import edu.harvard.seas.pl.formulog.ast.SmtLibTerm;
+import edu.harvard.seas.pl.formulog.eval.EvaluationException;
+
+public class SelfHealingSolverTest {
+
+	private static final List<SmtLibTerm> query = Arrays.asList(BoolTerm.mkTrue());
+
+	/**
+	 * Makes solvers whose first <code>crashes</code> calls (counted across all
+	 * of them) fail, and which then answer sat; if <code>wedged</code>, each
+	 * call instead runs until its solver is killed.
+	 */
+	private static class Scenario {
+
+		final int crashes;
+		final boolean wedged;
+		final AtomicInteger made = new AtomicInteger();
+		final AtomicInteger calls = new AtomicInteger();
+
+		Scenario(int crashes, boolean wedged) {
+			this.crashes = crashes;
+			this.wedged = wedged;
+		}
+
+		SelfHealingSolver start() throws EvaluationException {
+			SelfHealingSolver solver = new SelfHealingSolver(() -> new FlakySolver(this));
+			solver.start(null);
+			return solver;
+		}
+
+	}
+
+	private static class FlakySolver implements SmtLibSolver {
+
+		final Scenario scenario;
+		final CountDownLatch killed = new CountDownLatch(1);
+
+		FlakySolver(Scenario scenario) {
+			this.scenario = scenario;
+			scenario.made.incrementAndGet();
+		}
+
+		@Override
+		public void start(Program<?, ?> prog) {
+		}
+
+		@Override
+		public SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) throws EvaluationException {
+			int call = scenario.calls.incrementAndGet();
+			if (scenario.wedged) {
+				try {
+					killed.await();
+				} catch (InterruptedException e) {
+					throw new EvaluationException(e);
+				}
+				throw new EvaluationException("killed");
+			}
+			if (call <= scenario.crashes) {
+				throw new EvaluationException("crashed");
+			}
+			return new SmtResult(SmtStatus.SATISFIABLE, null, 0, 0);
+		}
+
+		@Override
+		public void kill() {
+			killed.countDown();
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+	@Test(timeout = 60000)
+	public void testCrashIsRetriedOnFreshSolver() throws Exception {
+		Scenario sc = new Scenario(1, false);
+		SelfHealingSolver solver = sc.start();
+		assertEquals(SmtStatus.SATISFIABLE, solver.check(query, false, Integer.MAX_VALUE).status);
+		assertEquals(2, sc.calls.get());
+		assertEquals(2, sc.made.get());
+		solver.destroy();
+	}
+
+	@Test(timeout = 60000)
+	public void testRepeatedCrashIsReported() throws Exception {
+		Scenario sc = new Scenario(Integer.MAX_VALUE, false);
+		SelfHealingSolver solver = sc.start();
+		try {
+			solver.check(query, false, Integer.MAX_VALUE);
+			fail("A solver that always crashes gave an answer");
+		} catch (EvaluationException e) {
+			assertEquals("crashed", e.getMessage());
+		}
+		int attempts = Configuration.smtMaxRetries + 1;
+		assertEquals(attempts, sc.calls.get());
+		// Every failed attempt leaves a fresh solver behind
+		assertEquals(attempts + 1, sc.made.get());
+		solver.destroy();
+	}
+
+	@Test(timeout = 60000)
+	public void testWedgedCallIsKilledAtDeadlineAndNotRetried() throws Exception {
+		Scenario sc = new Scenario(0, true);
+		SelfHealingSolver solver = sc.start();
+		long start = System.nanoTime();
+		assertEquals(SmtStatus.UNKNOWN, solver.check(query, false, 100).status);
+		assertTrue(System.nanoTime() - start >= 100_000_000L);
+		assertEquals(1, sc.calls.get());
+		assertEquals(2, sc.made.get());
+		solver.destroy();
+	}
+
+	@Test(timeout = 60000)
+	public void testWedgedAsyncCallIsKilledAtDeadlineAndNotRetried() throws Exception {
+		Scenario sc = new Scenario(0, true);
+		SelfHealingSolver solver = sc.start();
+		assertEquals(SmtStatus.UNKNOWN, solver.checkAsync(query, false, 100).get().status);
+		assertEquals(1, sc.calls.get());
+		assertEquals(2, sc.made.get());
+		solver.destroy();
+	}
+
+	/**
+	 * A solver that answers the first query of a batch and then fails, like a
+	 * solver process that crashes in the middle of a pipeline. Every query it is
+	 * asked is recorded.
+	 */
+	private static class CrashingSolver implements SmtLibSolver {
+
+		final List<Collection<SmtLibTerm>> asked;
+
+		CrashingSolver(List<Collection<SmtLibTerm>> asked) {
+			this.asked = asked;
+		}
+
+		@Override
+		public void start(Program<?, ?> prog) {
+		}
+
+		@Override
+		public SmtResult check(Collection<SmtLibTerm> t, boolean getModel, int timeout) {
+			asked.add(t);
+			return new SmtResult(SmtStatus.SATISFIABLE, null, 0, 0);
+		}
+
+		@Override
+		public void checkBatch(List<SmtQuery> queries, List<SmtResult> results) throws EvaluationException {
+			results.add(check(queries.get(0).conjuncts, false, -1));
+			throw new EvaluationException("crashed");
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+	}
+
+	@Test(timeout = 60000)
+	public void testFailedBatchRetriesOnlyUnansweredQueries() throws Exception {
+		List<Collection<SmtLibTerm>> asked = Collections.synchronizedList(new ArrayList<>());
+		SelfHealingSolver solver = new SelfHealingSolver(() -> new CrashingSolver(asked));
+		solver.start(null);
+		List<SmtLibTerm> a = Arrays.asList(BoolTerm.mkTrue());
+		List<SmtLibTerm> b = Arrays.asList(BoolTerm.mkFalse());
+		List<SmtLibTerm> c = Arrays.asList(BoolTerm.mkTrue(), BoolTerm.mkFalse());
+		List<SmtQuery> queries = Arrays.asList(new SmtQuery(a, false, -1), new SmtQuery(b, false, -1),
+				new SmtQuery(c, false, -1));
+		List<SmtResult> results = solver.checkBatch(queries);
+		assertEquals(3, results.size());
+		assertEquals(Arrays.asList(a, b, c), asked);
+		solver.destroy();
+	}
+
+}
@@ -0,0 +1,87 @@
+package edu.harvard.seas.pl.formulog.smt;
+
+/*-
+ * #%L
+ * Formulog
+ * %%
+ * Copyright (C) 2018 - 2020 President and Fellows of Harvard College
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Talks to <code>cat</code> through a {@link SolverChannel}, standing in for
+ * a solver that echoes its input.
+ */
+public class SolverChannelTest {
+
+	private Process process;
+	private SolverChannel channel;
+
+	private PrintWriter start() throws Exception {
+		process = new ProcessBuilder("cat").start();
+		channel = SolverChannelSelector.get().register(process);
+		return new PrintWriter(process.getOutputStream(), true);
+	}
+
+	@After
+	public void stop() {
+		if (process != null) {
+			process.destroy();
+			SolverChannelSelector.get().unregister(channel);
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testAwaitSExpWaitsForWholeResponse() throws Exception {
+		PrintWriter out = start();
+		CompletableFuture<Void> fut = channel.awaitSExp();
+		out.print("((x 1)\n");
+		out.flush();
+		Thread.sleep(100);
+		assertFalse(fut.isDone());
+		out.println(" (y \")\"))");
+		fut.get(10, TimeUnit.SECONDS);
+		BufferedReader in = new BufferedReader(channel);
+		assertEquals("((x 1)", in.readLine());
+		assertEquals(" (y \")\"))", in.readLine());
+	}
+
+	@Test(timeout = 60000)
+	public void testLinesAndEndOfOutput() throws Exception {
+		PrintWriter out = start();
+		out.println("sat");
+		channel.awaitLine().get(10, TimeUnit.SECONDS);
+		BufferedReader in = new BufferedReader(channel);
+		assertEquals("sat", in.readLine());
+		CompletableFuture<Void> fut = channel.awaitLine();
+		out.close();
+		// The process exits once its input is closed
+		fut.get(10, TimeUnit.SECONDS);
+		assertNull(in.readLine());
+	}
+
+}
@@ -21,11 +21,14 @@ package edu.harvard.seas.pl.formulog.types;
  */
 
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 
 import org.junit.Test;
 
@@ -246,4 +249,20 @@ public class TypeCheckingTest {
 		test("test327_bd.flg");
 	}
 	
+	@Test
+	public void testReportedErrorDoesNotDependOnScheduling() throws Exception {
+		String prog = "output b(i32).\noutput a(i32).\n" + "b(X) :- X = \"y\".\n" + "a(X) :- X = \"x\".\n";
+		for (int i = 0; i < 20; ++i) {
+			BasicProgram p = (new Parser()).parse(new StringReader(prog));
+			try {
+				(new TypeChecker(p)).typeCheck();
+				fail("Test succeeded for a bad program");
+			} catch (TypeException e) {
+				// Both rules are ill-typed; the one whose relation comes first wins
+				assertTrue(e.getMessage(), e.getMessage().contains("a(X) :- X = \"x\"."));
+				assertFalse(e.getMessage(), e.getMessage().contains("b(X)"));
+			}
+		}
+	}
+
 }